@@ -5,6 +5,7 @@ import android.content.Context;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
 
+import com.srain.cube.concurrent.ExecutorRegistry;
 import com.srain.cube.util.LocalDisplay;
 import com.srain.cube.util.NetworkStatusManager;
 
@@ -39,6 +40,14 @@ public class Cube {
 		return instance;
 	}
 
+	/**
+	 * The thread pools of the library, to tune or cap its concurrency. Configure them before the first images or
+	 * requests are loaded, the threads already started keep their priority.
+	 */
+	public static ExecutorRegistry getExecutorRegistry() {
+		return ExecutorRegistry.getInstance();
+	}
+
 	public Context getContext() {
 		return mApplication;
 	}
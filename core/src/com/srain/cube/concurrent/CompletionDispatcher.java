@@ -0,0 +1,42 @@
+package com.srain.cube.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decide where the completion of a {@link SimpleTask}, its {@link SimpleTask#onFinish()}, runs.
+ *
+ * The default is the main thread, by {@link FrameBatchedDispatcher}. A task whose completion does not touch the views
+ * can finish in the worker thread with {@link #INLINE}, or in any {@link Executor} with {@link ExecutorDispatcher}.
+ */
+public interface CompletionDispatcher {
+
+	/**
+	 * Run the completion in the worker thread, right after doInBackground(). Needs no Looper.
+	 */
+	public static final CompletionDispatcher INLINE = new CompletionDispatcher() {
+
+		@Override
+		public void dispatch(Runnable completion) {
+			completion.run();
+		}
+	};
+
+	public void dispatch(Runnable completion);
+
+	/**
+	 * Run the completions in an {@link Executor}.
+	 */
+	public static class ExecutorDispatcher implements CompletionDispatcher {
+
+		private final Executor mExecutor;
+
+		public ExecutorDispatcher(Executor executor) {
+			mExecutor = executor;
+		}
+
+		@Override
+		public void dispatch(Runnable completion) {
+			mExecutor.execute(completion);
+		}
+	}
+}
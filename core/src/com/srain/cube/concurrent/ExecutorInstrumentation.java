@@ -0,0 +1,188 @@
+package com.srain.cube.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Record how long the tasks of an executor wait before they start and how long they run, per task class, and how deep
+ * the queue gets. Everything is kept in atomic counters, a task costs a few nanoTime() calls and atomic increments.
+ *
+ * Tasks are {@link #wrap(Runnable) wrapped} when they are submitted; see {@link InstrumentedExecutor}, which does it
+ * for any {@link java.util.concurrent.Executor}.
+ */
+public class ExecutorInstrumentation {
+
+	private final String mName;
+	private final ConcurrentHashMap<String, TaskTypeStats> mTypes = new ConcurrentHashMap<String, TaskTypeStats>();
+
+	private final AtomicInteger mQueueDepth = new AtomicInteger();
+	private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+	private final AtomicInteger mRunning = new AtomicInteger();
+	private final AtomicLong mRejectedCount = new AtomicLong();
+
+	private static class TaskTypeStats {
+		private final LatencyHistogram mWait = new LatencyHistogram();
+		private final LatencyHistogram mRun = new LatencyHistogram();
+		private final AtomicLong mSubmittedCount = new AtomicLong();
+		private final AtomicLong mCancelledCount = new AtomicLong();
+		private final AtomicLong mExpiredCount = new AtomicLong();
+	}
+
+	/**
+	 * A task with the time it was submitted.
+	 */
+	public class InstrumentedTask implements Runnable {
+
+		private final Runnable mTask;
+		private final TaskTypeStats mStats;
+		private final long mEnqueueTime;
+
+		private InstrumentedTask(Runnable task, TaskTypeStats stats) {
+			mTask = task;
+			mStats = stats;
+			mEnqueueTime = System.nanoTime();
+		}
+
+		public Runnable getTask() {
+			return mTask;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			mQueueDepth.decrementAndGet();
+			mStats.mWait.record(start - mEnqueueTime);
+			mRunning.incrementAndGet();
+			try {
+				mTask.run();
+			} finally {
+				mRunning.decrementAndGet();
+				mStats.mRun.record(System.nanoTime() - start);
+				if (mTask instanceof SimpleTask) {
+					SimpleTask task = (SimpleTask) mTask;
+					if (task.isExpired()) {
+						mStats.mExpiredCount.incrementAndGet();
+					} else if (task.isCancelled()) {
+						mStats.mCancelledCount.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The counters at one point, per task class.
+	 */
+	public static class TaskTypeSnapshot {
+		public long submittedCount;
+		public long cancelledCount;
+		/** Taken after their {@link SimpleTask#setDeadline(long) deadline}, not run; not counted as cancelled. */
+		public long expiredCount;
+		public long totalWaitNanos;
+		public long maxWaitNanos;
+		public long totalRunNanos;
+		public long maxRunNanos;
+		/** See {@link LatencyHistogram}. */
+		public long[] waitHistogram;
+		public long[] runHistogram;
+
+		@Override
+		public String toString() {
+			long maxWait = maxWaitNanos / 1000;
+			long maxRun = maxRunNanos / 1000;
+			// the percentiles are bucket bounds, the max is exact
+			return String.format("submitted: %s, cancelled: %s, expired: %s, wait p50/p95/max: %s/%s/%sus, run p50/p95/max: %s/%s/%sus", submittedCount, cancelledCount, expiredCount, Math.min(maxWait, LatencyHistogram.getPercentileMicros(waitHistogram, 50)), Math.min(maxWait, LatencyHistogram.getPercentileMicros(waitHistogram, 95)), maxWait, Math.min(maxRun, LatencyHistogram.getPercentileMicros(runHistogram, 50)), Math.min(maxRun, LatencyHistogram.getPercentileMicros(runHistogram, 95)), maxRun);
+		}
+	}
+
+	public static class Snapshot {
+		public String name;
+		public int queueDepth;
+		public int maxQueueDepth;
+		public int runningCount;
+		public long rejectedCount;
+		public long expiredCount;
+		public Map<String, TaskTypeSnapshot> taskTypes;
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%s: queued: %s (max %s), running: %s, rejected: %s, expired: %s", name, queueDepth, maxQueueDepth, runningCount, rejectedCount, expiredCount));
+			for (Map.Entry<String, TaskTypeSnapshot> entry : taskTypes.entrySet()) {
+				sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+			}
+			return sb.toString();
+		}
+	}
+
+	public ExecutorInstrumentation(String name) {
+		mName = name;
+	}
+
+	/**
+	 * Wrap a task before it is submitted, it is counted as queued from now.
+	 */
+	public InstrumentedTask wrap(Runnable task) {
+		String type = task.getClass().getName();
+		TaskTypeStats stats = mTypes.get(type);
+		if (stats == null) {
+			TaskTypeStats created = new TaskTypeStats();
+			stats = mTypes.putIfAbsent(type, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		stats.mSubmittedCount.incrementAndGet();
+		int depth = mQueueDepth.incrementAndGet();
+		int max;
+		while (depth > (max = mMaxQueueDepth.get()) && !mMaxQueueDepth.compareAndSet(max, depth)) {
+			// another thread raised the max, check again
+		}
+		return new InstrumentedTask(task, stats);
+	}
+
+	/**
+	 * The wrapped task has been rejected by the executor, it will not run.
+	 */
+	public void onRejected(InstrumentedTask task) {
+		mQueueDepth.decrementAndGet();
+		mRejectedCount.incrementAndGet();
+	}
+
+	/**
+	 * A wrapped task has been dropped from the queue, it will not run.
+	 */
+	public void onDropped(InstrumentedTask task) {
+		mQueueDepth.decrementAndGet();
+		task.mStats.mCancelledCount.incrementAndGet();
+	}
+
+	public Snapshot getSnapshot() {
+		Snapshot snapshot = new Snapshot();
+		snapshot.name = mName;
+		snapshot.queueDepth = mQueueDepth.get();
+		snapshot.maxQueueDepth = mMaxQueueDepth.get();
+		snapshot.runningCount = mRunning.get();
+		snapshot.rejectedCount = mRejectedCount.get();
+		snapshot.taskTypes = new HashMap<String, TaskTypeSnapshot>();
+		for (Map.Entry<String, TaskTypeStats> entry : mTypes.entrySet()) {
+			TaskTypeStats stats = entry.getValue();
+			TaskTypeSnapshot type = new TaskTypeSnapshot();
+			type.submittedCount = stats.mSubmittedCount.get();
+			type.cancelledCount = stats.mCancelledCount.get();
+			type.expiredCount = stats.mExpiredCount.get();
+			snapshot.expiredCount += type.expiredCount;
+			type.totalWaitNanos = stats.mWait.getTotalNanos();
+			type.maxWaitNanos = stats.mWait.getMaxNanos();
+			type.waitHistogram = stats.mWait.getBuckets();
+			type.totalRunNanos = stats.mRun.getTotalNanos();
+			type.maxRunNanos = stats.mRun.getMaxNanos();
+			type.runHistogram = stats.mRun.getBuckets();
+			snapshot.taskTypes.put(entry.getKey(), type);
+		}
+		return snapshot;
+	}
+}
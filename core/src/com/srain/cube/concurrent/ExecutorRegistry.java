@@ -0,0 +1,240 @@
+package com.srain.cube.concurrent;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+
+import com.srain.cube.util.Version;
+
+/**
+ * The thread pools of the whole library, by name. Every subsystem takes its threads from here, so the number of threads
+ * competing with the UI thread is set in one place.
+ *
+ * Each pool has a size and an Android thread priority, which can be changed before or after the pool is created.
+ * {@link #setMaxThreadCount(int)} caps the sum of the sizes, for low-end devices: the pools are scaled down in
+ * proportion, each keeps at least one thread.
+ */
+public class ExecutorRegistry {
+
+	/** Decode and download images, see {@link com.srain.cube.image.imple.DefaultImageTaskExecutor}. */
+	public static final String POOL_IMAGE = "image";
+	/** Requests to the server. */
+	public static final String POOL_NETWORK = "network";
+	/** Short file work: cache reads and writes, see {@link SimpleExcutor}. */
+	public static final String POOL_BACKGROUND = "background";
+	/** Eviction and journal maintenance of all the disk caches. */
+	public static final String POOL_DISK_CACHE = "disk-cache";
+
+	private static final int KEEP_ALIVE_TIME = 1;
+	/**
+	 * The image threads mostly wait for the network, the downloads in flight are adapted by the image loader and the
+	 * decoding is bounded by the cores there.
+	 */
+	private static final int DEFAULT_IMAGE_THREAD_COUNT = 6;
+	private static final int MAX_BACKGROUND_THREAD_COUNT = 3;
+	private static final int DEFAULT_NETWORK_THREAD_COUNT = 4;
+
+	private static ExecutorRegistry sInstance;
+
+	private final LinkedHashMap<String, PoolConfig> mConfigs = new LinkedHashMap<String, PoolConfig>();
+	private final HashMap<String, ThreadPoolExecutor> mPools = new HashMap<String, ThreadPoolExecutor>();
+	private int mMaxThreadCount = Integer.MAX_VALUE;
+
+	private static class PoolConfig {
+		private int mThreadCount;
+		private int mPriority;
+
+		private PoolConfig(int threadCount, int priority) {
+			mThreadCount = threadCount;
+			mPriority = priority;
+		}
+	}
+
+	public static synchronized ExecutorRegistry getInstance() {
+		if (sInstance == null) {
+			sInstance = new ExecutorRegistry();
+		}
+		return sInstance;
+	}
+
+	private ExecutorRegistry() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		mConfigs.put(POOL_IMAGE, new PoolConfig(DEFAULT_IMAGE_THREAD_COUNT, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE));
+		mConfigs.put(POOL_NETWORK, new PoolConfig(DEFAULT_NETWORK_THREAD_COUNT, Process.THREAD_PRIORITY_BACKGROUND));
+		mConfigs.put(POOL_BACKGROUND, new PoolConfig(Math.max(2, Math.min(MAX_BACKGROUND_THREAD_COUNT, cores)), Process.THREAD_PRIORITY_BACKGROUND));
+		mConfigs.put(POOL_DISK_CACHE, new PoolConfig(1, Process.THREAD_PRIORITY_BACKGROUND));
+	}
+
+	/**
+	 * Set the size and the thread priority of a pool, a new pool if the name is not known yet. The priority of the
+	 * threads already started does not change.
+	 *
+	 * @param priority
+	 *            one of the {@code THREAD_PRIORITY_} of {@link Process}
+	 */
+	public synchronized void configure(String name, int threadCount, int priority) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount < 1");
+		}
+		PoolConfig config = mConfigs.get(name);
+		if (config == null) {
+			mConfigs.put(name, new PoolConfig(threadCount, priority));
+		} else {
+			config.mThreadCount = threadCount;
+			config.mPriority = priority;
+		}
+		applyThreadCounts();
+	}
+
+	/**
+	 * Cap the number of threads of all the pools together.
+	 */
+	public synchronized void setMaxThreadCount(int maxThreadCount) {
+		if (maxThreadCount < 1) {
+			throw new IllegalArgumentException("maxThreadCount < 1");
+		}
+		mMaxThreadCount = maxThreadCount;
+		applyThreadCounts();
+	}
+
+	/**
+	 * The number of threads of the pool, after the cap of {@link #setMaxThreadCount(int)}.
+	 */
+	public synchronized int getThreadCount(String name) {
+		PoolConfig config = getConfig(name);
+		int total = 0;
+		for (PoolConfig c : mConfigs.values()) {
+			total += c.mThreadCount;
+		}
+		if (total <= mMaxThreadCount) {
+			return config.mThreadCount;
+		}
+		return Math.max(1, (int) ((long) config.mThreadCount * mMaxThreadCount / total));
+	}
+
+	public ThreadPoolExecutor getExecutor(String name) {
+		return getExecutor(name, null);
+	}
+
+	/**
+	 * Get the pool, create it on the first call.
+	 *
+	 * @param queue
+	 *            the work queue of the pool if it is created by this call, a {@link LinkedBlockingQueue} if null
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	public synchronized ThreadPoolExecutor getExecutor(String name, BlockingQueue<Runnable> queue) {
+		ThreadPoolExecutor pool = mPools.get(name);
+		if (pool == null) {
+			int threadCount = getThreadCount(name);
+			if (queue == null) {
+				queue = new LinkedBlockingQueue<Runnable>();
+			}
+			pool = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME, TimeUnit.SECONDS, queue, newThreadFactory(name));
+			if (Version.hasGingerbread()) {
+				pool.allowCoreThreadTimeOut(true);
+			}
+			mPools.put(name, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Get a pool which can run delayed tasks, create it on the first call.
+	 *
+	 * @throws IllegalStateException
+	 *             if the pool has been created by {@link #getExecutor(String)}
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	public synchronized ScheduledThreadPoolExecutor getScheduledExecutor(String name) {
+		ThreadPoolExecutor pool = mPools.get(name);
+		if (pool == null) {
+			ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(getThreadCount(name), newThreadFactory(name));
+			scheduled.setKeepAliveTime(KEEP_ALIVE_TIME, TimeUnit.SECONDS);
+			if (Version.hasGingerbread()) {
+				scheduled.allowCoreThreadTimeOut(true);
+			}
+			mPools.put(name, scheduled);
+			return scheduled;
+		}
+		if (!(pool instanceof ScheduledThreadPoolExecutor)) {
+			throw new IllegalStateException(name + " is not a scheduled pool");
+		}
+		return (ScheduledThreadPoolExecutor) pool;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, PoolConfig> entry : mConfigs.entrySet()) {
+			String name = entry.getKey();
+			ThreadPoolExecutor pool = mPools.get(name);
+			sb.append(String.format("%s: %s threads, priority %s", name, getThreadCount(name), entry.getValue().mPriority));
+			if (pool != null) {
+				sb.append(String.format(", %s alive, %s active, %s queued", pool.getPoolSize(), pool.getActiveCount(), pool.getQueue().size()));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private PoolConfig getConfig(String name) {
+		PoolConfig config = mConfigs.get(name);
+		if (config == null) {
+			throw new IllegalArgumentException("unknown pool: " + name);
+		}
+		return config;
+	}
+
+	private void applyThreadCounts() {
+		for (Map.Entry<String, ThreadPoolExecutor> entry : mPools.entrySet()) {
+			ThreadPoolExecutor pool = entry.getValue();
+			int threadCount = getThreadCount(entry.getKey());
+			// the maximum size may never be below the core size
+			if (threadCount > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(threadCount);
+				pool.setCorePoolSize(threadCount);
+			} else {
+				pool.setCorePoolSize(threadCount);
+				pool.setMaximumPoolSize(threadCount);
+			}
+		}
+	}
+
+	private ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Runnable prioritized = new Runnable() {
+
+					@Override
+					public void run() {
+						int priority;
+						synchronized (ExecutorRegistry.this) {
+							priority = getConfig(name).mPriority;
+						}
+						Process.setThreadPriority(priority);
+						r.run();
+					}
+				};
+				Thread t = new Thread(prioritized, "cube-" + name + "-thread-" + mThreadNumber.getAndIncrement());
+				t.setDaemon(false);
+				return t;
+			}
+		};
+	}
+}
@@ -0,0 +1,141 @@
+package com.srain.cube.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.srain.cube.util.Version;
+
+/**
+ * Deliver the completions of {@link SimpleTask} on the main thread, once per frame. This is the default
+ * {@link CompletionDispatcher}.
+ *
+ * The workers add the finished tasks to a lock-free queue; the first one after a drain schedules the next drain, on the
+ * next vsync by {@link Choreographer} since Jelly Bean, or at the next 16ms boundary by a Handler before. A drain runs
+ * {@link SimpleTask#onFinish()} until its time budget is spent, the rest rolls into the next frame, so a grid of
+ * thumbnails which finish together does not take a single frame down.
+ */
+public class FrameBatchedDispatcher implements CompletionDispatcher {
+
+	private static final long FRAME_INTERVAL = 16;
+	private static final long DEFAULT_FRAME_BUDGET = 5;
+
+	private static FrameBatchedDispatcher sInstance;
+
+	private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private volatile long mFrameBudget = DEFAULT_FRAME_BUDGET;
+
+	private final Runnable mScheduleRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			scheduleFrame();
+		}
+	};
+
+	private final Runnable mDrainRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private Object mFrameCallback;
+
+	public static synchronized FrameBatchedDispatcher getInstance() {
+		if (sInstance == null) {
+			sInstance = new FrameBatchedDispatcher();
+		}
+		return sInstance;
+	}
+
+	private FrameBatchedDispatcher() {
+	}
+
+	/**
+	 * The time, in milliseconds, the completions may take in one frame. At least one completion is delivered per frame.
+	 */
+	public void setFrameBudget(long millis) {
+		mFrameBudget = millis;
+	}
+
+	/**
+	 * Queue the completion, it will run on the main thread in the next frame with some budget left.
+	 */
+	@Override
+	public void dispatch(Runnable completion) {
+		mPending.offer(completion);
+		if (mScheduled.compareAndSet(false, true)) {
+			if (Looper.myLooper() == Looper.getMainLooper()) {
+				scheduleFrame();
+			} else {
+				mHandler.post(mScheduleRunnable);
+			}
+		}
+	}
+
+	/**
+	 * Must be called on the main thread, {@link Choreographer} is per looper.
+	 */
+	private void scheduleFrame() {
+		if (Version.hasJellyBean()) {
+			if (mFrameCallback == null) {
+				mFrameCallback = FrameCallbackHelper.create(this);
+			}
+			FrameCallbackHelper.post(mFrameCallback);
+		} else {
+			long now = SystemClock.uptimeMillis();
+			mHandler.postAtTime(mDrainRunnable, now - now % FRAME_INTERVAL + FRAME_INTERVAL);
+		}
+	}
+
+	private void drain() {
+		long deadline = SystemClock.uptimeMillis() + mFrameBudget;
+		try {
+			Runnable completion;
+			do {
+				completion = mPending.poll();
+				if (completion != null) {
+					completion.run();
+				}
+			} while (completion != null && SystemClock.uptimeMillis() < deadline);
+		} finally {
+			// a task queued after the last poll saw mScheduled set and did not schedule, so check again after
+			// clearing it; also after a completion has thrown, the flag left set would stop every later delivery
+			mScheduled.set(false);
+			if (!mPending.isEmpty() && mScheduled.compareAndSet(false, true)) {
+				scheduleFrame();
+			}
+		}
+	}
+
+	/**
+	 * Keeps {@link Choreographer} out of {@link FrameBatchedDispatcher}, so it still loads before Jelly Bean.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class FrameCallbackHelper {
+
+		private static Object create(final FrameBatchedDispatcher dispatcher) {
+			return new Choreographer.FrameCallback() {
+
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					dispatcher.drain();
+				}
+			};
+		}
+
+		private static void post(Object callback) {
+			Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.srain.cube.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An {@link Executor} which records its tasks in an {@link ExecutorInstrumentation}.
+ */
+public class InstrumentedExecutor implements Executor {
+
+	private final Executor mExecutor;
+	private final ExecutorInstrumentation mInstrumentation;
+
+	public InstrumentedExecutor(String name, Executor executor) {
+		mExecutor = executor;
+		mInstrumentation = new ExecutorInstrumentation(name);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		ExecutorInstrumentation.InstrumentedTask task = mInstrumentation.wrap(command);
+		try {
+			mExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			mInstrumentation.onRejected(task);
+			throw e;
+		}
+	}
+
+	public ExecutorInstrumentation getInstrumentation() {
+		return mInstrumentation;
+	}
+
+	public ExecutorInstrumentation.Snapshot getSnapshot() {
+		return mInstrumentation.getSnapshot();
+	}
+}
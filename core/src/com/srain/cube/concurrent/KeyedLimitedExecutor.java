@@ -0,0 +1,136 @@
+package com.srain.cube.concurrent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Run at most a few tasks of the same key at a time on a pool, for example the requests to the same host, so one slow
+ * key cannot take all the threads.
+ *
+ * The tasks which cannot start are kept in the order they were submitted. When a task is done, the first waiting task
+ * whose key is below the limit goes to the pool, whatever its key.
+ */
+public class KeyedLimitedExecutor {
+
+	private final Executor mThreadPool;
+	private final HashMap<String, Integer> mRunningCounts = new HashMap<String, Integer>();
+	private final LinkedList<KeyedTask> mWaitingTasks = new LinkedList<KeyedTask>();
+	private int mMaxPerKey;
+
+	private long mSubmittedCount;
+	private long mCompletedCount;
+	private long mDelayedCount;
+
+	private class KeyedTask implements Runnable {
+
+		private final String mKey;
+		private final Runnable mTask;
+
+		private KeyedTask(String key, Runnable task) {
+			mKey = key;
+			mTask = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mTask.run();
+			} finally {
+				onTaskDone(this);
+			}
+		}
+	}
+
+	/**
+	 * @param threadPool
+	 *            runs the tasks, it should not reject any
+	 * @param maxPerKey
+	 *            the number of tasks of the same key which may be in the pool at the same time
+	 */
+	public KeyedLimitedExecutor(Executor threadPool, int maxPerKey) {
+		mThreadPool = threadPool;
+		setMaxPerKey(maxPerKey);
+	}
+
+	/**
+	 * Change the limit, the tasks which can start under a higher limit start now.
+	 */
+	public void setMaxPerKey(int maxPerKey) {
+		if (maxPerKey < 1) {
+			throw new IllegalArgumentException("maxPerKey < 1");
+		}
+		synchronized (this) {
+			mMaxPerKey = maxPerKey;
+			promoteWaitingTasks();
+		}
+	}
+
+	public synchronized int getMaxPerKey() {
+		return mMaxPerKey;
+	}
+
+	/**
+	 * Run the task when fewer than {@link #getMaxPerKey()} tasks of the key are running.
+	 */
+	public void execute(String key, Runnable task) {
+		if (key == null || task == null) {
+			throw new NullPointerException();
+		}
+		KeyedTask keyedTask = new KeyedTask(key, task);
+		synchronized (this) {
+			mSubmittedCount++;
+			if (getRunningCount(key) >= mMaxPerKey) {
+				mDelayedCount++;
+				mWaitingTasks.offer(keyedTask);
+				return;
+			}
+			start(keyedTask);
+		}
+	}
+
+	public synchronized int getRunningCount(String key) {
+		Integer count = mRunningCounts.get(key);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * The number of tasks held back by the limit.
+	 */
+	public synchronized int getWaitingCount() {
+		return mWaitingTasks.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("submitted: %s, completed: %s, delayed by the limit: %s, waiting: %s, busy keys: %s", mSubmittedCount, mCompletedCount, mDelayedCount, mWaitingTasks.size(), mRunningCounts.size());
+	}
+
+	private void start(KeyedTask task) {
+		mRunningCounts.put(task.mKey, getRunningCount(task.mKey) + 1);
+		mThreadPool.execute(task);
+	}
+
+	private synchronized void onTaskDone(KeyedTask task) {
+		mCompletedCount++;
+		int count = getRunningCount(task.mKey) - 1;
+		if (count == 0) {
+			mRunningCounts.remove(task.mKey);
+		} else {
+			mRunningCounts.put(task.mKey, count);
+		}
+		promoteWaitingTasks();
+	}
+
+	private void promoteWaitingTasks() {
+		Iterator<KeyedTask> it = mWaitingTasks.iterator();
+		while (it.hasNext()) {
+			KeyedTask task = it.next();
+			if (getRunningCount(task.mKey) < mMaxPerKey) {
+				it.remove();
+				start(task);
+			}
+		}
+	}
+}
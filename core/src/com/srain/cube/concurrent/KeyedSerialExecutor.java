@@ -0,0 +1,155 @@
+package com.srain.cube.concurrent;
+
+import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run the tasks of the same key one after another, in the order they were submitted, and the tasks of different keys in
+ * parallel on a pool.
+ *
+ * A key has at most one task in the pool at a time. When it is done and the key has more, the key goes back to the end
+ * of the queue of the pool, so a key with a long backlog takes turns with the others instead of holding a thread.
+ */
+public class KeyedSerialExecutor implements Executor {
+
+	private static final String UNKEYED_PREFIX = "unkeyed-";
+
+	private final Executor mThreadPool;
+	private final HashMap<String, KeyQueue> mQueues = new HashMap<String, KeyQueue>();
+
+	private long mSubmittedCount;
+	private long mCompletedCount;
+	private long mWaitTimeMillis;
+	private long mMaxWaitTimeMillis;
+	private int mMaxQueueLength;
+	private final AtomicLong mUnkeyedCount = new AtomicLong();
+
+	private class KeyQueue implements Runnable {
+
+		private final String mKey;
+		private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+		private final LinkedList<Long> mSubmitTimes = new LinkedList<Long>();
+		private int mPending;
+
+		private KeyQueue(String key) {
+			mKey = key;
+		}
+
+		@Override
+		public void run() {
+			Runnable task;
+			synchronized (KeyedSerialExecutor.this) {
+				task = mTasks.poll();
+				long wait = System.currentTimeMillis() - mSubmitTimes.poll();
+				mWaitTimeMillis += wait;
+				mMaxWaitTimeMillis = Math.max(mMaxWaitTimeMillis, wait);
+			}
+			try {
+				task.run();
+			} finally {
+				synchronized (KeyedSerialExecutor.this) {
+					mCompletedCount++;
+					mPending--;
+					if (mTasks.isEmpty()) {
+						mQueues.remove(mKey);
+					} else {
+						mThreadPool.execute(this);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param threadPool
+	 *            runs the tasks, as many keys at the same time as it has threads
+	 */
+	public KeyedSerialExecutor(Executor threadPool) {
+		mThreadPool = threadPool;
+	}
+
+	/**
+	 * Run the task after the tasks submitted before with the same key.
+	 */
+	public void execute(String key, Runnable task) {
+		if (key == null || task == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			mSubmittedCount++;
+			KeyQueue queue = mQueues.get(key);
+			boolean idle = queue == null;
+			if (idle) {
+				queue = new KeyQueue(key);
+				mQueues.put(key, queue);
+			}
+			queue.mTasks.offer(task);
+			queue.mPending++;
+			queue.mSubmitTimes.offer(System.currentTimeMillis());
+			mMaxQueueLength = Math.max(mMaxQueueLength, queue.mTasks.size());
+			if (idle) {
+				mThreadPool.execute(queue);
+			}
+		}
+	}
+
+	/**
+	 * Run the task without ordering it against any other.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		execute(UNKEYED_PREFIX + mUnkeyedCount.getAndIncrement(), task);
+	}
+
+	/**
+	 * The number of tasks submitted but not done yet, of all keys.
+	 */
+	public synchronized int getPendingCount() {
+		return (int) (mSubmittedCount - mCompletedCount);
+	}
+
+	/**
+	 * The number of tasks submitted but not done yet for the key.
+	 */
+	public synchronized int getPendingCount(String key) {
+		KeyQueue queue = mQueues.get(key);
+		return queue == null ? 0 : queue.mPending;
+	}
+
+	public synchronized int getActiveKeyCount() {
+		return mQueues.size();
+	}
+
+	public synchronized long getSubmittedCount() {
+		return mSubmittedCount;
+	}
+
+	public synchronized long getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	/**
+	 * The time the tasks waited between their submission and their start, in total and at most.
+	 */
+	public synchronized long getWaitTimeMillis() {
+		return mWaitTimeMillis;
+	}
+
+	public synchronized long getMaxWaitTimeMillis() {
+		return mMaxWaitTimeMillis;
+	}
+
+	/**
+	 * The longest backlog a key has had.
+	 */
+	public synchronized int getMaxQueueLength() {
+		return mMaxQueueLength;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("submitted: %s, completed: %s, active keys: %s, wait: %sms (max %sms), max queue: %s", mSubmittedCount, mCompletedCount, mQueues.size(), mWaitTimeMillis, mMaxWaitTimeMillis, mMaxQueueLength);
+	}
+}
@@ -0,0 +1,76 @@
+package com.srain.cube.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count durations in power of two buckets of microseconds, without a lock: bucket i counts the durations of less than
+ * 2^i us, which are not in bucket i - 1. The last bucket takes everything longer, about 35 minutes.
+ */
+public class LatencyHistogram {
+
+	public static final int BUCKET_COUNT = 32;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mTotalNanos = new AtomicLong();
+	private final AtomicLong mMaxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : Math.min(BUCKET_COUNT - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+		mBuckets.incrementAndGet(bucket);
+		mTotalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+			// another thread raised the max, check again
+		}
+	}
+
+	/**
+	 * The counts of the buckets. The buckets are read one by one, so the snapshot may miss the durations recorded while
+	 * it is taken.
+	 */
+	public long[] getBuckets() {
+		long[] buckets = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = mBuckets.get(i);
+		}
+		return buckets;
+	}
+
+	public long getTotalNanos() {
+		return mTotalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return mMaxNanos.get();
+	}
+
+	/**
+	 * The upper bound, in microseconds, of the bucket where the percentile falls.
+	 *
+	 * @param percentile
+	 *            in (0, 100]
+	 */
+	public static long getPercentileMicros(long[] buckets, double percentile) {
+		long count = 0;
+		for (long c : buckets) {
+			count += c;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (buckets.length - 1);
+	}
+}
@@ -0,0 +1,458 @@
+package com.srain.cube.concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A work queue for a {@link java.util.concurrent.ThreadPoolExecutor} which takes no lock, unbounded unless a
+ * {@link #setCapacity(int, OverflowPolicy) capacity} is set.
+ *
+ * In first in first out order the tasks are kept in a {@link ConcurrentLinkedQueue}, in last in first out order in a
+ * Treiber stack; both are updated by compare and set only, so the thread which submits a task never waits for the
+ * workers which take them. The order can be changed at any time: the tasks offered before are taken after those of the
+ * current order.
+ *
+ * Idle workers push themselves on a stack of waiters and park. A producer wakes up one of them after each offer, and
+ * only if there is one, so a busy pool pays nothing for the wake up.
+ */
+public class LockFreeTaskQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	/**
+	 * Polls before parking: a task often follows shortly, and parking and unparking cost a system call each. Useless on
+	 * a single core.
+	 */
+	private static final int MAX_SPINS = Runtime.getRuntime().availableProcessors() < 2 ? 0 : 64;
+
+	private final ConcurrentLinkedQueue<E> mQueue = new ConcurrentLinkedQueue<E>();
+	private final AtomicReference<Node<E>> mStack = new AtomicReference<Node<E>>();
+	private final AtomicReference<Waiter> mWaiters = new AtomicReference<Waiter>();
+
+	/** Raised before a task is added and lowered after one is taken, so it is never lower than the number of tasks. */
+	private final AtomicInteger mCount = new AtomicInteger();
+
+	private volatile boolean mLastInFirstOut;
+	private volatile int mCapacity = Integer.MAX_VALUE;
+	private volatile OverflowPolicy<E> mOverflowPolicy;
+
+	/**
+	 * Decide which task gives way when a task is offered to a full queue.
+	 */
+	public interface OverflowPolicy<E> {
+
+		/**
+		 * @param queued
+		 *            a snapshot of the queue, the oldest task first
+		 * @return a task of {@code queued} to remove, {@code incoming} to drop the new task, or null to keep everything
+		 * and let the queue grow past its capacity
+		 */
+		public E selectVictim(List<E> queued, E incoming);
+
+		/**
+		 * The task selected by {@link #selectVictim(List, Object)} is out of the queue and will not run. Called in the
+		 * thread which offered the new task.
+		 */
+		public void onDropped(E dropped);
+	}
+
+	/**
+	 * A task in the stack. It is claimed by setting the value to null, so a task which is removed from the middle of
+	 * the stack is only skipped by the next pops.
+	 */
+	private static class Node<E> extends AtomicReference<E> {
+
+		private static final long serialVersionUID = 1L;
+		private final Node<E> mNext;
+
+		private Node(E item, Node<E> next) {
+			super(item);
+			mNext = next;
+		}
+	}
+
+	/**
+	 * An idle thread. The thread is set to null when it is woken up or gives up, whichever comes first.
+	 */
+	private static class Waiter extends AtomicReference<Thread> {
+
+		private static final long serialVersionUID = 1L;
+		private Waiter mNext;
+
+		private Waiter(Thread thread) {
+			super(thread);
+		}
+	}
+
+	public LockFreeTaskQueue() {
+		this(false);
+	}
+
+	public LockFreeTaskQueue(boolean lastInFirstOut) {
+		mLastInFirstOut = lastInFirstOut;
+	}
+
+	public void setLastInFirstOut(boolean lastInFirstOut) {
+		mLastInFirstOut = lastInFirstOut;
+	}
+
+	public boolean isLastInFirstOut() {
+		return mLastInFirstOut;
+	}
+
+	/**
+	 * Bound the queue: a task offered while {@code capacity} tasks are queued makes the policy drop one task, the new
+	 * one or a queued one. The offer always succeeds, so the executor never rejects a task; the dropped task is handed
+	 * to {@link OverflowPolicy#onDropped(Object)} instead.
+	 *
+	 * The size is checked without a lock, producers offering at the same time may each pass the capacity by one task.
+	 *
+	 * @param policy
+	 *            null to make the queue unbounded again
+	 */
+	public void setCapacity(int capacity, OverflowPolicy<E> policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity < 1");
+		}
+		mOverflowPolicy = policy;
+		mCapacity = policy == null ? Integer.MAX_VALUE : capacity;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		OverflowPolicy<E> policy = mOverflowPolicy;
+		if (policy != null && mCount.get() >= mCapacity) {
+			E victim = policy.selectVictim(getOldestFirst(), e);
+			if (victim == e) {
+				policy.onDropped(e);
+				return true;
+			}
+			// a worker may have taken it meanwhile, then there is room anyway
+			if (victim != null && remove(victim)) {
+				policy.onDropped(victim);
+			}
+		}
+		mCount.incrementAndGet();
+		if (mLastInFirstOut) {
+			push(e);
+		} else {
+			mQueue.offer(e);
+		}
+		signalWaiter();
+		return true;
+	}
+
+	@Override
+	public void put(E e) {
+		offer(e);
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) {
+		return offer(e);
+	}
+
+	@Override
+	public E poll() {
+		E e;
+		if (mLastInFirstOut) {
+			e = pop();
+			if (e == null) {
+				e = mQueue.poll();
+			}
+		} else {
+			e = mQueue.poll();
+			if (e == null) {
+				e = pop();
+			}
+		}
+		if (e != null) {
+			mCount.decrementAndGet();
+		}
+		return e;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		return await(false, 0);
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return await(true, unit.toNanos(timeout));
+	}
+
+	@Override
+	public E peek() {
+		E e = peekStack();
+		E first = mQueue.peek();
+		if (mLastInFirstOut) {
+			return e != null ? e : first;
+		}
+		return first != null ? first : e;
+	}
+
+	@Override
+	public int size() {
+		return Math.max(0, mCount.get());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		int capacity = mCapacity;
+		if (capacity == Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		return Math.max(0, capacity - size());
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (o == null) {
+			return false;
+		}
+		boolean removed = mQueue.remove(o);
+		if (!removed) {
+			for (Node<E> node = mStack.get(); node != null; node = node.mNext) {
+				E e = node.get();
+				if (o.equals(e) && node.compareAndSet(e, null)) {
+					removed = true;
+					break;
+				}
+			}
+		}
+		if (removed) {
+			mCount.decrementAndGet();
+		}
+		return removed;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		int n = 0;
+		E e;
+		while (n < maxElements && (e = poll()) != null) {
+			c.add(e);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * A weakly consistent snapshot, in the order the tasks would be taken.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		ArrayList<E> stack = new ArrayList<E>();
+		for (Node<E> node = mStack.get(); node != null; node = node.mNext) {
+			E e = node.get();
+			if (e != null) {
+				stack.add(e);
+			}
+		}
+		final ArrayList<E> snapshot = new ArrayList<E>(stack.size() + mQueue.size());
+		if (mLastInFirstOut) {
+			snapshot.addAll(stack);
+			snapshot.addAll(mQueue);
+		} else {
+			snapshot.addAll(mQueue);
+			snapshot.addAll(stack);
+		}
+		return new Iterator<E>() {
+
+			private final Iterator<E> mIterator = snapshot.iterator();
+			private E mLast;
+
+			@Override
+			public boolean hasNext() {
+				return mIterator.hasNext();
+			}
+
+			@Override
+			public E next() {
+				mLast = mIterator.next();
+				return mLast;
+			}
+
+			@Override
+			public void remove() {
+				if (mLast == null) {
+					throw new IllegalStateException();
+				}
+				LockFreeTaskQueue.this.remove(mLast);
+				mLast = null;
+			}
+		};
+	}
+
+	/**
+	 * The tasks in the order they were offered, as far as it is known: the order is kept inside the queue and inside
+	 * the stack, the tasks of the queue are taken as the older ones.
+	 */
+	private List<E> getOldestFirst() {
+		ArrayList<E> tasks = new ArrayList<E>(mQueue);
+		int queueSize = tasks.size();
+		for (Node<E> node = mStack.get(); node != null; node = node.mNext) {
+			E e = node.get();
+			if (e != null) {
+				tasks.add(queueSize, e);
+			}
+		}
+		return tasks;
+	}
+
+	private void push(E e) {
+		while (true) {
+			Node<E> head = mStack.get();
+			if (mStack.compareAndSet(head, new Node<E>(e, head))) {
+				return;
+			}
+		}
+	}
+
+	private E pop() {
+		while (true) {
+			Node<E> head = mStack.get();
+			if (head == null) {
+				return null;
+			}
+			if (mStack.compareAndSet(head, head.mNext)) {
+				E e = head.getAndSet(null);
+				if (e != null) {
+					return e;
+				}
+				// removed while it was in the stack
+			}
+		}
+	}
+
+	private E peekStack() {
+		for (Node<E> node = mStack.get(); node != null; node = node.mNext) {
+			E e = node.get();
+			if (e != null) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Take a task, parking until one is offered.
+	 *
+	 * The waiter is published before the queue is checked once more, so a task offered in between is either found by
+	 * the check, or its producer finds the waiter.
+	 */
+	private E await(boolean timed, long nanos) throws InterruptedException {
+		E e = poll();
+		for (int spins = MAX_SPINS; e == null && spins > 0; spins--) {
+			e = poll();
+		}
+		if (e != null) {
+			return e;
+		}
+		long deadline = timed ? System.nanoTime() + nanos : 0;
+		Thread thread = Thread.currentThread();
+		while (true) {
+			Waiter waiter = new Waiter(thread);
+			pushWaiter(waiter);
+
+			e = poll();
+			if (e == null) {
+				while (waiter.get() != null) {
+					if (thread.isInterrupted()) {
+						break;
+					}
+					if (timed) {
+						nanos = deadline - System.nanoTime();
+						if (nanos <= 0) {
+							break;
+						}
+						LockSupport.parkNanos(this, nanos);
+					} else {
+						LockSupport.park(this);
+					}
+				}
+			}
+
+			if (!waiter.compareAndSet(thread, null)) {
+				// woken up by a producer: take its task, or pass the signal on
+				if (e == null) {
+					e = poll();
+				}
+				if (e != null && !isEmpty()) {
+					signalWaiter();
+				}
+			}
+			if (e != null) {
+				return e;
+			}
+			if (Thread.interrupted()) {
+				if (!isEmpty()) {
+					signalWaiter();
+				}
+				throw new InterruptedException();
+			}
+			if (timed && deadline - System.nanoTime() <= 0) {
+				return null;
+			}
+		}
+	}
+
+	private void pushWaiter(Waiter waiter) {
+		while (true) {
+			Waiter head = mWaiters.get();
+			Waiter next = head;
+			// drop the waiters which gave up, so an idle pool does not pile them up
+			while (next != null && next.get() == null) {
+				next = next.mNext;
+			}
+			waiter.mNext = next;
+			if (mWaiters.compareAndSet(head, waiter)) {
+				return;
+			}
+		}
+	}
+
+	private void signalWaiter() {
+		while (true) {
+			Waiter head = mWaiters.get();
+			if (head == null) {
+				return;
+			}
+			if (mWaiters.compareAndSet(head, head.mNext)) {
+				Thread thread = head.get();
+				if (thread != null && head.compareAndSet(thread, null)) {
+					LockSupport.unpark(thread);
+					return;
+				}
+			}
+		}
+	}
+}
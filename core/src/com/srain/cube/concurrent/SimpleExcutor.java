@@ -1,37 +1,25 @@
 package com.srain.cube.concurrent;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import com.srain.cube.util.Version;
-
-import android.annotation.TargetApi;
-import android.os.Build;
-
 /**
  * 
- * Use a Thead pool to manager the thread.
+ * Run the background work of the library, on a {@link KeyedSerialExecutor} over the
+ * {@link ExecutorRegistry#POOL_BACKGROUND} pool: the tasks of the same key are run in order, the others in parallel on
+ * a few threads.
  * 
  * @author huqiu.lhq
  * 
  */
 public class SimpleExcutor {
 
-	private static final TimeUnit KEEP_ALIVE_TIME_UNIT;
-	private static final int KEEP_ALIVE_TIME = 1;
+	/** The key of the tasks submitted without one, they are still run one after another. */
+	private static final String DEFAULT_KEY = "default";
 
 	private static SimpleExcutor sInstance = null;
 
-	private final ThreadPoolExecutor mThreadPool;
-	private final BlockingQueue<Runnable> mTaskWorkQueue;
+	private final KeyedSerialExecutor mExecutor;
+	private final ExecutorInstrumentation mInstrumentation = new ExecutorInstrumentation(ExecutorRegistry.POOL_BACKGROUND);
 
 	static {
-
-		KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
 		sInstance = new SimpleExcutor();
 	}
 
@@ -39,43 +27,30 @@ public class SimpleExcutor {
 		return sInstance;
 	}
 
-	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
 	private SimpleExcutor() {
-		mTaskWorkQueue = new LinkedBlockingQueue<Runnable>();
-		mThreadPool = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, mTaskWorkQueue, new DefaultThreadFactory());
-		if (Version.hasGingerbread()) {
-			mThreadPool.allowCoreThreadTimeOut(true);
-		}
+		mExecutor = new KeyedSerialExecutor(ExecutorRegistry.getInstance().getExecutor(ExecutorRegistry.POOL_BACKGROUND));
+	}
+
+	public void execute(Runnable runnable) {
+		execute(DEFAULT_KEY, runnable);
 	}
 
 	/**
-	 * The default thread factory
+	 * Run the task after the tasks submitted before with the same key, in parallel with the tasks of other keys.
 	 */
-	static class DefaultThreadFactory implements ThreadFactory {
-		private static final AtomicInteger poolNumber = new AtomicInteger(1);
-		private static final String sPre = "simple-excutor-pool-";
-		private static final String sPost = "-thread-";
-		private final ThreadGroup group;
-		private final AtomicInteger threadNumber = new AtomicInteger(1);
-		private final String namePrefix;
-
-		DefaultThreadFactory() {
-			SecurityManager s = System.getSecurityManager();
-			group = (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
-			namePrefix = sPre + poolNumber.getAndIncrement() + sPost;
-		}
+	public void execute(String key, Runnable runnable) {
+		// the wait includes the time behind the tasks of the same key
+		mExecutor.execute(key, mInstrumentation.wrap(runnable));
+	}
 
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(group, r, namePrefix + threadNumber.getAndIncrement(), 0);
-			if (t.isDaemon())
-				t.setDaemon(false);
-			if (t.getPriority() != Thread.NORM_PRIORITY)
-				t.setPriority(Thread.NORM_PRIORITY);
-			return t;
-		}
+	/**
+	 * How long the tasks wait and run, by task class, and how many are queued.
+	 */
+	public ExecutorInstrumentation.Snapshot getStats() {
+		return mInstrumentation.getSnapshot();
 	}
 
-	public void execute(Runnable runnable) {
-		mThreadPool.execute(runnable);
+	public KeyedSerialExecutor getExecutor() {
+		return mExecutor;
 	}
 }
\ No newline at end of file
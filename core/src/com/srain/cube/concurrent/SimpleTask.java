@@ -2,8 +2,7 @@ package com.srain.cube.concurrent;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
-import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 
 /**
  * A class which encapsulate a task that can execute in background thread and can be cancelled.
@@ -17,10 +16,32 @@ public abstract class SimpleTask implements Runnable {
 	private static final int STATE_COMPLETING = 0x04;
 	private static final int STATE_CANCELLED = 0x08;
 
-	private static final int TASK_DONE = 0x01;
-	private static InternalHandler sHandler = new InternalHandler();
 	private Thread mCurrenThread;
 	private AtomicInteger mState = new AtomicInteger(STATE_NEW);
+	private CompletionDispatcher mCompletionDispatcher;
+	private SimpleTask mContinuation;
+	private volatile long mDeadline;
+	private volatile boolean mExpired;
+
+	private final Runnable mFinishRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			mState.set(STATE_COMPLETING);
+			onFinish();
+		}
+	};
+
+	private final Runnable mExpireRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			if (mContinuation != null) {
+				mContinuation.cancel(false);
+			}
+			onCancel();
+		}
+	};
 
 	/**
 	 * A worker will execute this method in a background thread
@@ -28,7 +49,8 @@ public abstract class SimpleTask implements Runnable {
 	public abstract void doInBackground();
 
 	/**
-	 * will be called after doInBackground();
+	 * will be called after doInBackground(), by the {@link CompletionDispatcher} of the task: by default on the main
+	 * thread, batched with the other tasks which finish in the same frame by {@link FrameBatchedDispatcher}.
 	 */
 	public abstract void onFinish();
 
@@ -38,21 +60,101 @@ public abstract class SimpleTask implements Runnable {
 	protected void onCancel() {
 	}
 
+	/**
+	 * Set where {@link #onFinish()} runs, the main thread if not set.
+	 */
+	public SimpleTask setCompletionDispatcher(CompletionDispatcher dispatcher) {
+		mCompletionDispatcher = dispatcher;
+		return this;
+	}
+
+	/**
+	 * Run {@code next} in the same worker thread once this task is done in background, without going through the
+	 * executor again. The continuation is cancelled with this task.
+	 * 
+	 * @return {@code next}, so the calls can be chained
+	 */
+	public SimpleTask then(SimpleTask next) {
+		if (mContinuation != null) {
+			throw new IllegalStateException("the task already has a continuation");
+		}
+		mContinuation = next;
+		return next;
+	}
+
+	/**
+	 * Give up the task if it has not started by then: it is cancelled when a worker takes it, and {@link #onCancel()}
+	 * is called by the {@link CompletionDispatcher} instead of {@link #onFinish()}.
+	 * 
+	 * @param uptimeMillis
+	 *            in the time base of {@link SystemClock#uptimeMillis()}, 0 for no deadline
+	 */
+	public SimpleTask setDeadline(long uptimeMillis) {
+		mDeadline = uptimeMillis;
+		return this;
+	}
+
+	public long getDeadline() {
+		return mDeadline;
+	}
+
+	/**
+	 * Whether the deadline is set and has passed, the task may still be waiting in a queue.
+	 */
+	public boolean isPastDeadline() {
+		long deadline = mDeadline;
+		return deadline != 0 && SystemClock.uptimeMillis() > deadline;
+	}
+
+	/**
+	 * Whether the task has been cancelled because it was taken after its deadline.
+	 */
+	public boolean isExpired() {
+		return mExpired;
+	}
+
 	/**
 	 * Restart the task, just set the state to {@link STATE_NEW}
 	 */
 	public void restart() {
+		mExpired = false;
 		mState.set(STATE_NEW);
 	}
 
+	/**
+	 * Cancel the task if it has not started and its deadline has passed. A subclass whose deadline can be extended
+	 * overrides this to decide under the lock it extends the deadline with.
+	 * 
+	 * @return whether the task has been cancelled by this call
+	 */
+	protected boolean expire() {
+		return isPastDeadline() && mState.compareAndSet(STATE_NEW, STATE_CANCELLED);
+	}
+
 	@Override
 	public void run() {
+		if (expire()) {
+			mExpired = true;
+			getCompletionDispatcher().dispatch(mExpireRunnable);
+			return;
+		}
 		if (!mState.compareAndSet(STATE_NEW, STATE_RUNNING)) {
 			return;
 		}
 		mCurrenThread = Thread.currentThread();
 		doInBackground();
-		sHandler.obtainMessage(TASK_DONE, this).sendToTarget();
+		getCompletionDispatcher().dispatch(mFinishRunnable);
+		if (mContinuation != null && !isCancelled()) {
+			mContinuation.run();
+		}
+	}
+
+	private CompletionDispatcher getCompletionDispatcher() {
+		CompletionDispatcher dispatcher = mCompletionDispatcher;
+		if (dispatcher == null) {
+			dispatcher = FrameBatchedDispatcher.getInstance();
+		}
+		return dispatcher;
 	}
 
 	/**
@@ -68,8 +170,12 @@ public abstract class SimpleTask implements Runnable {
 
 	public void cancel(boolean mayInterruptIfRunning) {
 		if (mState.get() >= STATE_COMPLETING) {
+			// a completed task keeps its continuation
 			return;
 		} else {
+			if (mContinuation != null) {
+				mContinuation.cancel(mayInterruptIfRunning);
+			}
 			if (mState.get() == STATE_RUNNING && mayInterruptIfRunning && null != mCurrenThread) {
 				try {
 					mCurrenThread.interrupt();
@@ -80,19 +186,4 @@ public abstract class SimpleTask implements Runnable {
 			onCancel();
 		}
 	}
-
-	private static class InternalHandler extends Handler {
-		@Override
-		public void handleMessage(Message msg) {
-			SimpleTask work = (SimpleTask) msg.obj;
-			switch (msg.what) {
-			case TASK_DONE:
-				work.mState.set(STATE_COMPLETING);
-				work.onFinish();
-				break;
-			default:
-				break;
-			}
-		}
-	}
 }
\ No newline at end of file
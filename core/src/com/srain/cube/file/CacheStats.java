@@ -0,0 +1,57 @@
+package com.srain.cube.file;
+
+import java.util.Map;
+
+/**
+ * A snapshot of the counters of a cache, reported by {@link DiskLruCache#getStats()} and by the caches built on top of
+ * it. The counters are totals since the cache was created; a field which does not apply to a cache is 0.
+ */
+public class CacheStats {
+
+	/** The bytes stored, the limit, and the number of entries. */
+	public long size;
+	public long maxSize;
+	public long entryCount;
+
+	/** The reads which found a value, and those which did not. */
+	public long hitCount;
+	public long missCount;
+
+	/** The values written, and their total length. */
+	public long insertCount;
+	public long insertBytes;
+
+	/** The entries dropped to respect the maximum size or because they expired. */
+	public long evictCount;
+	public long evictBytes;
+
+	/** The entries removed by the client. */
+	public long removeCount;
+	public long removeBytes;
+
+	/** The journal records which do not describe the current state, and the rebuilds which drop them. */
+	public long journalRedundantOpCount;
+	public long journalRebuildCount;
+	public long journalRebuildTimeMillis;
+	public long lastJournalRebuildTimeMillis;
+
+	/** The time reads and edits waited for the lock of the cache, in total and at most. */
+	public long lockWaitTimeNanos;
+	public long maxLockWaitTimeNanos;
+
+	/**
+	 * The number of entries per key prefix and size class, if requested. Index i of the array counts the entries of up
+	 * to 2^i bytes which are larger than 2^(i-1) bytes.
+	 */
+	public Map<String, long[]> sizeHistogram;
+
+	public float getHitRate() {
+		long requests = hitCount + missCount;
+		return requests == 0 ? 0 : (float) hitCount / requests;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("size: %s/%s, entries: %s, hit: %s, miss: %s, insert: %s (%s B), evict: %s (%s B), remove: %s (%s B), journal rebuild: %s (%s ms), lock wait: %s us (max %s us)", size, maxSize, entryCount, hitCount, missCount, insertCount, insertBytes, evictCount, evictBytes, removeCount, removeBytes, journalRebuildCount, journalRebuildTimeMillis, lockWaitTimeNanos / 1000, maxLockWaitTimeNanos / 1000);
+	}
+}
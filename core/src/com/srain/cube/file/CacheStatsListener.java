@@ -0,0 +1,9 @@
+package com.srain.cube.file;
+
+/**
+ * Receives the {@link CacheStats} of a cache periodically.
+ */
+public interface CacheStatsListener {
+
+	public void onCacheStats(CacheStats stats);
+}
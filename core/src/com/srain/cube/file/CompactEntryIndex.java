@@ -0,0 +1,375 @@
+package com.srain.cube.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The index of the published entries of a {@link DiskLruCache}, kept in primitive arrays instead of an object per
+ * entry.
+ *
+ * Keys of 32 lower case hex digits, like the MD5 keys of the image cache, are stored losslessly as two longs; only
+ * other keys keep their String. A slot is found by an open addressing hash table of ints, and the least recently used
+ * order is a doubly linked list of slot numbers. With 100k entries this takes about a third of the heap of a map of
+ * entry objects, and the garbage collector has a handful of arrays to trace instead of several objects per entry.
+ *
+ * The index is also the least recently used eviction policy of the cache, so it does not need a second map of the keys.
+ */
+final class CompactEntryIndex implements EvictionPolicy {
+
+	private static final int NONE = -1;
+	private static final int MIN_CAPACITY = 16;
+	private static final int HEX_KEY_LENGTH = 32;
+
+	private final int mValueCount;
+
+	private long[] mKeyHigh;
+	private long[] mKeyLow;
+	/** The keys which are not hex digits, null for the others. */
+	private String[] mOtherKeys;
+
+	private long[] mLengths;
+	private long[] mSequenceNumbers;
+	private long[] mExpiresAt;
+	private long[] mJournalTimes;
+
+	/** Least recently used first. Free slots are chained by {@link #mNext}. */
+	private int[] mPrev;
+	private int[] mNext;
+	private int mHead = NONE;
+	private int mTail = NONE;
+	private int mFree = NONE;
+	private int mUsed;
+	private int mSize;
+
+	/** Slot + 1 for each used bucket, 0 for an empty one. */
+	private int[] mTable;
+
+	private long mLookupHigh;
+	private long mLookupLow;
+
+	CompactEntryIndex(int valueCount) {
+		mValueCount = valueCount;
+		allocate(MIN_CAPACITY);
+		mTable = new int[MIN_CAPACITY * 2];
+	}
+
+	/**
+	 * Return the slot of the key, or -1 if it is not in the index.
+	 */
+	int find(String key) {
+		String other = parseKey(key);
+		int mask = mTable.length - 1;
+		for (int i = hash(mLookupHigh, mLookupLow, other) & mask;; i = (i + 1) & mask) {
+			int slot = mTable[i] - 1;
+			if (slot == NONE) {
+				return NONE;
+			}
+			if (matches(slot, other)) {
+				return slot;
+			}
+		}
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * The least recently used slot, -1 if the index is empty.
+	 */
+	int first() {
+		return mHead;
+	}
+
+	/**
+	 * The slot used after {@code slot}, -1 at the end.
+	 */
+	int next(int slot) {
+		return mNext[slot];
+	}
+
+	String key(int slot) {
+		String other = mOtherKeys[slot];
+		return other != null ? other : toHex(mKeyHigh[slot]) + toHex(mKeyLow[slot]);
+	}
+
+	long length(int slot, int index) {
+		return mLengths[slot * mValueCount + index];
+	}
+
+	long sequenceNumber(int slot) {
+		return mSequenceNumbers[slot];
+	}
+
+	long expiresAt(int slot) {
+		return mExpiresAt[slot];
+	}
+
+	long journalTime(int slot) {
+		return mJournalTimes[slot];
+	}
+
+	void store(int slot, long[] lengths, long sequenceNumber, long expiresAt, long journalTime) {
+		System.arraycopy(lengths, 0, mLengths, slot * mValueCount, mValueCount);
+		mSequenceNumbers[slot] = sequenceNumber;
+		mExpiresAt[slot] = expiresAt;
+		mJournalTimes[slot] = journalTime;
+	}
+
+	@Override
+	public void onWrite(String key, long size) {
+		int slot = find(key);
+		if (slot == NONE) {
+			insert(key);
+		} else {
+			moveToTail(slot);
+		}
+	}
+
+	@Override
+	public void onRead(String key) {
+		int slot = find(key);
+		if (slot != NONE) {
+			moveToTail(slot);
+		}
+	}
+
+	@Override
+	public void onRemove(String key) {
+		String other = parseKey(key);
+		int mask = mTable.length - 1;
+		for (int i = hash(mLookupHigh, mLookupLow, other) & mask;; i = (i + 1) & mask) {
+			int slot = mTable[i] - 1;
+			if (slot == NONE) {
+				return;
+			}
+			if (matches(slot, other)) {
+				deleteBucket(i);
+				unlink(slot);
+				mOtherKeys[slot] = null;
+				mNext[slot] = mFree;
+				mFree = slot;
+				mSize--;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String nextVictim() {
+		return mHead == NONE ? null : key(mHead);
+	}
+
+	@Override
+	public List<String> keys() {
+		ArrayList<String> keys = new ArrayList<String>(mSize);
+		for (int slot = mHead; slot != NONE; slot = mNext[slot]) {
+			keys.add(key(slot));
+		}
+		return keys;
+	}
+
+	private void insert(String key) {
+		if ((mSize + 1) * 4 > mTable.length * 3) {
+			rehash(mTable.length * 2);
+		}
+		int slot;
+		if (mFree != NONE) {
+			slot = mFree;
+			mFree = mNext[slot];
+		} else {
+			if (mUsed == mKeyHigh.length) {
+				allocate(mUsed * 2);
+			}
+			slot = mUsed++;
+		}
+		String other = parseKey(key);
+		mKeyHigh[slot] = mLookupHigh;
+		mKeyLow[slot] = mLookupLow;
+		mOtherKeys[slot] = other;
+		Arrays.fill(mLengths, slot * mValueCount, (slot + 1) * mValueCount, 0);
+		mSequenceNumbers[slot] = 0;
+		mExpiresAt[slot] = 0;
+		mJournalTimes[slot] = 0;
+
+		int mask = mTable.length - 1;
+		int i = hash(mLookupHigh, mLookupLow, other) & mask;
+		while (mTable[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		mTable[i] = slot + 1;
+		mSize++;
+
+		mPrev[slot] = mTail;
+		mNext[slot] = NONE;
+		if (mTail == NONE) {
+			mHead = slot;
+		} else {
+			mNext[mTail] = slot;
+		}
+		mTail = slot;
+	}
+
+	private void moveToTail(int slot) {
+		if (slot == mTail) {
+			return;
+		}
+		unlink(slot);
+		mPrev[slot] = mTail;
+		mNext[slot] = NONE;
+		if (mTail == NONE) {
+			mHead = slot;
+		} else {
+			mNext[mTail] = slot;
+		}
+		mTail = slot;
+	}
+
+	private void unlink(int slot) {
+		int prev = mPrev[slot];
+		int next = mNext[slot];
+		if (prev == NONE) {
+			mHead = next;
+		} else {
+			mNext[prev] = next;
+		}
+		if (next == NONE) {
+			mTail = prev;
+		} else {
+			mPrev[next] = prev;
+		}
+	}
+
+	/**
+	 * Linear probing deletion: shift the following buckets back, so no lookup stops at the hole.
+	 */
+	private void deleteBucket(int hole) {
+		int mask = mTable.length - 1;
+		int i = hole;
+		while (true) {
+			i = (i + 1) & mask;
+			int bucket = mTable[i];
+			if (bucket == 0) {
+				break;
+			}
+			int home = hashOfSlot(bucket - 1) & mask;
+			boolean stays = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+			if (!stays) {
+				mTable[hole] = bucket;
+				hole = i;
+			}
+		}
+		mTable[hole] = 0;
+	}
+
+	private void rehash(int tableLength) {
+		int[] table = new int[tableLength];
+		int mask = tableLength - 1;
+		for (int slot = mHead; slot != NONE; slot = mNext[slot]) {
+			int i = hashOfSlot(slot) & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = slot + 1;
+		}
+		mTable = table;
+	}
+
+	private void allocate(int capacity) {
+		mKeyHigh = grow(mKeyHigh, capacity);
+		mKeyLow = grow(mKeyLow, capacity);
+		mSequenceNumbers = grow(mSequenceNumbers, capacity);
+		mExpiresAt = grow(mExpiresAt, capacity);
+		mJournalTimes = grow(mJournalTimes, capacity);
+		mLengths = grow(mLengths, capacity * mValueCount);
+
+		String[] otherKeys = new String[capacity];
+		int[] prev = new int[capacity];
+		int[] next = new int[capacity];
+		if (mOtherKeys != null) {
+			System.arraycopy(mOtherKeys, 0, otherKeys, 0, mOtherKeys.length);
+			System.arraycopy(mPrev, 0, prev, 0, mPrev.length);
+			System.arraycopy(mNext, 0, next, 0, mNext.length);
+		}
+		mOtherKeys = otherKeys;
+		mPrev = prev;
+		mNext = next;
+	}
+
+	private static long[] grow(long[] array, int length) {
+		long[] grown = new long[length];
+		if (array != null) {
+			System.arraycopy(array, 0, grown, 0, array.length);
+		}
+		return grown;
+	}
+
+	private boolean matches(int slot, String other) {
+		if (other != null) {
+			return other.equals(mOtherKeys[slot]);
+		}
+		return mOtherKeys[slot] == null && mKeyHigh[slot] == mLookupHigh && mKeyLow[slot] == mLookupLow;
+	}
+
+	private int hashOfSlot(int slot) {
+		return hash(mKeyHigh[slot], mKeyLow[slot], mOtherKeys[slot]);
+	}
+
+	private static int hash(long high, long low, String other) {
+		int h;
+		if (other != null) {
+			h = other.hashCode();
+		} else {
+			long x = high * 0x9e3779b97f4a7c15L + low;
+			h = (int) (x ^ (x >>> 32));
+		}
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+	/**
+	 * Parse a hex key into {@link #mLookupHigh} and {@link #mLookupLow}.
+	 *
+	 * @return null if the key is hex, the key itself otherwise
+	 */
+	private String parseKey(String key) {
+		mLookupHigh = 0;
+		mLookupLow = 0;
+		if (key.length() != HEX_KEY_LENGTH) {
+			return key;
+		}
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < HEX_KEY_LENGTH; i++) {
+			char c = key.charAt(i);
+			int digit;
+			if (c >= '0' && c <= '9') {
+				digit = c - '0';
+			} else if (c >= 'a' && c <= 'f') {
+				digit = c - 'a' + 10;
+			} else {
+				return key;
+			}
+			if (i < HEX_KEY_LENGTH / 2) {
+				high = (high << 4) | digit;
+			} else {
+				low = (low << 4) | digit;
+			}
+		}
+		mLookupHigh = high;
+		mLookupLow = low;
+		return null;
+	}
+
+	private static String toHex(long value) {
+		char[] chars = new char[HEX_KEY_LENGTH / 2];
+		for (int i = chars.length - 1; i >= 0; i--) {
+			chars[i] = Character.forDigit((int) (value & 0xf), 16);
+			value >>>= 4;
+		}
+		return new String(chars);
+	}
+}
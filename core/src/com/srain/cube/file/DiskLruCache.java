@@ -24,13 +24,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -38,15 +39,21 @@ import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import com.srain.cube.concurrent.ExecutorRegistry;
+
 /**
  ******************************************************************************
  * Taken from the JB source code, can be found in:
@@ -63,11 +70,17 @@ import java.util.concurrent.TimeUnit;
  * <p>The cache stores its data in a directory on the filesystem. This
  * directory must be exclusive to the cache; the cache may delete or overwrite
  * files from its directory. It is an error for multiple processes to use the
- * same cache directory at the same time.
+ * same cache directory at the same time. With {@link Options#fanOutLevels}
+ * set, the value files are spread over nested subdirectories named by a hash
+ * of the key, so that no directory holds too many files; a cache written with
+ * another layout is migrated when it is opened.
  *
  * <p>This cache limits the number of bytes that it will store on the
  * filesystem. When the number of stored bytes exceeds the limit, the cache will
- * remove entries in the background until the limit is satisfied. The limit is
+ * remove entries in the background, a few at a time, until the size is under
+ * a low watermark below the limit (see {@link #setTrimming}). The entries
+ * to remove are chosen by an {@link EvictionPolicy}, least recently used first
+ * unless another policy is set by {@link #setEvictionPolicy}. The limit is
  * not strict: the cache may temporarily exceed it while waiting for files to be
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
@@ -100,6 +113,8 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String TRASH_PREFIX = "trash.";
+    static final String DELETED_INFIX = ".deleted.";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -107,10 +122,17 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final String EXPIRES_PREFIX = "e";
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    static final long DEFAULT_JOURNAL_FLUSH_INTERVAL = 1000;
+    static final int DEFAULT_JOURNAL_FLUSH_THRESHOLD = 128;
+    static final long DEFAULT_READ_RECORD_INTERVAL = 30 * 1000;
+    static final float DEFAULT_TRIM_LOW_WATERMARK = 0.9f;
+    static final int DEFAULT_TRIM_SLICE_SIZE = 16;
+
     /**
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -141,7 +163,8 @@ public final class DiskLruCache implements Closeable {
      *     temporary files may need to be deleted.
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
+     *     its values, and by 'e' and the expiry time in milliseconds if the
+     *     entry expires, like "CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 e1400000000000".
      *   o READ lines track accesses for LRU.
      *   o REMOVE lines track entries that have been deleted.
      *
@@ -149,8 +172,26 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Appends are group committed: records are buffered and handed to the
+     * filesystem once {@link #setGroupCommit} allows, either after a short
+     * interval or when enough records are pending. READ records are sampled:
+     * an entry gets at most one READ line per read record interval, so hot
+     * entries do not drive journal rebuilds. The in-memory LRU order stays
+     * exact; only the order replayed after a restart is approximate.
+     *
+     * Crash consistency: if the process dies, the records of the last group
+     * commit window are lost. Losing a CLEAN line drops a finished entry;
+     * losing a DIRTY line leaves its files unreferenced. Both only cost cache
+     * hits, because opening the cache deletes every file in the directory that
+     * is not referenced by a readable entry. A cache value is never served
+     * from a partially written file: values are published by renaming the
+     * dirty file only after the edit is committed.
      */
     private final File directory;
+    private final int fanOutLevels;
+    private final AppVersionMigration appVersionMigration;
+    private final Durability durability;
     private final File journalFile;
     private final File journalFileTmp;
     private final int appVersion;
@@ -158,10 +199,69 @@ public final class DiskLruCache implements Closeable {
     private final int valueCount;
     private long size = 0;
     private Writer journalWriter;
+    private FileOutputStream journalStream;
+    /**
+     * The entries. With a compact index this only holds the entries which
+     * are being edited or have never been published, the others live in
+     * {@link #compactIndex}.
+     */
     private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+            = new LinkedHashMap<String, Entry>(0, 0.75f, false);
+    private final CompactEntryIndex compactIndex;
+    private EvictionPolicy evictionPolicy;
     private int redundantOpCount;
 
+    private long journalFlushInterval = DEFAULT_JOURNAL_FLUSH_INTERVAL;
+    private int journalFlushThreshold = DEFAULT_JOURNAL_FLUSH_THRESHOLD;
+    private long readRecordInterval = DEFAULT_READ_RECORD_INTERVAL;
+
+    /**
+     * Trimming starts when the size exceeds {@link #maxSize} and evicts until
+     * it is under this share of it, at most {@link #trimSliceSize} entries
+     * per turn on the lock.
+     */
+    private float trimLowWatermark = DEFAULT_TRIM_LOW_WATERMARK;
+    private int trimSliceSize = DEFAULT_TRIM_SLICE_SIZE;
+    private boolean trimming;
+
+    private long hitCount;
+    private long missCount;
+    private long insertCount;
+    private long insertBytes;
+    private long evictCount;
+    private long evictBytes;
+    private long removeCount;
+    private long removeBytes;
+    private long journalRebuildCount;
+    private long journalRebuildTimeMillis;
+    private long lastJournalRebuildTimeMillis;
+    private long lockWaitTimeNanos;
+    private long maxLockWaitTimeNanos;
+    private Future<?> statsReport;
+
+    /** The listeners waiting for the edit in progress of a key. */
+    private final HashMap<String, ArrayList<EditListener>> editListeners
+            = new HashMap<String, ArrayList<EditListener>>();
+
+    /** Where evicted files wait to be deleted outside the lock, null if none. */
+    private File trashDirectory;
+
+    /** Time to live applied to edits which do not set their own expiry, 0 for none. */
+    private long defaultTimeToLive;
+
+    /** No entry expires before this time. */
+    private long earliestExpiry = Long.MAX_VALUE;
+    /**
+     * The expiries of the entries, the earliest first, so a sweep only looks
+     * at the entries which are due. A record whose entry has been rewritten,
+     * removed or is being edited is stale and dropped when it comes up.
+     */
+    private final PriorityQueue<Expiry> expiryQueue = new PriorityQueue<Expiry>();
+    /** The entries whose record a sweep dropped while they were being edited. */
+    private final HashSet<String> expiryDroppedKeys = new HashSet<String>();
+    private int pendingJournalRecords;
+    private boolean journalFlushScheduled;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -265,27 +365,174 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    /** This cache uses a single background thread to evict entries. */
-    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
-            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /**
+     * All the caches share the disk cache pool of the {@link ExecutorRegistry}
+     * to evict entries and to run the delayed group commits of the journal.
+     */
+    private final ScheduledThreadPoolExecutor executorService =
+            ExecutorRegistry.getInstance().getScheduledExecutor(ExecutorRegistry.POOL_DISK_CACHE);
+
+    private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                journalFlushScheduled = false;
+                if (journalWriter == null) {
+                    return null; // closed
+                }
+                flushJournal();
+            }
+            return null;
+        }
+    };
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            boolean moreToTrim;
+            File trash;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
+                moreToTrim = trimSlice();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
                     redundantOpCount = 0;
                 }
+                trash = takeTrash();
+            }
+            // readers get the lock back before the files are unlinked and the next slice runs
+            deleteTrash(trash);
+            if (moreToTrim) {
+                executorService.submit(this);
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    /**
+     * Options which have to be known when a cache is opened.
+     */
+    public static final class Options {
+        /** The largest supported value of {@link #fanOutLevels}. */
+        public static final int MAX_FAN_OUT_LEVELS = 4;
+
+        /**
+         * The number of nested subdirectories the value files are spread
+         * over. Each level has 16 subdirectories, so 2 levels give 256 leaf
+         * directories. 0, the default, keeps every file in the cache
+         * directory itself.
+         */
+        public int fanOutLevels;
+
+        /**
+         * Decides whether the entries of a cache written with another
+         * {@code appVersion} are kept. If null, the default, such a cache is
+         * cleared.
+         */
+        public AppVersionMigration appVersionMigration;
+
+        /**
+         * Keeps the published entries in primitive arrays instead of an
+         * object per entry, which saves heap for caches of many small
+         * entries. The compact index evicts the least recently used entry;
+         * {@link DiskLruCache#setEvictionPolicy} can not be used with it.
+         */
+        public boolean compactIndex;
+
+        /**
+         * What survives a crash of the device, {@link Durability#NONE} by
+         * default.
+         */
+        public Durability durability = Durability.NONE;
+    }
+
+    /**
+     * How much of a commit survives a power loss or kernel crash. A crash of
+     * the process alone loses at most the records buffered by the group
+     * commit in any mode.
+     */
+    public enum Durability {
+        /**
+         * Nothing is synced; the fastest mode, for values which can be
+         * fetched again, like images.
+         */
+        NONE,
+
+        /**
+         * The journal is synced whenever it is flushed, and a commit flushes
+         * it before returning, so the index survives. The values may be lost
+         * or truncated; such entries are dropped when they fail to read.
+         */
+        JOURNAL,
+
+        /**
+         * In addition to {@link #JOURNAL}, each value is synced when its
+         * output stream is closed, before the commit renames it into place.
+         * For data which has to be available offline.
+         */
+        FULL
+    }
+
+    /**
+     * Told when an edit which {@link #awaitEdit} waits for is completed.
+     */
+    public interface EditListener {
+        /**
+         * Called on a background thread of the cache.
+         *
+         * @param committed true if the edit was committed, false if it was
+         * aborted, in which case the listener may start its own edit.
+         */
+        void onEditCompleted(String key, boolean committed);
+    }
+
+    /**
+     * Keeps the entries of a cache across an {@code appVersion} change when
+     * the format of the values has not changed.
+     */
+    public interface AppVersionMigration {
+        /**
+         * @return true to keep the entries written by {@code oldAppVersion},
+         * false to clear the cache.
+         */
+        boolean isCompatible(int oldAppVersion, int newAppVersion);
+    }
+
+    /**
+     * The journal was written for values of another format.
+     */
+    private static class IncompatibleJournalException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private IncompatibleJournalException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown by {@link #editOrAwait} when the other edit of the entry has not
+     * completed in time.
+     */
+    public static final class EditTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private EditTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) {
         this.directory = directory;
+        this.fanOutLevels = options.fanOutLevels;
+        this.appVersionMigration = options.appVersionMigration;
+        this.durability = options.durability;
+        if (options.compactIndex) {
+            this.compactIndex = new CompactEntryIndex(valueCount);
+            this.evictionPolicy = compactIndex;
+        } else {
+            this.compactIndex = null;
+            this.evictionPolicy = new LruEvictionPolicy();
+        }
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
@@ -305,6 +552,20 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with the given {@code options},
+     * creating a cache if none exists there.
+     *
+     * @see #open(File, int, int, long)
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
+        if (options.fanOutLevels < 0 || options.fanOutLevels > Options.MAX_FAN_OUT_LEVELS) {
+            throw new IllegalArgumentException("fanOutLevels out of range: " + options.fanOutLevels);
+        }
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -313,30 +574,61 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        cache.deleteStaleTrash();
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                boolean intact = cache.readJournal();
+                if (!intact) {
+                    cache.removeEntriesWithMissingFiles();
+                }
+                long nextExpiry = cache.processJournal();
+                cache.reconcileFiles(directory, 0);
+                if (intact) {
+                    cache.openJournalWriter();
+                } else {
+                    cache.rebuildJournal(); // drop the bad tail before appending again
+                }
+                // a sweep which ran before the writer is open would give up and never be re-armed
+                cache.scheduleExpirySweep(nextExpiry);
                 return cache;
+            } catch (IncompatibleJournalException journalIsIncompatible) {
+                cache.delete();
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
-//                        + journalIsCorrupt.getMessage() + ", removing");
-                cache.delete();
+//                        + journalIsCorrupt.getMessage() + ", recovering");
+                cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+                try {
+                    cache.recoverFromFiles();
+                    long nextExpiry = cache.processJournal();
+                    cache.reconcileFiles(directory, 0);
+                    cache.rebuildJournal();
+                    cache.scheduleExpirySweep(nextExpiry);
+                    return cache;
+                } catch (IOException recoveryFailed) {
+                    cache.delete();
+                }
             }
         }
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
         cache.rebuildJournal();
         return cache;
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * Replays the journal up to the first bad record, which a crash may have
+     * left behind.
+     *
+     * @return false if the journal has a bad tail and has to be rebuilt.
+     * @throws IncompatibleJournalException if the values have another format
+     * @throws IOException if the header is unreadable
+     */
+    private boolean readJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        boolean intact = true;
         try {
             String magic = readAsciiLine(in);
             String version = readAsciiLine(in);
@@ -345,23 +637,160 @@ public final class DiskLruCache implements Closeable {
             String blank = readAsciiLine(in);
             if (!MAGIC.equals(magic)
                     || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
                     || !"".equals(blank)) {
                 throw new IOException("unexpected journal header: ["
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
+            if (!Integer.toString(valueCount).equals(valueCountString)) {
+                throw new IncompatibleJournalException("unexpected value count: " + valueCountString);
+            }
+            if (!Integer.toString(appVersion).equals(appVersionString)) {
+                if (!isMigratable(appVersionString)) {
+                    throw new IncompatibleJournalException("unexpected app version: " + appVersionString);
+                }
+                intact = false; // rewritten with the new app version
+            }
 
             while (true) {
                 try {
                     readJournalLine(readAsciiLine(in));
                 } catch (EOFException endOfJournal) {
                     break;
+                } catch (IOException badRecord) {
+                    intact = false;
+                    break;
                 }
             }
         } finally {
             closeQuietly(in);
         }
+        return intact && journalEndsWithNewline();
+    }
+
+    private boolean isMigratable(String oldAppVersionString) {
+        if (appVersionMigration == null) {
+            return false;
+        }
+        try {
+            return appVersionMigration.isCompatible(Integer.parseInt(oldAppVersionString), appVersion);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A record truncated by a crash would be glued to the next appended one.
+     */
+    private boolean journalEndsWithNewline() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            long length = file.length();
+            if (length == 0) {
+                return false;
+            }
+            file.seek(length - 1);
+            return file.read() == '\n';
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Drops the entries of a partially replayed journal whose files are
+     * gone, because the records which removed them were lost.
+     */
+    private void removeEntriesWithMissingFiles() {
+        for (Entry entry : allEntries()) {
+            if (!entry.readable || entry.currentEditor != null) {
+                continue;
+            }
+            for (int t = 0; t < valueCount; t++) {
+                if (!entry.getCleanFile(t).exists()) {
+                    lruEntries.remove(entry.key);
+                    evictionPolicy.onRemove(entry.key);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the clean files when the journal is unusable.
+     * An entry is recovered if a file exists for each of its values; the
+     * files modified last are treated as the most recently used ones. The
+     * expiry times of recovered entries are lost.
+     */
+    private void recoverFromFiles() {
+        ArrayList<File> cleanFiles = new ArrayList<File>();
+        collectCleanFiles(directory, 0, cleanFiles);
+        LinkedHashMap<String, Entry> found = new LinkedHashMap<String, Entry>();
+        HashMap<String, Long> modified = new HashMap<String, Long>();
+        HashMap<String, Integer> valuesFound = new HashMap<String, Integer>();
+        for (File file : cleanFiles) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot <= 0) {
+                continue;
+            }
+            int index;
+            try {
+                index = Integer.parseInt(name.substring(dot + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (index < 0 || index >= valueCount) {
+                continue;
+            }
+            String key = name.substring(0, dot);
+            Entry entry = found.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                found.put(key, entry);
+                valuesFound.put(key, 0);
+                modified.put(key, 0L);
+            }
+            entry.lengths[index] = file.length();
+            valuesFound.put(key, valuesFound.get(key) + 1);
+            modified.put(key, Math.max(modified.get(key), file.lastModified()));
+        }
+
+        ArrayList<Entry> complete = new ArrayList<Entry>();
+        for (Entry entry : found.values()) {
+            if (valuesFound.get(entry.key) == valueCount) {
+                complete.add(entry);
+            }
+        }
+        final HashMap<String, Long> lastModified = modified;
+        Collections.sort(complete, new Comparator<Entry>() {
+            @Override public int compare(Entry lhs, Entry rhs) {
+                long l = lastModified.get(lhs.key);
+                long r = lastModified.get(rhs.key);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (Entry entry : complete) {
+            entry.readable = true;
+            lruEntries.put(entry.key, entry);
+            evictionPolicy.onWrite(entry.key, entry.getTotalLength());
+            saveEntry(entry);
+        }
+    }
+
+    private void collectCleanFiles(File dir, int depth, ArrayList<File> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (depth > 0 || !name.startsWith(TRASH_PREFIX)) {
+                    collectCleanFiles(file, depth + 1, out);
+                }
+            } else if (!name.endsWith(".tmp") && (depth > 0 || !name.equals(JOURNAL_FILE))) {
+                out.add(file);
+            }
+        }
     }
 
     private void readJournalLine(String line) throws IOException {
@@ -373,36 +802,49 @@ public final class DiskLruCache implements Closeable {
         String key = parts[1];
         if (parts[0].equals(REMOVE) && parts.length == 2) {
             lruEntries.remove(key);
+            evictionPolicy.onRemove(key);
             return;
         }
 
-        Entry entry = lruEntries.get(key);
+        Entry entry = getEntry(key);
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+        if (parts[0].equals(CLEAN) && parts.length == 3 + valueCount
+                && parts[parts.length - 1].startsWith(EXPIRES_PREFIX)) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.setLengths(copyOfRange(parts, 2, parts.length - 1));
+            entry.setExpiresAt(parts[parts.length - 1]);
+            evictionPolicy.onWrite(key, entry.getTotalLength());
+            addExpiry(entry);
+        } else if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
             entry.currentEditor = null;
             entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.expiresAt = 0;
+            evictionPolicy.onWrite(key, entry.getTotalLength());
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            evictionPolicy.onRead(key);
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
+        saveEntry(entry);
     }
 
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     *
+     * @return when the first entry expires, 0 if none does
      */
-    private void processJournal() throws IOException {
+    private long processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
+        for (Entry entry : allEntries()) {
             if (entry.currentEditor == null) {
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
@@ -413,7 +855,57 @@ public final class DiskLruCache implements Closeable {
                     deleteIfExists(entry.getCleanFile(t));
                     deleteIfExists(entry.getDirtyFile(t));
                 }
-                i.remove();
+                lruEntries.remove(entry.key);
+                evictionPolicy.onRemove(entry.key);
+            }
+        }
+        Expiry first = expiryQueue.peek();
+        return first == null ? 0 : first.expiresAt;
+    }
+
+    /**
+     * Walks the cache directory, deleting the files that no readable entry
+     * refers to and moving the files written with another fan-out layout to
+     * where this cache expects them. Unreferenced files are left behind when
+     * the process dies before the group commit holding their DIRTY or CLEAN
+     * record reached the journal.
+     */
+    private void reconcileFiles(File dir, int depth) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                if (depth == 0 && name.startsWith(TRASH_PREFIX)) {
+                    deleteContents(file); // left behind by an interrupted evictAll()
+                    file.delete();
+                    continue;
+                }
+                reconcileFiles(file, depth + 1);
+                if (depth >= fanOutLevels) {
+                    file.delete(); // a directory of another layout, only removed if empty
+                }
+                continue;
+            }
+            if (depth == 0 && (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP))) {
+                continue;
+            }
+            if (name.endsWith(".tmp")) {
+                deleteIfExists(file); // no edit survives a restart
+                continue;
+            }
+            int dot = name.lastIndexOf('.');
+            Entry entry = dot > 0 ? getEntry(name.substring(0, dot)) : null;
+            if (entry == null || !entry.readable) {
+                deleteIfExists(file);
+            } else if (depth != fanOutLevels) {
+                File target = new File(entry.getDirectory(), name);
+                target.getParentFile().mkdirs();
+                if (!file.renameTo(target)) {
+                    deleteIfExists(file);
+                }
             }
         }
     }
@@ -423,11 +915,13 @@ public final class DiskLruCache implements Closeable {
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
+        long start = System.currentTimeMillis();
         if (journalWriter != null) {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
+        FileOutputStream stream = new FileOutputStream(journalFileTmp);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, UTF_8), IO_BUFFER_SIZE);
         writer.write(MAGIC);
         writer.write("\n");
         writer.write(VERSION_1);
@@ -441,14 +935,136 @@ public final class DiskLruCache implements Closeable {
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
                 writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            }
+        }
+        // clean entries in eviction order, so the policy sees the same order when the journal is replayed
+        for (String key : evictionPolicy.keys()) {
+            Entry entry = getEntry(key);
+            if (entry != null && entry.readable && entry.currentEditor == null) {
+                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getExpiry() + '\n');
             }
         }
 
+        writer.flush();
+        if (durability != Durability.NONE) {
+            stream.getFD().sync();
+        }
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        openJournalWriter();
+        pendingJournalRecords = 0;
+
+        lastJournalRebuildTimeMillis = System.currentTimeMillis() - start;
+        journalRebuildTimeMillis += lastJournalRebuildTimeMillis;
+        journalRebuildCount++;
+    }
+
+    private void openJournalWriter() throws IOException {
+        journalStream = new FileOutputStream(journalFile, true);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, UTF_8),
+                IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Appends {@code record} to the journal as part of the current group
+     * commit. The record reaches the filesystem when enough records are
+     * pending or when the flush interval elapses, whichever comes first.
+     */
+    private void journalAppend(String record) throws IOException {
+        journalWriter.write(record);
+        pendingJournalRecords++;
+        if (pendingJournalRecords >= journalFlushThreshold || journalFlushInterval <= 0) {
+            flushJournal();
+        } else if (!journalFlushScheduled) {
+            journalFlushScheduled = true;
+            executorService.schedule(journalFlushCallable, journalFlushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        if (pendingJournalRecords > 0) {
+            journalWriter.flush();
+            if (durability != Durability.NONE) {
+                journalStream.getFD().sync();
+            }
+            pendingJournalRecords = 0;
+        }
+    }
+
+    /**
+     * Configures the group commit of journal records.
+     *
+     * @param flushIntervalMillis the longest time a record may stay buffered;
+     *     0 flushes every record as soon as it is appended
+     * @param flushThreshold the number of pending records that forces a flush
+     */
+    public synchronized void setGroupCommit(long flushIntervalMillis, int flushThreshold) {
+        if (flushThreshold <= 0) {
+            throw new IllegalArgumentException("flushThreshold <= 0");
+        }
+        journalFlushInterval = flushIntervalMillis;
+        journalFlushThreshold = flushThreshold;
+    }
+
+    /**
+     * Replaces the policy which chooses the entries to evict. The entries
+     * already in the cache are handed to the new policy in the eviction order
+     * of the old one.
+     *
+     * @throws IllegalStateException if the cache uses a compact index
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy == null");
+        }
+        if (compactIndex != null) {
+            throw new IllegalStateException("the compact index only supports its own LRU eviction");
+        }
+        for (String key : evictionPolicy.keys()) {
+            Entry entry = lruEntries.get(key);
+            if (entry != null && entry.readable) {
+                policy.onWrite(key, entry.getTotalLength());
+            }
+        }
+        evictionPolicy = policy;
+    }
+
+    /**
+     * Sets the time to live of the entries whose edit does not call
+     * {@link Editor#setTimeToLive} or {@link Editor#setExpiresAt}. 0, the
+     * default, means such entries never expire.
+     */
+    public synchronized void setDefaultTimeToLive(long timeToLiveMillis) {
+        defaultTimeToLive = timeToLiveMillis;
+    }
+
+    /**
+     * Sets how often a READ record is journaled for the same entry. Reads of
+     * an entry within this interval after its last journal record are only
+     * reflected in memory. 0 journals every read.
+     */
+    public synchronized void setReadRecordInterval(long intervalMillis) {
+        readRecordInterval = intervalMillis;
+    }
+
+    /**
+     * Configures the background trimming. When the size exceeds the maximum
+     * size, entries are evicted until it is under {@code lowWatermark} times
+     * the maximum size, {@code sliceSize} entries at a time, so that reads
+     * and edits are not held up by a long trim.
+     *
+     * @param lowWatermark between 0 and 1, the default is 0.9
+     * @param sliceSize the number of entries evicted per turn, the default is 16
+     */
+    public synchronized void setTrimming(float lowWatermark, int sliceSize) {
+        if (lowWatermark <= 0 || lowWatermark > 1) {
+            throw new IllegalArgumentException("lowWatermark must be in (0, 1]");
+        }
+        if (sliceSize <= 0) {
+            throw new IllegalArgumentException("sliceSize <= 0");
+        }
+        trimLowWatermark = lowWatermark;
+        trimSliceSize = sliceSize;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -466,13 +1082,27 @@ public final class DiskLruCache implements Closeable {
 
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-     * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * exist is not currently readable. If a value is returned, the read is
+     * reported to the eviction policy.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            recordLockWait(waitStart);
+            Snapshot snapshot = readSnapshot(key);
+            if (snapshot != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+            return snapshot;
+        }
+    }
+
+    private Snapshot readSnapshot(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = getEntry(key);
         if (entry == null) {
             return null;
         }
@@ -481,6 +1111,15 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
+        if (entry.isExpired(System.currentTimeMillis())) {
+            if (entry.currentEditor == null) {
+                evictCount++;
+                evictBytes += entry.getTotalLength();
+                removeEntry(entry);
+            }
+            return null;
+        }
+
         /*
          * Open all streams eagerly to guarantee that we see a single published
          * snapshot. If we opened streams lazily then the streams could come
@@ -496,13 +1135,19 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        evictionPolicy.onRead(key);
+        long now = System.currentTimeMillis();
+        if (now - entry.journalTime >= readRecordInterval) {
+            entry.journalTime = now;
+            saveEntry(entry);
+            redundantOpCount++;
+            journalAppend(READ + ' ' + key + '\n');
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, entry.sequenceNumber, entry.expiresAt, ins);
     }
 
     /**
@@ -510,13 +1155,23 @@ public final class DiskLruCache implements Closeable {
      * edit is in progress.
      */
     public Editor edit(String key) throws IOException {
-        return edit(key, ANY_SEQUENCE_NUMBER);
+        long waitStart = System.nanoTime();
+        synchronized (this) {
+            recordLockWait(waitStart);
+            return edit(key, ANY_SEQUENCE_NUMBER);
+        }
+    }
+
+    private void recordLockWait(long waitStart) {
+        long wait = System.nanoTime() - waitStart;
+        lockWaitTimeNanos += wait;
+        maxLockWaitTimeNanos = Math.max(maxLockWaitTimeNanos, wait);
     }
 
     private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = getEntry(key);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
                 && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
             return null; // snapshot is stale
@@ -530,13 +1185,173 @@ public final class DiskLruCache implements Closeable {
 
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
+        saveEntry(entry);
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        // files leaked by a DIRTY record lost in a crash are deleted on open
+        journalAppend(DIRTY + ' ' + key + '\n');
         return editor;
     }
 
+    /**
+     * Returns an editor for the entry named {@code key} like {@link #edit},
+     * but if another edit is in progress, waits for it to complete instead of
+     * failing. If that edit is committed, returns null: the caller should
+     * read the value with {@link #get} rather than write it a second time. If
+     * it is aborted, the caller gets its turn to edit, even if an older value
+     * is readable.
+     *
+     * @param timeoutMillis how long to wait for the other edit
+     * @throws EditTimeoutException if the other edit has not completed in
+     * {@code timeoutMillis}
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public synchronized Editor editOrAwait(String key, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            Editor editor = edit(key);
+            if (editor != null) {
+                return editor;
+            }
+            Editor inProgress = lruEntries.get(key).currentEditor;
+            while (lruEntries.get(key) != null && lruEntries.get(key).currentEditor == inProgress) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new EditTimeoutException("timed out waiting for the edit of " + key);
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the edit of " + key);
+                }
+            }
+            if (inProgress.committed) {
+                return null; // read what the other editor published
+            }
+        }
+    }
+
+    /**
+     * Registers {@code listener} to be told when the edit in progress of the
+     * entry named {@code key} is completed, without blocking.
+     *
+     * @return false if no edit is in progress, then the listener is not
+     * registered and the caller may edit right away.
+     */
+    public synchronized boolean awaitEdit(String key, EditListener listener) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || entry.currentEditor == null) {
+            return false;
+        }
+        ArrayList<EditListener> listeners = editListeners.get(key);
+        if (listeners == null) {
+            listeners = new ArrayList<EditListener>();
+            editListeners.put(key, listeners);
+        }
+        listeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Wakes the threads in {@link #editOrAwait} and tells the listeners of
+     * {@link #awaitEdit} that the edit of {@code key} is completed.
+     */
+    private void notifyEditCompleted(final String key, final boolean committed) {
+        notifyAll();
+        final ArrayList<EditListener> listeners = editListeners.remove(key);
+        if (listeners == null) {
+            return;
+        }
+        executorService.submit(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                for (EditListener listener : listeners) {
+                    listener.onEditCompleted(key, committed);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the counters of this cache. This is cheap, see
+     * {@link #getSizeHistogram} for the sizes of the entries.
+     */
+    public synchronized CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.size = size;
+        stats.maxSize = maxSize;
+        stats.entryCount = entryCount();
+        stats.hitCount = hitCount;
+        stats.missCount = missCount;
+        stats.insertCount = insertCount;
+        stats.insertBytes = insertBytes;
+        stats.evictCount = evictCount;
+        stats.evictBytes = evictBytes;
+        stats.removeCount = removeCount;
+        stats.removeBytes = removeBytes;
+        stats.journalRedundantOpCount = redundantOpCount;
+        stats.journalRebuildCount = journalRebuildCount;
+        stats.journalRebuildTimeMillis = journalRebuildTimeMillis;
+        stats.lastJournalRebuildTimeMillis = lastJournalRebuildTimeMillis;
+        stats.lockWaitTimeNanos = lockWaitTimeNanos;
+        stats.maxLockWaitTimeNanos = maxLockWaitTimeNanos;
+        return stats;
+    }
+
+    /**
+     * Counts the published entries by the first {@code prefixLength}
+     * characters of their key and by size class, see
+     * {@link CacheStats#sizeHistogram}. This walks every entry.
+     */
+    public synchronized Map<String, long[]> getSizeHistogram(int prefixLength) {
+        HashMap<String, long[]> histogram = new HashMap<String, long[]>();
+        for (Entry entry : allEntries()) {
+            if (!entry.readable) {
+                continue;
+            }
+            String prefix = entry.key.length() > prefixLength
+                    ? entry.key.substring(0, prefixLength) : entry.key;
+            long[] counts = histogram.get(prefix);
+            if (counts == null) {
+                counts = new long[Long.SIZE];
+                histogram.put(prefix, counts);
+            }
+            long length = entry.getTotalLength();
+            counts[length <= 1 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(length - 1)]++;
+        }
+        return histogram;
+    }
+
+    /**
+     * Reports the stats to {@code listener} every {@code intervalMillis}, on
+     * a background thread, until another listener or null is set.
+     *
+     * @param histogramPrefixLength if not negative, the reports include the
+     * size histogram by key prefixes of this length; 0 gives one histogram
+     * for the whole cache
+     */
+    public synchronized void setStatsListener(final CacheStatsListener listener, long intervalMillis,
+            final int histogramPrefixLength) {
+        if (statsReport != null) {
+            statsReport.cancel(false);
+            statsReport = null;
+        }
+        if (listener == null) {
+            return;
+        }
+        statsReport = executorService.scheduleAtFixedRate(new Runnable() {
+            @Override public void run() {
+                CacheStats stats = getStats();
+                if (histogramPrefixLength >= 0) {
+                    stats.sizeHistogram = getSizeHistogram(histogramPrefixLength);
+                }
+                listener.onCacheStats(stats);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Returns the directory where this cache stores its data.
      */
@@ -570,24 +1385,27 @@ public final class DiskLruCache implements Closeable {
         // if this edit is creating the entry for the first time, every index must have a value
         if (success && !entry.readable) {
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
+                if (editor.written[i] < 0) {
                     editor.abort();
                     throw new IllegalStateException("edit didn't create file " + i);
                 }
             }
         }
 
+        // the editor counted the bytes it wrote, so publishing needs no stat
         for (int i = 0; i < valueCount; i++) {
+            if (editor.written[i] < 0) {
+                continue;
+            }
             File dirty = entry.getDirtyFile(i);
             if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
-                }
+                File clean = entry.getCleanFile(i);
+                dirty.renameTo(clean);
+                long oldLength = entry.lengths[i];
+                long newLength = editor.written[i];
+                entry.lengths[i] = newLength;
+                size = size - oldLength + newLength;
+                insertBytes += newLength;
             } else {
                 deleteIfExists(dirty);
             }
@@ -595,22 +1413,118 @@ public final class DiskLruCache implements Closeable {
 
         redundantOpCount++;
         entry.currentEditor = null;
+        editor.committed = success;
+        if (success) {
+            long expiresAt = editor.expiresAt;
+            if (expiresAt < 0) {
+                expiresAt = defaultTimeToLive > 0 ? System.currentTimeMillis() + defaultTimeToLive : 0;
+            }
+            entry.expiresAt = expiresAt;
+        }
+        boolean expiryDropped = expiryDroppedKeys.remove(entry.key);
         if (entry.readable | success) {
+            // a commit brings a new expiry, an abort restores the record a sweep dropped meanwhile
+            if (success || expiryDropped) {
+                addExpiry(entry);
+                scheduleExpirySweep(entry.expiresAt);
+            }
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            entry.journalTime = System.currentTimeMillis();
+            journalAppend(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getExpiry() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
+                evictionPolicy.onWrite(entry.key, entry.getTotalLength());
+                insertCount++;
             }
+            saveEntry(entry);
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journalAppend(REMOVE + ' ' + entry.key + '\n');
+        }
+        if (success && durability != Durability.NONE) {
+            flushJournal(); // the commit is not durable until its CLEAN record is
         }
+        notifyEditCompleted(entry.key, success);
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Makes sure the background sweep runs when the entry expiring at
+     * {@code expiresAt} is due.
+     */
+    private void scheduleExpirySweep(long expiresAt) {
+        if (expiresAt == 0 || expiresAt >= earliestExpiry) {
+            return;
+        }
+        earliestExpiry = expiresAt;
+        long delay = Math.max(0, expiresAt - System.currentTimeMillis());
+        executorService.schedule(cleanupCallable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evicts at most {@code budget} expired entries, if any is due, and
+     * schedules the sweep for the next entry to expire.
+     *
+     * @return the number of entries evicted
+     */
+    private int removeExpiredEntries(int budget) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now < earliestExpiry) {
+            return 0;
+        }
+        int removed = 0;
+        Expiry expiry;
+        while (removed < budget && (expiry = expiryQueue.peek()) != null && expiry.expiresAt <= now) {
+            expiryQueue.poll();
+            Entry entry = getEntry(expiry.key);
+            if (entry == null || !entry.readable || entry.expiresAt != expiry.expiresAt) {
+                continue; // stale
+            }
+            if (entry.currentEditor != null) {
+                expiryDroppedKeys.add(entry.key); // completeEdit adds it again
+                continue;
+            }
+            evict(entry);
+            removed++;
+        }
+        earliestExpiry = Long.MAX_VALUE;
+        expiry = expiryQueue.peek();
+        if (expiry != null) {
+            // expired entries over the budget are picked up by the next sweep
+            scheduleExpirySweep(Math.max(expiry.expiresAt, now + 1));
+        }
+        return removed;
+    }
+
+    private void addExpiry(Entry entry) {
+        if (entry.expiresAt == 0) {
+            return;
+        }
+        if (expiryQueue.size() > 2 * entryCount() + 64) {
+            pruneExpiryQueue();
+        }
+        expiryQueue.add(new Expiry(entry.key, entry.expiresAt));
+    }
+
+    /**
+     * Drops the stale records, which pile up when the entries are rewritten
+     * before they expire.
+     */
+    private void pruneExpiryQueue() {
+        ArrayList<Expiry> live = new ArrayList<Expiry>(expiryQueue.size());
+        for (Expiry expiry : expiryQueue) {
+            Entry entry = getEntry(expiry.key);
+            if (entry != null && entry.expiresAt == expiry.expiresAt) {
+                live.add(expiry);
+            }
+        }
+        expiryQueue.clear();
+        expiryQueue.addAll(live);
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
@@ -618,7 +1532,7 @@ public final class DiskLruCache implements Closeable {
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
         return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+                && redundantOpCount >= entryCount();
     }
 
     /**
@@ -630,11 +1544,17 @@ public final class DiskLruCache implements Closeable {
     public synchronized boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
+        Entry entry = getEntry(key);
         if (entry == null || entry.currentEditor != null) {
             return false;
         }
+        removeCount++;
+        removeBytes += entry.getTotalLength();
+        removeEntry(entry);
+        return true;
+    }
 
+    private void removeEntry(Entry entry) throws IOException {
         for (int i = 0; i < valueCount; i++) {
             File file = entry.getCleanFile(i);
             if (!file.delete()) {
@@ -645,14 +1565,30 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+        journalAppend(REMOVE + ' ' + entry.key + '\n');
+        lruEntries.remove(entry.key);
+        evictionPolicy.onRemove(entry.key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
+    }
 
-        return true;
+    /**
+     * Drops every entry which is not being edited. The files are moved into a
+     * trash directory and deleted in the background, so this returns quickly
+     * even for a large cache.
+     */
+    public synchronized void evictAll() throws IOException {
+        checkNotClosed();
+        for (Entry entry : allEntries()) {
+            if (entry.currentEditor == null) {
+                evict(entry);
+            }
+        }
+        rebuildJournal();
+        redundantOpCount = 0;
+        deleteTrashInBackground(takeTrash());
     }
 
     /**
@@ -673,8 +1609,10 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+        if (size > maxSize) {
+            executorService.submit(cleanupCallable);
+        }
+        flushJournal();
     }
 
     /**
@@ -689,19 +1627,123 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
+        if (statsReport != null) {
+            statsReport.cancel(false);
+            statsReport = null;
+        }
         trimToSize();
         journalWriter.close();
         journalWriter = null;
+        pendingJournalRecords = 0;
+        deleteTrashInBackground(takeTrash());
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        while (trimSlice()) {
+            // keep going, the lock is held anyway
         }
     }
 
+    /**
+     * Evicts expired entries, then entries chosen by the eviction policy if
+     * the cache is over its maximum size, at most {@link #trimSliceSize} of
+     * them. Once started, trimming goes on until the size is under the low
+     * watermark.
+     *
+     * @return true if more entries have to be evicted
+     */
+    private boolean trimSlice() throws IOException {
+        // expired entries are dead data, reclaim them before evicting live ones
+        int budget = trimSliceSize - removeExpiredEntries(trimSliceSize);
+        if (size > maxSize) {
+            trimming = true;
+        }
+        if (!trimming) {
+            return false;
+        }
+
+        long lowWatermark = (long) (maxSize * (double) trimLowWatermark);
+        // entries being edited can't be evicted, so give up after every entry had its turn
+        int attempts = entryCount();
+        while (size > lowWatermark && budget > 0 && attempts-- > 0) {
+            String key = evictionPolicy.nextVictim();
+            if (key == null) {
+                break;
+            }
+            Entry entry = getEntry(key);
+            if (entry == null) {
+                evictionPolicy.onRemove(key);
+            } else if (entry.currentEditor != null) {
+                evictionPolicy.onRead(key);
+            } else {
+                evict(entry);
+                budget--;
+            }
+        }
+        trimming = size > lowWatermark && budget == 0;
+        return trimming;
+    }
+
+    /**
+     * Removes an entry which is not being edited. Its files are only moved to
+     * the trash under the lock, see {@link #takeTrash}.
+     */
+    private void evict(Entry entry) throws IOException {
+        evictCount++;
+        evictBytes += entry.getTotalLength();
+        if (trashDirectory == null) {
+            trashDirectory = new File(directory, TRASH_PREFIX + System.nanoTime());
+            trashDirectory.mkdirs();
+        }
+        for (int i = 0; i < valueCount; i++) {
+            File file = entry.getCleanFile(i);
+            if (!file.renameTo(new File(trashDirectory, file.getName()))) {
+                deleteIfExists(file);
+            }
+            size -= entry.lengths[i];
+            entry.lengths[i] = 0;
+        }
+
+        redundantOpCount++;
+        journalAppend(REMOVE + ' ' + entry.key + '\n');
+        lruEntries.remove(entry.key);
+        evictionPolicy.onRemove(entry.key);
+    }
+
+    /**
+     * Returns the trash filled by {@link #evict} so far, which the caller
+     * deletes after releasing the lock.
+     */
+    private File takeTrash() {
+        File trash = trashDirectory;
+        trashDirectory = null;
+        return trash;
+    }
+
+    private static void deleteTrash(File trash) {
+        if (trash == null) {
+            return;
+        }
+        try {
+            deleteContents(trash);
+        } catch (IOException e) {
+            // what is left is deleted when the cache is opened again
+        }
+        trash.delete();
+    }
+
+    private void deleteTrashInBackground(final File trash) {
+        if (trash == null) {
+            return;
+        }
+        executorService.submit(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                deleteTrash(trash);
+                return null;
+            }
+        });
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -709,7 +1751,107 @@ public final class DiskLruCache implements Closeable {
      */
     public void delete() throws IOException {
         close();
-        deleteContents(directory);
+        // move the contents out of the way and delete them in the background
+        final File trash = new File(directory.getPath() + DELETED_INFIX + System.nanoTime());
+        if (!directory.renameTo(trash)) {
+            deleteContents(directory);
+            return;
+        }
+        directory.mkdirs();
+        deleteTrashInBackground(trash);
+    }
+
+    /**
+     * Deletes in the background the copies which {@link #delete} moved aside
+     * and the process died before deleting.
+     */
+    private void deleteStaleTrash() {
+        File parent = directory.getAbsoluteFile().getParentFile();
+        File[] files = parent == null ? null : parent.listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = directory.getName() + DELETED_INFIX;
+        for (File file : files) {
+            if (file.isDirectory() && file.getName().startsWith(prefix)) {
+                deleteTrashInBackground(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the entry for {@code key}, or null. An entry loaded from the
+     * compact index is a copy: after changing it, call {@link #saveEntry}.
+     */
+    private Entry getEntry(String key) {
+        Entry entry = lruEntries.get(key);
+        if (entry != null || compactIndex == null) {
+            return entry;
+        }
+        int slot = compactIndex.find(key);
+        if (slot < 0) {
+            return null;
+        }
+        entry = new Entry(key);
+        entry.readable = true;
+        for (int i = 0; i < valueCount; i++) {
+            entry.lengths[i] = compactIndex.length(slot, i);
+        }
+        entry.sequenceNumber = compactIndex.sequenceNumber(slot);
+        entry.expiresAt = compactIndex.expiresAt(slot);
+        entry.journalTime = compactIndex.journalTime(slot);
+        return entry;
+    }
+
+    /**
+     * Moves a published entry which is not being edited into the compact
+     * index, and any other entry into {@link #lruEntries}.
+     */
+    private void saveEntry(Entry entry) {
+        if (compactIndex == null) {
+            return;
+        }
+        int slot = entry.readable && entry.currentEditor == null ? compactIndex.find(entry.key) : -1;
+        if (slot < 0) {
+            lruEntries.put(entry.key, entry);
+            return;
+        }
+        compactIndex.store(slot, entry.lengths, entry.sequenceNumber, entry.expiresAt,
+                entry.journalTime);
+        lruEntries.remove(entry.key);
+    }
+
+    /**
+     * Returns every entry. The entries of the compact index are copies.
+     */
+    private List<Entry> allEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        if (compactIndex != null) {
+            for (int slot = compactIndex.first(); slot >= 0; slot = compactIndex.next(slot)) {
+                String key = compactIndex.key(slot);
+                if (!lruEntries.containsKey(key)) {
+                    entries.add(getEntry(key));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the number of entries. A published entry which is being edited
+     * is both in the compact index and in {@link #lruEntries}, and counts once.
+     */
+    private int entryCount() {
+        if (compactIndex == null) {
+            return lruEntries.size();
+        }
+        int count = compactIndex.size();
+        for (String key : lruEntries.keySet()) {
+            if (compactIndex.find(key) < 0) {
+                count++;
+            }
+        }
+        return count;
     }
 
     private void validateKey(String key) {
@@ -729,11 +1871,13 @@ public final class DiskLruCache implements Closeable {
     public final class Snapshot implements Closeable {
         private final String key;
         private final long sequenceNumber;
+        private final long expiresAt;
         private final InputStream[] ins;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, long expiresAt, InputStream[] ins) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
+            this.expiresAt = expiresAt;
             this.ins = ins;
         }
 
@@ -746,6 +1890,14 @@ public final class DiskLruCache implements Closeable {
             return DiskLruCache.this.edit(key, sequenceNumber);
         }
 
+        /**
+         * Returns the time in milliseconds at which this entry expires, or 0
+         * if it never expires.
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
         /**
          * Returns the unbuffered stream with the value for {@code index}.
          */
@@ -773,9 +1925,34 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        private boolean committed;
+        private long expiresAt = -1;
+
+        /** Bytes written to each dirty file, -1 if it has not been created. */
+        private final long[] written;
 
         private Editor(Entry entry) {
             this.entry = entry;
+            this.written = new long[valueCount];
+            Arrays.fill(written, -1);
+        }
+
+        /**
+         * Sets the time in milliseconds at which the entry expires once this
+         * edit is committed, 0 if it never expires. An expired entry is
+         * treated as missing by {@link DiskLruCache#get} and its space is
+         * reclaimed in the background before live entries are evicted.
+         */
+        public void setExpiresAt(long expiresAtMillis) {
+            expiresAt = Math.max(0, expiresAtMillis);
+        }
+
+        /**
+         * Makes the entry expire {@code timeToLiveMillis} after this edit is
+         * committed.
+         */
+        public void setTimeToLive(long timeToLiveMillis) {
+            setExpiresAt(System.currentTimeMillis() + timeToLiveMillis);
         }
 
         /**
@@ -815,7 +1992,17 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                File dirty = entry.getDirtyFile(index);
+                FileOutputStream out;
+                try {
+                    out = new FileOutputStream(dirty);
+                } catch (FileNotFoundException e) {
+                    // the fan-out directory is created on demand
+                    dirty.getParentFile().mkdirs();
+                    out = new FileOutputStream(dirty);
+                }
+                written[index] = 0;
+                return new FaultHidingOutputStream(out, index);
             }
         }
 
@@ -854,13 +2041,18 @@ public final class DiskLruCache implements Closeable {
         }
 
         private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
+            private final int index;
+            private boolean closed;
+
+            private FaultHidingOutputStream(OutputStream out, int index) {
                 super(out);
+                this.index = index;
             }
 
             @Override public void write(int oneByte) {
                 try {
                     out.write(oneByte);
+                    written[index]++;
                 } catch (IOException e) {
                     hasErrors = true;
                 }
@@ -869,13 +2061,21 @@ public final class DiskLruCache implements Closeable {
             @Override public void write(byte[] buffer, int offset, int length) {
                 try {
                     out.write(buffer, offset, length);
+                    written[index] += length;
                 } catch (IOException e) {
                     hasErrors = true;
                 }
             }
 
             @Override public void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
                 try {
+                    if (durability == Durability.FULL) {
+                        ((FileOutputStream) out).getFD().sync();
+                    }
                     out.close();
                 } catch (IOException e) {
                     hasErrors = true;
@@ -892,6 +2092,20 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private static final class Expiry implements Comparable<Expiry> {
+        private final String key;
+        private final long expiresAt;
+
+        private Expiry(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override public int compareTo(Expiry another) {
+            return expiresAt < another.expiresAt ? -1 : (expiresAt == another.expiresAt ? 0 : 1);
+        }
+    }
+
     private final class Entry {
         private final String key;
 
@@ -907,11 +2121,25 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** When the last CLEAN or READ record of this entry was journaled. */
+        private long journalTime;
+
+        /** When this entry expires, or 0 if it never expires. */
+        private long expiresAt;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
         }
 
+        public long getTotalLength() {
+            long total = 0;
+            for (long size : lengths) {
+                total += size;
+            }
+            return total;
+        }
+
         public String getLengths() throws IOException {
             StringBuilder result = new StringBuilder();
             for (long size : lengths) {
@@ -937,16 +2165,53 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+
+        public String getExpiry() {
+            return expiresAt == 0 ? "" : " " + EXPIRES_PREFIX + expiresAt;
+        }
+
+        private void setExpiresAt(String string) throws IOException {
+            try {
+                expiresAt = Long.parseLong(string.substring(1));
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal expiry: " + string);
+            }
+        }
+
         private IOException invalidLengths(String[] strings) throws IOException {
             throw new IOException("unexpected journal line: " + Arrays.toString(strings));
         }
 
+        /**
+         * Returns the directory of this entry's files. With a fan-out layout
+         * each level is named by one hex digit of the key's hash.
+         */
+        public File getDirectory() {
+            if (fanOutLevels == 0) {
+                return directory;
+            }
+            int hash = key.hashCode();
+            hash ^= (hash >>> 20) ^ (hash >>> 12);
+            hash ^= (hash >>> 7) ^ (hash >>> 4);
+            StringBuilder path = new StringBuilder();
+            for (int level = 0; level < fanOutLevels; level++) {
+                if (level > 0) {
+                    path.append(File.separatorChar);
+                }
+                path.append(Character.forDigit((hash >>> (level * 4)) & 0xf, 16));
+            }
+            return new File(directory, path.toString());
+        }
+
         public File getCleanFile(int i) {
-            return new File(directory, key + "." + i);
+            return new File(getDirectory(), key + "." + i);
         }
 
         public File getDirtyFile(int i) {
-            return new File(directory, key + "." + i + ".tmp");
+            return new File(getDirectory(), key + "." + i + ".tmp");
         }
     }
 }
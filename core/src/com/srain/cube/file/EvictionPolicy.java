@@ -0,0 +1,44 @@
+package com.srain.cube.file;
+
+import java.util.List;
+
+/**
+ * Decides which entry a {@link DiskLruCache} evicts when it grows over its maximum size.
+ *
+ * A policy only sees keys and sizes in bytes. All the methods are called while the cache holds its lock, so an
+ * implementation does not need to be thread safe, but it must not call back into the cache.
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * An entry has been published, or the values of a published entry have been replaced.
+	 *
+	 * @param size
+	 *            the total length of the values of the entry
+	 */
+	public void onWrite(String key, long size);
+
+	/**
+	 * A published entry has been read.
+	 */
+	public void onRead(String key);
+
+	/**
+	 * An entry has been removed from the cache, either evicted or removed by the client.
+	 */
+	public void onRemove(String key);
+
+	/**
+	 * Return the key of the entry which should be evicted next, or null if no entry is tracked.
+	 *
+	 * The cache will normally remove the entry and call {@link #onRemove}. If the entry can not be removed at the
+	 * moment, the cache calls {@link #onRead} instead.
+	 */
+	public String nextVictim();
+
+	/**
+	 * Return all the tracked keys, the next victim first. The journal is rebuilt in this order, so the policy will see
+	 * the entries written in this order when the cache is opened again.
+	 */
+	public List<String> keys();
+}
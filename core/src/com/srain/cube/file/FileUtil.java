@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -190,6 +191,38 @@ public class FileUtil {
 		return false;
 	}
 
+	/**
+	 * Write the content to a temporary file, sync it to the device and rename it over the file, so that after a crash
+	 * the file has either the old or the new content, never a part of it.
+	 */
+	public static boolean writeDurably(String filePath, String content) {
+		File file = new File(filePath);
+		if (!file.getParentFile().exists())
+			file.getParentFile().mkdirs();
+
+		File tmp = new File(filePath + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			out.write(content.getBytes("UTF-8"));
+			out.flush();
+			out.getFD().sync();
+			out.close();
+			out = null;
+			return tmp.renameTo(file);
+		} catch (IOException e) {
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		tmp.delete();
+		return false;
+	}
+
 	/**
 	 * 
 	 * @param context
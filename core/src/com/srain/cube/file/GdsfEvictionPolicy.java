@@ -0,0 +1,105 @@
+package com.srain.cube.file;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Greedy-Dual-Size-Frequency: evict the entry with the lowest priority, where
+ *
+ * <pre>
+ * priority = inflation + frequency / size
+ * </pre>
+ *
+ * Small entries which are read often are kept, a single large download which is never read again goes first. The
+ * inflation value is raised to the priority of every evicted entry, so entries which were popular a long time ago age
+ * out.
+ */
+public class GdsfEvictionPolicy implements EvictionPolicy {
+
+	private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+	private final TreeSet<Node> mQueue = new TreeSet<Node>(new Comparator<Node>() {
+		@Override
+		public int compare(Node lhs, Node rhs) {
+			if (lhs.mPriority != rhs.mPriority) {
+				return lhs.mPriority < rhs.mPriority ? -1 : 1;
+			}
+			return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+		}
+	});
+
+	private double mInflation = 0;
+	private long mNextSequence = 0;
+
+	private static class Node {
+		private final String mKey;
+		private long mSize;
+		private int mFrequency;
+		private double mPriority;
+		private long mSequence;
+
+		private Node(String key) {
+			mKey = key;
+		}
+	}
+
+	@Override
+	public void onWrite(String key, long size) {
+		Node node = mNodes.get(key);
+		if (node == null) {
+			node = new Node(key);
+			mNodes.put(key, node);
+		} else {
+			mQueue.remove(node);
+		}
+		node.mSize = Math.max(size, 1);
+		touch(node);
+	}
+
+	@Override
+	public void onRead(String key) {
+		Node node = mNodes.get(key);
+		if (node != null) {
+			mQueue.remove(node);
+			touch(node);
+		}
+	}
+
+	@Override
+	public void onRemove(String key) {
+		Node node = mNodes.remove(key);
+		if (node != null) {
+			mQueue.remove(node);
+		}
+	}
+
+	@Override
+	public String nextVictim() {
+		if (mQueue.isEmpty()) {
+			return null;
+		}
+		Node node = mQueue.first();
+		mInflation = node.mPriority;
+		return node.mKey;
+	}
+
+	@Override
+	public List<String> keys() {
+		ArrayList<String> keys = new ArrayList<String>(mQueue.size());
+		for (Node node : mQueue) {
+			keys.add(node.mKey);
+		}
+		return keys;
+	}
+
+	private void touch(Node node) {
+		if (node.mFrequency < Integer.MAX_VALUE) {
+			node.mFrequency++;
+		}
+		node.mPriority = mInflation + (double) node.mFrequency / node.mSize;
+		node.mSequence = mNextSequence++;
+		mQueue.add(node);
+	}
+}
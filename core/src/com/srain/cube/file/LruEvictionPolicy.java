@@ -0,0 +1,40 @@
+package com.srain.cube.file;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Evict the least recently used entry. This is the default policy of {@link DiskLruCache}.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+
+	@Override
+	public void onWrite(String key, long size) {
+		mEntries.put(key, size);
+	}
+
+	@Override
+	public void onRead(String key) {
+		mEntries.get(key);
+	}
+
+	@Override
+	public void onRemove(String key) {
+		mEntries.remove(key);
+	}
+
+	@Override
+	public String nextVictim() {
+		Iterator<String> it = mEntries.keySet().iterator();
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public List<String> keys() {
+		return new ArrayList<String>(mEntries.keySet());
+	}
+}
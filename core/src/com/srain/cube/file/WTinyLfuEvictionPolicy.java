@@ -0,0 +1,324 @@
+package com.srain.cube.file;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Window TinyLFU.
+ *
+ * New entries land in a small LRU window. The rest of the cache is a segmented LRU: entries enter the probation segment
+ * and are promoted to the protected segment when they are read again. Entries which overflow the window enter the
+ * probation segment as candidates. When the cache has to evict, the oldest candidate competes with the oldest entry of
+ * the main space, and the one which has been used less often, according to a compact frequency sketch, is evicted. A
+ * large candidate has to win against every entry it pushes out.
+ *
+ * One-off entries, like a single large download, are evicted soon after they leave the window, without pushing out the
+ * entries which are used all the time.
+ */
+public class WTinyLfuEvictionPolicy implements EvictionPolicy {
+
+	private static final float DEFAULT_WINDOW_PERCENT = 0.01f;
+	private static final float PROTECTED_PERCENT = 0.8f;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int CANDIDATE = 3;
+
+	private final float mWindowPercent;
+	private final FrequencySketch mSketch = new FrequencySketch();
+
+	private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+	private final LinkedHashMap<String, Node> mWindow = new LinkedHashMap<String, Node>(0, 0.75f, true);
+	private final LinkedHashMap<String, Node> mProbation = new LinkedHashMap<String, Node>(0, 0.75f, true);
+	private final LinkedHashMap<String, Node> mProtected = new LinkedHashMap<String, Node>(0, 0.75f, true);
+
+	/** The entries of the probation segment which have not been admitted yet, oldest first. */
+	private final LinkedHashMap<String, Node> mCandidates = new LinkedHashMap<String, Node>();
+
+	private long mWindowSize;
+	/** With the candidates. */
+	private long mProbationSize;
+	private long mProtectedSize;
+
+	private Node mAdmitting;
+	private long mAdmittingCredit;
+
+	private static class Node {
+		private final String mKey;
+		private long mSize;
+		private int mQueue;
+
+		private Node(String key) {
+			mKey = key;
+		}
+	}
+
+	public WTinyLfuEvictionPolicy() {
+		this(DEFAULT_WINDOW_PERCENT);
+	}
+
+	/**
+	 * @param windowPercent
+	 *            the share of the cache, in bytes, which is used by the admission window
+	 */
+	public WTinyLfuEvictionPolicy(float windowPercent) {
+		if (windowPercent <= 0 || windowPercent >= 1) {
+			throw new IllegalArgumentException("windowPercent must be in (0, 1)");
+		}
+		mWindowPercent = windowPercent;
+	}
+
+	@Override
+	public void onWrite(String key, long size) {
+		Node node = mNodes.get(key);
+		if (node != null) {
+			addSize(node, size - node.mSize);
+			node.mSize = size;
+			onRead(key);
+			return;
+		}
+		node = new Node(key);
+		node.mSize = size;
+		mNodes.put(key, node);
+		mSketch.ensureCapacity(mNodes.size());
+		mSketch.increment(key);
+		add(node, WINDOW);
+
+		long total = mWindowSize + mProbationSize + mProtectedSize;
+		while (mWindowSize > total * mWindowPercent && mWindow.size() > 1) {
+			Node overflow = eldest(mWindow);
+			remove(overflow);
+			add(overflow, CANDIDATE);
+		}
+	}
+
+	@Override
+	public void onRead(String key) {
+		Node node = mNodes.get(key);
+		if (node == null) {
+			return;
+		}
+		mSketch.increment(key);
+		switch (node.mQueue) {
+		case WINDOW:
+			mWindow.get(key);
+			break;
+		case PROBATION:
+		case CANDIDATE:
+			remove(node);
+			add(node, PROTECTED);
+			demoteProtected();
+			break;
+		case PROTECTED:
+			mProtected.get(key);
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void onRemove(String key) {
+		Node node = mNodes.remove(key);
+		if (node != null) {
+			remove(node);
+		}
+	}
+
+	@Override
+	public String nextVictim() {
+		Node candidate = eldest(mCandidates);
+		Node victim = eldest(mProbation);
+		if (victim == null) {
+			victim = eldest(mProtected);
+		}
+
+		if (candidate == null || victim == null) {
+			if (candidate != null) {
+				return candidate.mKey;
+			}
+			if (victim != null) {
+				return victim.mKey;
+			}
+			Node node = eldest(mWindow);
+			return node == null ? null : node.mKey;
+		}
+
+		if (mSketch.frequency(candidate.mKey) <= mSketch.frequency(victim.mKey)) {
+			return candidate.mKey;
+		}
+
+		// a large candidate has to win against every victim which is evicted to make room for it
+		if (mAdmitting != candidate) {
+			mAdmitting = candidate;
+			mAdmittingCredit = 0;
+		}
+		mAdmittingCredit += victim.mSize;
+		if (mAdmittingCredit >= candidate.mSize) {
+			remove(candidate);
+			add(candidate, PROBATION);
+		}
+		return victim.mKey;
+	}
+
+	@Override
+	public List<String> keys() {
+		ArrayList<String> keys = new ArrayList<String>(mNodes.size());
+		keys.addAll(mCandidates.keySet());
+		keys.addAll(mProbation.keySet());
+		keys.addAll(mWindow.keySet());
+		keys.addAll(mProtected.keySet());
+		return keys;
+	}
+
+	private void demoteProtected() {
+		long max = (long) ((mProbationSize + mProtectedSize) * PROTECTED_PERCENT);
+		while (mProtectedSize > max && mProtected.size() > 1) {
+			Node node = eldest(mProtected);
+			remove(node);
+			add(node, PROBATION);
+		}
+	}
+
+	private void add(Node node, int queue) {
+		node.mQueue = queue;
+		queueOf(queue).put(node.mKey, node);
+		addSize(node, node.mSize);
+	}
+
+	private void remove(Node node) {
+		queueOf(node.mQueue).remove(node.mKey);
+		addSize(node, -node.mSize);
+		if (node == mAdmitting) {
+			mAdmitting = null;
+		}
+	}
+
+	private void addSize(Node node, long delta) {
+		switch (node.mQueue) {
+		case WINDOW:
+			mWindowSize += delta;
+			break;
+		case PROBATION:
+		case CANDIDATE:
+			mProbationSize += delta;
+			break;
+		case PROTECTED:
+			mProtectedSize += delta;
+			break;
+		default:
+			break;
+		}
+	}
+
+	private LinkedHashMap<String, Node> queueOf(int queue) {
+		switch (queue) {
+		case WINDOW:
+			return mWindow;
+		case PROBATION:
+			return mProbation;
+		case CANDIDATE:
+			return mCandidates;
+		default:
+			return mProtected;
+		}
+	}
+
+	private static Node eldest(LinkedHashMap<String, Node> queue) {
+		Iterator<Node> it = queue.values().iterator();
+		return it.hasNext() ? it.next() : null;
+	}
+
+	/**
+	 * A count-min sketch with 4-bit counters, 16 counters packed in a long. The counters are halved after a sample
+	 * period, so the frequency reflects the recent history.
+	 */
+	private static class FrequencySketch {
+
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+		private static final int MIN_TABLE_SIZE = 16;
+
+		private long[] mTable;
+		private int mTableMask;
+		private int mSampleSize;
+		private int mSize;
+
+		private FrequencySketch() {
+			ensureCapacity(MIN_TABLE_SIZE);
+		}
+
+		private void ensureCapacity(int maximumSize) {
+			if (mTable != null && mTable.length >= maximumSize) {
+				return;
+			}
+			int length = MIN_TABLE_SIZE;
+			while (length < maximumSize) {
+				length <<= 1;
+			}
+			// a counter of the larger table starts from the counter it splits from, the frequencies are kept
+			long[] table = new long[length];
+			if (mTable != null) {
+				for (int i = 0; i < length; i++) {
+					table[i] = mTable[i & mTableMask];
+				}
+			}
+			mTable = table;
+			mTableMask = length - 1;
+			mSampleSize = 10 * length;
+		}
+
+		private int frequency(String key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		private void increment(String key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int offset = (start + i) << 2;
+				long mask = 0xfL << offset;
+				if ((mTable[index] & mask) != mask) {
+					mTable[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++mSize >= mSampleSize) {
+				reset();
+			}
+		}
+
+		private void reset() {
+			for (int i = 0; i < mTable.length; i++) {
+				mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+			}
+			mSize >>>= 1;
+		}
+
+		private int indexOf(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return ((int) h) & mTableMask;
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+}
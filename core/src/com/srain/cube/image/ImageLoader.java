@@ -1,5 +1,6 @@
 package com.srain.cube.image;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -10,13 +11,16 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 
+import com.srain.cube.concurrent.FrameBatchedDispatcher;
 import com.srain.cube.concurrent.SimpleTask;
 import com.srain.cube.image.iface.ImageLoadHandler;
 import com.srain.cube.image.iface.ImageResizer;
+import com.srain.cube.image.iface.BoundedImageTaskExcutor;
 import com.srain.cube.image.iface.ImageTaskExcutor;
 import com.srain.cube.image.imple.DefaultImageLoadHandler;
 import com.srain.cube.image.imple.DefaultImageTaskExecutor;
 import com.srain.cube.image.imple.DefaultResizer;
+import com.srain.cube.image.util.DownloadConcurrencyController;
 import com.srain.cube.util.CLog;
 
 /**
@@ -53,6 +57,23 @@ public class ImageLoader {
 		FIRST_IN_FIRST_OUT, LAST_IN_FIRST_OUT
 	}
 
+	/**
+	 * Which task is dropped when a task is added to a full queue, see
+	 * {@link #setQueueCapacity(int, ImageTaskOverflow)}. A task already cancelled or past its deadline is always
+	 * dropped first.
+	 */
+	public enum ImageTaskOverflow {
+		/** The task which has waited the longest. */
+		DROP_OLDEST,
+		/**
+		 * The oldest task whose image view has been reused for another image, the oldest task if every one still has
+		 * its view.
+		 */
+		DROP_DETACHED,
+		/** A new preload is dropped; otherwise the oldest preload in the queue, or the oldest task if there is none. */
+		DROP_PRELOAD_FIRST
+	}
+
 	public ImageLoader(Context context, ImageProvider imageProvider, ImageTaskExcutor executor, ImageResizer imageResizer, ImageLoadHandler imageLoadHandler) {
 		mContext = context;
 		mResources = context.getResources();
@@ -153,6 +174,7 @@ public class ImageLoader {
 		imageTask.onLoading(mImageLoadHandler);
 
 		LoadImageTask loadImageTask = new LoadImageTask(imageTask);
+		loadImageTask.setDeadline(imageTask.getDeadline());
 		mLoadWorkList.put(imageTask.getIdentityKey(), loadImageTask);
 		mImgageTaskExcutor.execute(loadImageTask);
 	}
@@ -179,10 +201,60 @@ public class ImageLoader {
 		}
 	}
 
-	private class LoadImageTask extends SimpleTask {
+	/**
+	 * Bound the number of the tasks waiting to be loaded, unbounded by default. The tasks dropped by the overflow
+	 * policy are cancelled, as if their image view had been detached.
+	 *
+	 * Does nothing unless the executor is a {@link BoundedImageTaskExcutor}.
+	 */
+	public void setQueueCapacity(int capacity, ImageTaskOverflow overflow) {
+		if (mImgageTaskExcutor instanceof BoundedImageTaskExcutor) {
+			((BoundedImageTaskExcutor) mImgageTaskExcutor).setQueueCapacity(capacity, overflow);
+		}
+	}
+
+	/**
+	 * Load the image of an {@link ImageTask}, it is in the work list from the time it is added until it finishes or is
+	 * cancelled.
+	 *
+	 * When the image has to be downloaded while the downloads are at their limit, the task gives back its thread and is
+	 * run again once a download slot is free.
+	 */
+	public class LoadImageTask extends SimpleTask {
 
 		private ImageTask mImageTask;
 		private BitmapDrawable mDrawable;
+		private boolean mDownloadDeferred;
+		/**
+		 * Main thread only: the task waits for a download slot, or has been told one is free before it has finished.
+		 */
+		private boolean mWaitingForSlot;
+		private boolean mSlotAvailable;
+
+		private final DownloadConcurrencyController.SlotWaiter mSlotWaiter = new DownloadConcurrencyController.SlotWaiter() {
+
+			@Override
+			public void onSlotAvailable() {
+				FrameBatchedDispatcher.getInstance().dispatch(mResume);
+			}
+		};
+
+		private final Runnable mResume = new Runnable() {
+
+			@Override
+			public void run() {
+				if (!mWaitingForSlot) {
+					mSlotAvailable = true;
+					return;
+				}
+				mWaitingForSlot = false;
+				// it may have been cancelled meanwhile, which gives up the slot
+				if (mLoadWorkList.get(mImageTask.getIdentityKey()) != LoadImageTask.this || isCancelled()) {
+					return;
+				}
+				mImgageTaskExcutor.execute(LoadImageTask.this);
+			}
+		};
 
 		public LoadImageTask(ImageTask imageTask) {
 			this.mImageTask = imageTask;
@@ -198,6 +270,7 @@ public class ImageLoader {
 				Log.d(Log_TAG, String.format(MSG_TASK_DO_IN_BACKGROUND, mImageTask));
 			}
 			Bitmap bitmap = null;
+			mDownloadDeferred = false;
 			// Wait here if work is paused and the task is not cancelled
 			synchronized (mPauseWorkLock) {
 				while (mPauseWork && !isCancelled()) {
@@ -217,7 +290,11 @@ public class ImageLoader {
 			// the cache
 			if (!isCancelled() && !mExitTasksEarly && (mImageTask.isPreLoad() || mImageTask.stillHasRelatedImageView())) {
 				try {
-					bitmap = mImageProvider.fetchBitmapData(mImageTask, mResizer);
+					bitmap = mImageProvider.fetchBitmapData(mImageTask, mResizer, mSlotWaiter);
+					if (bitmap == null && DownloadConcurrencyController.getInstance().isWaiting(mSlotWaiter)) {
+						mDownloadDeferred = true;
+						return;
+					}
 					mDrawable = mImageProvider.createBitmapDrawable(mResources, bitmap);
 					mImageProvider.addBitmapToMemCache(mImageTask.getIdentityKey(), mDrawable);
 				} catch (Exception e) {
@@ -234,8 +311,23 @@ public class ImageLoader {
 				Log.d(Log_TAG, String.format(MSG_TASK_FINISH, mImageTask));
 			}
 			if (mExitTasksEarly) {
+				DownloadConcurrencyController.getInstance().cancelWait(mSlotWaiter);
+				return;
+			}
+			if (mDownloadDeferred) {
+				// still in the work list, the image views attached meanwhile get the image of the next run, and it can
+				// be cancelled while it waits
+				restart();
+				if (mSlotAvailable) {
+					mSlotAvailable = false;
+					mImgageTaskExcutor.execute(this);
+				} else {
+					mWaitingForSlot = true;
+				}
 				return;
 			}
+			mSlotAvailable = false;
+			DownloadConcurrencyController.getInstance().cancelWait(mSlotWaiter);
 			mLoadWorkList.remove(mImageTask.getIdentityKey());
 
 			if (!isCancelled() && !mExitTasksEarly) {
@@ -248,6 +340,7 @@ public class ImageLoader {
 			if (DEBUG) {
 				Log.d(Log_TAG, String.format(MSG_TASK_CANCEL, mImageTask));
 			}
+			DownloadConcurrencyController.getInstance().cancelWait(mSlotWaiter);
 			mLoadWorkList.remove(mImageTask.getIdentityKey());
 			mImageTask.onCancel();
 		}
@@ -293,10 +386,12 @@ public class ImageLoader {
 		}
 		mExitTasksEarly = false;
 		setPause(false);
-		Iterator<Entry<String, LoadImageTask>> it = (Iterator<Entry<String, LoadImageTask>>) mLoadWorkList.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<String, LoadImageTask> item = it.next();
-			LoadImageTask task = item.getValue();
+		// a full queue cancels the tasks it drops right away, which takes them off the work list
+		ArrayList<LoadImageTask> tasks = new ArrayList<LoadImageTask>(mLoadWorkList.values());
+		for (LoadImageTask task : tasks) {
+			if (mLoadWorkList.get(task.getImageTask().getIdentityKey()) != task) {
+				continue;
+			}
 			task.restart();
 			mImgageTaskExcutor.execute(task);
 		}
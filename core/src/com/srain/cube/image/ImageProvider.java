@@ -4,6 +4,7 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Semaphore;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -21,6 +22,7 @@ import com.srain.cube.image.iface.ImageMemoryCache;
 import com.srain.cube.image.iface.ImageResizer;
 import com.srain.cube.image.imple.DefaultMemoryCache;
 import com.srain.cube.image.imple.LruImageFileCache;
+import com.srain.cube.image.util.DownloadConcurrencyController;
 import com.srain.cube.image.util.Downloader;
 import com.srain.cube.util.CLog;
 import com.srain.cube.util.Version;
@@ -45,11 +47,15 @@ public class ImageProvider {
 	private static final String MSG_FETCH_REUSE_SUCC = "%s reuse size: %s";
 	private static final String MSG_FETCH_REUSE_FAIL = "%s reuse fail: %s, %s";
 	private static final String MSG_FETCH_DOWNLOAD = "%s not found in cache, downloading: %s";
+	private static final String MSG_FETCH_AWAITED = "%s downloaded by another task: %s";
 	private static final String MSG_DECODE = "%s decode: %sx%s inSampleSize:%s";
 
 	private ImageMemoryCache mMemoryCache;
 	private LruImageFileCache mFileCache;
 
+	/** The image pool has more threads than cores for the downloads, the decoding must not use more than the cores. */
+	private static final Semaphore sDecodePermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+
 	private static ImageProvider sDefault;
 
 	public static ImageProvider getDefault(Context context) {
@@ -124,6 +130,15 @@ public class ImageProvider {
 	 * Get Bitmap
 	 */
 	public Bitmap fetchBitmapData(ImageTask imageTask, ImageResizer imageResizer) {
+		return fetchBitmapData(imageTask, imageResizer, null);
+	}
+
+	/**
+	 * Get Bitmap, without waiting for a download slot if {@code waiter} is set: when the image has to be downloaded
+	 * while the downloads are at their {@link DownloadConcurrencyController limit}, null is returned and the waiter is
+	 * told when a slot is free, to fetch the image again.
+	 */
+	public Bitmap fetchBitmapData(ImageTask imageTask, ImageResizer imageResizer, DownloadConcurrencyController.SlotWaiter waiter) {
 		Bitmap bitmap = null;
 		if (mFileCache != null) {
 			InputStream inputStream = null;
@@ -186,26 +201,55 @@ public class ImageProvider {
 					if (DEBUG) {
 						Log.d(TAG, String.format(MSG_FETCH_DOWNLOAD, imageTask, imageResizer.getResizedUrl(imageTask)));
 					}
-					DiskLruCache.Editor editor = mFileCache.open(cacheKey);
+					// the slot comes first: the other tasks of the key wait for the edit once it is open
+					DownloadConcurrencyController controller = DownloadConcurrencyController.getInstance();
+					if (!acquireDownloadSlot(controller, waiter)) {
+						return null;
+					}
+					DiskLruCache.Editor editor;
+					try {
+						editor = mFileCache.open(cacheKey);
+					} catch (IOException e) {
+						controller.releaseUnused();
+						throw e;
+					}
+					if (editor == null) {
+						// another task is downloading the same image, wait for it without the slot and read what it
+						// wrote
+						controller.releaseUnused();
+						editor = mFileCache.openOrAwait(cacheKey);
+						// its download has failed, and there is no slot to try again now
+						if (editor != null && !acquireDownloadSlot(controller, waiter)) {
+							editor.abort();
+							return null;
+						}
+					}
 					if (editor != null) {
-						if (Downloader.downloadUrlToStream(imageResizer.getResizedUrl(imageTask), editor.newOutputStream(0))) {
+						if (Downloader.downloadAcquiredUrlToStream(imageResizer.getResizedUrl(imageTask), editor.newOutputStream(0))) {
 							editor.commit();
 						} else {
 							editor.abort();
 						}
-					} else {
-						Log.e(TAG, imageTask + " open editor fail.");
+					} else if (DEBUG) {
+						Log.d(TAG, String.format(MSG_FETCH_AWAITED, imageTask, cacheKey));
 					}
 					inputStream = mFileCache.read(cacheKey);
 				}
 				if (inputStream != null) {
 					FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-					bitmap = decodeSampledBitmapFromDescriptor(fd, imageTask, imageResizer);
+					sDecodePermits.acquireUninterruptibly();
+					try {
+						bitmap = decodeSampledBitmapFromDescriptor(fd, imageTask, imageResizer);
+					} finally {
+						sDecodePermits.release();
+					}
 					// bitmap = convertForImageViewScaleType(bitmap, imageTask);
 
 				} else {
 					Log.e(TAG, imageTask + " fetch bitmap fail.");
 				}
+			} catch (DiskLruCache.EditTimeoutException e) {
+				Log.e(TAG, imageTask + " fetch bitmap fail, " + e.getMessage());
 			} catch (Exception e) {
 				e.printStackTrace();
 			} finally {
@@ -221,6 +265,14 @@ public class ImageProvider {
 		return bitmap;
 	}
 
+	/**
+	 * @param waiter
+	 *            told when a slot is free if there is none now, or null to wait for one in this thread
+	 */
+	private static boolean acquireDownloadSlot(DownloadConcurrencyController controller, DownloadConcurrencyController.SlotWaiter waiter) {
+		return waiter == null ? controller.acquire() : controller.tryAcquire(waiter);
+	}
+
 	private Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, ImageTask imageTask, ImageResizer imageResizer) {
 
 		// First decode with inJustDecodeBounds=true to check dimensions
@@ -42,6 +42,7 @@ public class ImageTask {
 	protected ImageReuseInfo mImageReuseInfo;
 	protected ScaleType mScaleType;
 	protected boolean mAdjustBounds = false;
+	private long mDeadline;
 
 	public ImageTask(String url, int requestWidth, int requestHeight, ImageReuseInfo imageReuseInfo) {
 
@@ -71,6 +72,21 @@ public class ImageTask {
 		mAdjustBounds = adjust;
 	}
 
+	/**
+	 * Do not load the image if the loading has not started by then, see
+	 * {@link com.srain.cube.concurrent.SimpleTask#setDeadline(long)}.
+	 * 
+	 * @param uptimeMillis
+	 *            in the time base of {@link android.os.SystemClock#uptimeMillis()}, 0 for no deadline
+	 */
+	public void setDeadline(long uptimeMillis) {
+		mDeadline = uptimeMillis;
+	}
+
+	public long getDeadline() {
+		return mDeadline;
+	}
+
 	public boolean isPreLoad() {
 		return (mFlag & STATUS_PRE_LOAD) == STATUS_PRE_LOAD;
 	}
@@ -0,0 +1,18 @@
+package com.srain.cube.image.iface;
+
+import com.srain.cube.image.ImageLoader.ImageTaskOverflow;
+
+/**
+ * An {@link ImageTaskExcutor} whose queue can be bounded.
+ */
+public interface BoundedImageTaskExcutor extends ImageTaskExcutor {
+
+	/**
+	 * Bound the queue, a task dropped by the overflow policy must be cancelled by
+	 * {@link com.srain.cube.concurrent.SimpleTask#cancel(boolean)}.
+	 *
+	 * @param overflow
+	 *            null to make the queue unbounded again
+	 */
+	public void setQueueCapacity(int capacity, ImageTaskOverflow overflow);
+}
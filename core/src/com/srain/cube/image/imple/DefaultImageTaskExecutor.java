@@ -1,17 +1,18 @@
 package com.srain.cube.image.imple;
 
-import java.util.concurrent.ThreadFactory;
+import java.util.List;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import android.annotation.TargetApi;
-import android.os.Build;
-
-import com.srain.cube.concurrent.LinkedBlockingDeque;
+import com.srain.cube.concurrent.ExecutorInstrumentation;
+import com.srain.cube.concurrent.ExecutorRegistry;
+import com.srain.cube.concurrent.InstrumentedExecutor;
+import com.srain.cube.concurrent.LockFreeTaskQueue;
+import com.srain.cube.concurrent.SimpleTask;
+import com.srain.cube.image.ImageLoader;
 import com.srain.cube.image.ImageLoader.ImageTaskOrder;
-import com.srain.cube.image.iface.ImageTaskExcutor;
-import com.srain.cube.util.Version;
+import com.srain.cube.image.ImageLoader.ImageTaskOverflow;
+import com.srain.cube.image.ImageTask;
+import com.srain.cube.image.iface.BoundedImageTaskExcutor;
 
 /**
  * 
@@ -20,19 +21,15 @@ import com.srain.cube.util.Version;
  * @author huqiu.lhq
  * 
  */
-public class DefaultImageTaskExecutor implements ImageTaskExcutor {
-
-	private static final TimeUnit KEEP_ALIVE_TIME_UNIT;
-	private static final int KEEP_ALIVE_TIME = 1;
+public class DefaultImageTaskExecutor implements BoundedImageTaskExcutor {
 
-	private static int sNUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
 	private static DefaultImageTaskExecutor sInstance = null;
 
 	private final ThreadPoolExecutor mThreadPool;
-	private final LinkedBlockingStack<Runnable> mTaskWorkQueue;
+	private final LockFreeTaskQueue<Runnable> mTaskWorkQueue;
+	private final InstrumentedExecutor mInstrumentedExecutor;
 
 	static {
-		KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
 		sInstance = new DefaultImageTaskExecutor();
 	}
 
@@ -40,80 +37,107 @@ public class DefaultImageTaskExecutor implements ImageTaskExcutor {
 		return sInstance;
 	}
 
-	public static class LinkedBlockingStack<T> extends LinkedBlockingDeque<T> {
-
-		private static final long serialVersionUID = -4114786347960826192L;
-		private ImageTaskOrder mImageTaskOrder = ImageTaskOrder.FIRST_IN_FIRST_OUT;
+	private DefaultImageTaskExecutor() {
 
-		public void setTaskOrder(ImageTaskOrder order) {
-			mImageTaskOrder = order;
-		}
+		// the UI thread and every worker meet at this queue, it must not make them wait for each other
+		mTaskWorkQueue = new LockFreeTaskQueue<Runnable>();
+		mThreadPool = ExecutorRegistry.getInstance().getExecutor(ExecutorRegistry.POOL_IMAGE, mTaskWorkQueue);
+		mInstrumentedExecutor = new InstrumentedExecutor(ExecutorRegistry.POOL_IMAGE, mThreadPool);
+	}
 
-		@Override
-		public boolean offer(T e) {
-			if (mImageTaskOrder == ImageTaskOrder.LAST_IN_FIRST_OUT) {
-				return super.offerFirst(e);
-			} else {
-				return super.offer(e);
-			}
-		}
+	@Override
+	public void execute(Runnable command) {
+		mInstrumentedExecutor.execute(command);
+	}
 
-		@Override
-		public T remove() {
-			if (mImageTaskOrder == ImageTaskOrder.LAST_IN_FIRST_OUT) {
-				return super.removeFirst();
-			} else {
-				return super.remove();
-			}
-		}
+	/**
+	 * How long the image tasks wait and run, how deep the queue gets, and how many tasks expired before they started.
+	 */
+	public ExecutorInstrumentation.Snapshot getStats() {
+		return mInstrumentedExecutor.getSnapshot();
 	}
 
-	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
-	private DefaultImageTaskExecutor() {
+	@Override
+	public void setTaskOrder(ImageTaskOrder order) {
+		mTaskWorkQueue.setLastInFirstOut(order == ImageTaskOrder.LAST_IN_FIRST_OUT);
+	}
 
-		mTaskWorkQueue = new LinkedBlockingStack<Runnable>();
-		mThreadPool = new ThreadPoolExecutor(sNUMBER_OF_CORES, sNUMBER_OF_CORES, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, mTaskWorkQueue, new DefaultThreadFactory());
-		if (Version.hasGingerbread()) {
-			mThreadPool.allowCoreThreadTimeOut(true);
-		} else {
-			// Does nothing
-		}
+	@Override
+	public void setQueueCapacity(int capacity, ImageTaskOverflow overflow) {
+		mTaskWorkQueue.setCapacity(capacity, overflow == null ? null : new OverflowPolicy(overflow));
 	}
 
 	/**
-	 * The default thread factory
+	 * Select the task to drop among the queued ones, and cancel it, so the image loader takes it off its work list.
 	 */
-	static class DefaultThreadFactory implements ThreadFactory {
-		private static final AtomicInteger poolNumber = new AtomicInteger(1);
-		private final ThreadGroup group;
-		private final AtomicInteger threadNumber = new AtomicInteger(1);
-		private final String namePrefix;
-		private static final String sPre = "image-excutor-pool-";
-		private static final String sPost = "-thread-";
-
-		DefaultThreadFactory() {
-			SecurityManager s = System.getSecurityManager();
-			group = (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
-			namePrefix = sPre + poolNumber.getAndIncrement() + sPost;
+	private class OverflowPolicy implements LockFreeTaskQueue.OverflowPolicy<Runnable> {
+
+		private final ImageTaskOverflow mOverflow;
+
+		private OverflowPolicy(ImageTaskOverflow overflow) {
+			mOverflow = overflow;
 		}
 
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(group, r, namePrefix + threadNumber.getAndIncrement(), 0);
-			if (t.isDaemon())
-				t.setDaemon(false);
-			if (t.getPriority() != Thread.NORM_PRIORITY)
-				t.setPriority(Thread.NORM_PRIORITY);
-			return t;
+		@Override
+		public Runnable selectVictim(List<Runnable> queued, Runnable incoming) {
+			for (Runnable r : queued) {
+				Runnable task = unwrap(r);
+				if (task instanceof SimpleTask && (((SimpleTask) task).isCancelled() || ((SimpleTask) task).isPastDeadline())) {
+					return r;
+				}
+			}
+			switch (mOverflow) {
+			case DROP_DETACHED:
+				for (Runnable r : queued) {
+					ImageTask imageTask = getImageTask(r);
+					if (imageTask != null && !imageTask.isPreLoad() && !imageTask.stillHasRelatedImageView()) {
+						return r;
+					}
+				}
+				break;
+			case DROP_PRELOAD_FIRST:
+				ImageTask incomingTask = getImageTask(incoming);
+				if (incomingTask != null && incomingTask.isPreLoad()) {
+					return incoming;
+				}
+				for (Runnable r : queued) {
+					ImageTask imageTask = getImageTask(r);
+					if (imageTask != null && imageTask.isPreLoad()) {
+						return r;
+					}
+				}
+				break;
+			default:
+				break;
+			}
+			// emptied by the workers since it was found full
+			return queued.isEmpty() ? null : queued.get(0);
 		}
-	}
 
-	@Override
-	public void execute(Runnable command) {
-		mThreadPool.execute(command);
-	}
+		@Override
+		public void onDropped(Runnable dropped) {
+			if (dropped instanceof ExecutorInstrumentation.InstrumentedTask) {
+				mInstrumentedExecutor.getInstrumentation().onDropped((ExecutorInstrumentation.InstrumentedTask) dropped);
+			}
+			Runnable task = unwrap(dropped);
+			if (task instanceof SimpleTask) {
+				((SimpleTask) task).cancel(false);
+			}
+		}
 
-	@Override
-	public void setTaskOrder(ImageTaskOrder order) {
-		mTaskWorkQueue.setTaskOrder(order);
+		private Runnable unwrap(Runnable r) {
+			if (r instanceof ExecutorInstrumentation.InstrumentedTask) {
+				return ((ExecutorInstrumentation.InstrumentedTask) r).getTask();
+			}
+			return r;
+		}
+
+		private ImageTask getImageTask(Runnable r) {
+			Runnable task = unwrap(r);
+			if (task instanceof ImageLoader.LoadImageTask) {
+				return ((ImageLoader.LoadImageTask) task).getImageTask();
+			}
+			return null;
+		}
 	}
-}
\ No newline at end of file
+}
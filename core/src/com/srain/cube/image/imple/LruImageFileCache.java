@@ -11,8 +11,10 @@ import android.graphics.Bitmap.CompressFormat;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
 
+import com.srain.cube.concurrent.CompletionDispatcher;
 import com.srain.cube.concurrent.SimpleExcutor;
 import com.srain.cube.concurrent.SimpleTask;
+import com.srain.cube.file.CacheStatsListener;
 import com.srain.cube.file.DiskLruCache;
 import com.srain.cube.file.DiskLruCache.Editor;
 import com.srain.cube.file.FileUtil;
@@ -41,6 +43,10 @@ public class LruImageFileCache {
 	private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
 	private static final int DEFAULT_COMPRESS_QUALITY = 70;
 	private static final int DISK_CACHE_INDEX = 0;
+	private static final int DISK_CACHE_FAN_OUT_LEVELS = 2;
+	// about as long as the download of an image by the other thread takes
+	private static final long EDIT_AWAIT_TIMEOUT = 15 * 1000;
+	private static final String EXECUTOR_KEY_PREFIX = "image-file-cache:";
 
 	private DiskLruCache mDiskLruCache;
 	private final Object mDiskCacheLock = new Object();
@@ -51,6 +57,9 @@ public class LruImageFileCache {
 
 	private long mLastFlushTime = 0;
 
+	private CacheStatsListener mStatsListener;
+	private long mStatsInterval;
+
 	protected enum FileCacheTaskType {
 		init_cache, close_cache, flush_cache
 	}
@@ -90,7 +99,14 @@ public class LruImageFileCache {
 					}
 					if (FileUtil.getUsableSpace(mDiskCacheDir) > mDiskCacheSize) {
 						try {
-							mDiskLruCache = DiskLruCache.open(mDiskCacheDir, 1, 1, mDiskCacheSize);
+							DiskLruCache.Options options = new DiskLruCache.Options();
+							options.fanOutLevels = DISK_CACHE_FAN_OUT_LEVELS;
+							// images can be downloaded again, don't pay for syncing them
+							options.durability = DiskLruCache.Durability.NONE;
+							mDiskLruCache = DiskLruCache.open(mDiskCacheDir, 1, 1, mDiskCacheSize, options);
+							if (mStatsListener != null) {
+								mDiskLruCache.setStatsListener(mStatsListener, mStatsInterval, 0);
+							}
 							if (DEBUG) {
 								Log.d(TAG, "Disk cache initialized " + this);
 							}
@@ -196,6 +212,36 @@ public class LruImageFileCache {
 		return null;
 	}
 
+	/**
+	 * Open an editor for the key, or wait until the image being written for the same key by another thread is
+	 * committed.
+	 * 
+	 * @return null if the image has been written by another thread and can be read now, or the disk cache is not
+	 * available
+	 * @throws DiskLruCache.EditTimeoutException
+	 *             if the other thread is still writing the image
+	 */
+	public Editor openOrAwait(String key) throws IOException {
+		if (null != mDiskLruCache) {
+			return mDiskLruCache.editOrAwait(key, EDIT_AWAIT_TIMEOUT);
+		}
+		return null;
+	}
+
+	/**
+	 * Report the stats of the disk cache to the listener every {@code intervalMillis}, on a background thread. The keys
+	 * are hashes, so the size histogram covers the whole cache. Set null to stop the reports.
+	 */
+	public void setStatsListener(CacheStatsListener listener, long intervalMillis) {
+		synchronized (mDiskCacheLock) {
+			mStatsListener = listener;
+			mStatsInterval = intervalMillis;
+			if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+				mDiskLruCache.setStatsListener(listener, intervalMillis, 0);
+			}
+		}
+	}
+
 	/**
 	 * Clears both the memory and disk cache associated with this ImageProvider object. Note that this includes disk access so this should not be executed on the main/UI thread.
 	 */
@@ -275,6 +321,8 @@ public class LruImageFileCache {
 
 		private FileCacheTask(FileCacheTaskType taskType) {
 			mTaskType = taskType;
+			// nothing to do on finish, don't hop to the main thread for it
+			setCompletionDispatcher(CompletionDispatcher.INLINE);
 		}
 
 		private FileCacheTaskType mTaskType;
@@ -302,7 +350,9 @@ public class LruImageFileCache {
 		}
 
 		void excute() {
-			SimpleExcutor.getInstance().execute(this);
+			// init, flush and close of this cache keep their order, other caches and the request cache don't wait for
+			// them
+			SimpleExcutor.getInstance().execute(EXECUTOR_KEY_PREFIX + mDiskCacheDir, this);
 		}
 	}
 
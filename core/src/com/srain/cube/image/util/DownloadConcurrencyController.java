@@ -0,0 +1,307 @@
+package com.srain.cube.image.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import com.srain.cube.concurrent.ExecutorRegistry;
+import com.srain.cube.util.NetworkStatusManager;
+
+/**
+ * Limit the number of images downloaded at the same time, and adapt the limit to what the network can take, additive
+ * increase and multiplicative decrease.
+ *
+ * The limit starts from the type of the network: a few downloads on Wi-Fi, fewer on a mobile network, and starts over
+ * when the type changes. The downloads are then sampled in windows of about {@code limit} downloads:
+ * <ul>
+ * <li>if the limit was reached and the latency is still close to the best one seen, one more download is allowed;</li>
+ * <li>if the latency has grown well above the best one and the throughput did not grow with it, the downloads are only
+ * queueing in the network: the limit is halved;</li>
+ * <li>in between, the limit stays;</li>
+ * <li>a download which timed out or could not connect halves the limit too, the other failures do not tell anything
+ * about the network.</li>
+ * </ul>
+ *
+ * The image loader does not wait for a slot in its threads, which serve the images in the disk cache meanwhile: it
+ * {@link #tryAcquire(SlotWaiter) tries} to take one, and is {@link SlotWaiter told} when one is free.
+ */
+public class DownloadConcurrencyController {
+
+	private static final int WIFI_INITIAL_LIMIT = 4;
+	private static final int MOBILE_INITIAL_LIMIT = 2;
+	/** Before the network status is known, or if it is not watched at all. */
+	private static final int UNKNOWN_INITIAL_LIMIT = 3;
+	private static final int MIN_WINDOW_SIZE = 4;
+	/** More downloads are allowed while the latency stays within this much of the best one. */
+	private static final float INCREASE_LATENCY_TOLERANCE = 1.5f;
+	/** The latency may grow this much over the best one before the network is considered congested. */
+	private static final float DECREASE_LATENCY_TOLERANCE = 2f;
+	/** The throughput has to grow at least this much to justify a higher latency. */
+	private static final float THROUGHPUT_GAIN = 1.1f;
+
+	private static DownloadConcurrencyController sInstance;
+
+	/**
+	 * A download which could not start for lack of a slot.
+	 */
+	public interface SlotWaiter {
+
+		/**
+		 * A slot is free, it is kept for the waiter until the waiter takes it with
+		 * {@link DownloadConcurrencyController#tryAcquire(SlotWaiter)} or gives it up with
+		 * {@link DownloadConcurrencyController#cancelWait(SlotWaiter)}. Called in the thread which has released the
+		 * slot, should be quick.
+		 */
+		public void onSlotAvailable();
+	}
+
+	private final int mMaxLimit;
+	private int mLimit;
+	private int mInFlight;
+	private Boolean mWifi;
+	private final LinkedList<SlotWaiter> mWaiters = new LinkedList<SlotWaiter>();
+	/** The waiters told a slot is free, which have not taken it yet. */
+	private final ArrayList<SlotWaiter> mReserved = new ArrayList<SlotWaiter>();
+
+	private boolean mSaturated;
+	private int mWindowCount;
+	private long mWindowBytes;
+	private long mWindowLatencyNanos;
+	private long mWindowStart;
+	private double mLastThroughput;
+	private long mMinLatencyNanos = Long.MAX_VALUE;
+
+	public static synchronized DownloadConcurrencyController getInstance() {
+		if (sInstance == null) {
+			// leave a thread to the images in the disk cache while the others download
+			sInstance = new DownloadConcurrencyController(ExecutorRegistry.getInstance().getThreadCount(ExecutorRegistry.POOL_IMAGE) - 1);
+		}
+		return sInstance;
+	}
+
+	public DownloadConcurrencyController(int maxLimit) {
+		mMaxLimit = Math.max(1, maxLimit);
+		synchronized (this) {
+			checkNetwork();
+		}
+	}
+
+	/**
+	 * Wait until one more download is allowed.
+	 *
+	 * @return false if the thread has been interrupted while waiting, the download must not start then
+	 */
+	public boolean acquire() {
+		ArrayList<SlotWaiter> woken;
+		synchronized (this) {
+			woken = checkNetwork();
+		}
+		tellAll(woken);
+		synchronized (this) {
+			while (!hasFreeSlot()) {
+				mSaturated = true;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			take();
+			return true;
+		}
+	}
+
+	/**
+	 * Take a slot for one more download if the limit allows it, or the slot kept for {@code waiter}, without waiting.
+	 * If there is none, {@code waiter} is told when there is one.
+	 */
+	public boolean tryAcquire(SlotWaiter waiter) {
+		ArrayList<SlotWaiter> woken;
+		boolean acquired;
+		synchronized (this) {
+			woken = checkNetwork();
+			acquired = mReserved.remove(waiter) || hasFreeSlot();
+			if (acquired) {
+				mWaiters.remove(waiter);
+				take();
+			} else {
+				mSaturated = true;
+				if (!mWaiters.contains(waiter)) {
+					mWaiters.add(waiter);
+				}
+			}
+		}
+		tellAll(woken);
+		return acquired;
+	}
+
+	/**
+	 * The download of {@code waiter} will not start, give up its turn or the slot kept for it.
+	 */
+	public void cancelWait(SlotWaiter waiter) {
+		ArrayList<SlotWaiter> woken = null;
+		synchronized (this) {
+			if (mReserved.remove(waiter)) {
+				woken = wake();
+			} else {
+				mWaiters.remove(waiter);
+			}
+		}
+		tellAll(woken);
+	}
+
+	/**
+	 * Report a download which has been acquired and has completed.
+	 *
+	 * @param latencyNanos
+	 *            the time to the first byte
+	 */
+	public void release(long bytes, long latencyNanos) {
+		ArrayList<SlotWaiter> woken;
+		synchronized (this) {
+			mInFlight--;
+			mWindowCount++;
+			mWindowBytes += bytes;
+			mWindowLatencyNanos += latencyNanos;
+			if (mWindowCount >= Math.max(MIN_WINDOW_SIZE, mLimit)) {
+				adjust();
+			}
+			woken = wake();
+		}
+		tellAll(woken);
+	}
+
+	/**
+	 * Report a download which has been acquired and has failed.
+	 *
+	 * @param congestion
+	 *            whether it timed out or could not connect, the only failures which may come from too many downloads; a
+	 *            missing image, a wrong url or an interrupted download only give back the slot
+	 */
+	public void releaseFailed(boolean congestion) {
+		ArrayList<SlotWaiter> woken;
+		synchronized (this) {
+			mInFlight--;
+			if (congestion) {
+				decrease();
+			}
+			woken = wake();
+		}
+		tellAll(woken);
+	}
+
+	/**
+	 * Give back a slot which has been acquired for a download which has not started.
+	 */
+	public void releaseUnused() {
+		ArrayList<SlotWaiter> woken;
+		synchronized (this) {
+			mInFlight--;
+			woken = wake();
+		}
+		tellAll(woken);
+	}
+
+	/**
+	 * Whether {@code waiter} waits for a slot or has one kept for it.
+	 */
+	public synchronized boolean isWaiting(SlotWaiter waiter) {
+		return mReserved.contains(waiter) || mWaiters.contains(waiter);
+	}
+
+	public synchronized int getLimit() {
+		return mLimit;
+	}
+
+	public synchronized int getInFlight() {
+		return mInFlight;
+	}
+
+	private boolean hasFreeSlot() {
+		return mInFlight + mReserved.size() < mLimit;
+	}
+
+	private void take() {
+		mInFlight++;
+		if (!hasFreeSlot()) {
+			mSaturated = true;
+		}
+		if (mWindowCount == 0 && mWindowStart == 0) {
+			mWindowStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Wake the threads in {@link #acquire()}, and keep the free slots for the first waiters, which are told out of the
+	 * lock.
+	 */
+	private ArrayList<SlotWaiter> wake() {
+		notifyAll();
+		ArrayList<SlotWaiter> woken = null;
+		while (hasFreeSlot() && !mWaiters.isEmpty()) {
+			if (woken == null) {
+				woken = new ArrayList<SlotWaiter>();
+			}
+			SlotWaiter waiter = mWaiters.removeFirst();
+			mReserved.add(waiter);
+			woken.add(waiter);
+		}
+		return woken;
+	}
+
+	private static void tellAll(ArrayList<SlotWaiter> woken) {
+		if (woken != null) {
+			for (SlotWaiter waiter : woken) {
+				waiter.onSlotAvailable();
+			}
+		}
+	}
+
+	private void adjust() {
+		long elapsed = Math.max(1, System.nanoTime() - mWindowStart);
+		double throughput = (double) mWindowBytes / elapsed;
+		long latency = mWindowLatencyNanos / mWindowCount;
+		mMinLatencyNanos = Math.min(mMinLatencyNanos, latency);
+
+		if (latency > mMinLatencyNanos * DECREASE_LATENCY_TOLERANCE && throughput < mLastThroughput * THROUGHPUT_GAIN) {
+			decrease();
+		} else if (mSaturated && mLimit < mMaxLimit && latency <= mMinLatencyNanos * INCREASE_LATENCY_TOLERANCE) {
+			mLimit++;
+			resetWindow();
+		} else {
+			resetWindow();
+		}
+		mLastThroughput = throughput;
+	}
+
+	private void decrease() {
+		mLimit = Math.max(1, mLimit / 2);
+		resetWindow();
+	}
+
+	private void resetWindow() {
+		mSaturated = false;
+		mWindowCount = 0;
+		mWindowBytes = 0;
+		mWindowLatencyNanos = 0;
+		mWindowStart = mInFlight > 0 ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Start over from the initial limit of the network type when it changes, what was learnt on the other network does
+	 * not apply.
+	 */
+	private ArrayList<SlotWaiter> checkNetwork() {
+		NetworkStatusManager manager = NetworkStatusManager.getInstance();
+		Boolean wifi = manager == null ? null : manager.isWifi();
+		if (mLimit != 0 && (wifi == null ? mWifi == null : wifi.equals(mWifi))) {
+			return null;
+		}
+		mWifi = wifi;
+		mLimit = Math.min(mMaxLimit, wifi == null ? UNKNOWN_INITIAL_LIMIT : (wifi ? WIFI_INITIAL_LIMIT : MOBILE_INITIAL_LIMIT));
+		mMinLatencyNanos = Long.MAX_VALUE;
+		mLastThroughput = 0;
+		resetWindow();
+		return wake();
+	}
+}
@@ -8,6 +8,8 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 
 /**
@@ -16,6 +18,8 @@ import java.net.URL;
 public class Downloader {
 	private static final String TAG = "cube_image";
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	private static final int READ_TIMEOUT = 15 * 1000;
 
 	/**
 	 * Download a bitmap from a URL and write the content to an output stream.
@@ -25,25 +29,56 @@ public class Downloader {
 	 * @return true if successful, false otherwise
 	 */
 	public static boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+		if (!DownloadConcurrencyController.getInstance().acquire()) {
+			return false;
+		}
+		return downloadAcquiredUrlToStream(urlString, outputStream);
+	}
+
+	/**
+	 * Like {@link #downloadUrlToStream(String, OutputStream)}, for a caller which has already taken a slot with
+	 * {@link DownloadConcurrencyController#tryAcquire(DownloadConcurrencyController.SlotWaiter)} or
+	 * {@link DownloadConcurrencyController#acquire()}. The slot is released here.
+	 */
+	public static boolean downloadAcquiredUrlToStream(String urlString, OutputStream outputStream) {
+		DownloadConcurrencyController controller = DownloadConcurrencyController.getInstance();
 		disableConnectionReuseIfNecessary();
 		HttpURLConnection urlConnection = null;
 		BufferedOutputStream out = null;
 		BufferedInputStream in = null;
+		boolean success = false;
+		boolean congestion = false;
+		long bytes = 0;
+		long latency = 0;
 
 		try {
+			final long start = System.nanoTime();
 			final URL url = new URL(urlString);
 			urlConnection = (HttpURLConnection) url.openConnection();
+			urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+			urlConnection.setReadTimeout(READ_TIMEOUT);
 			in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
+			latency = System.nanoTime() - start;
 			out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
-			int b;
-			while ((b = in.read()) != -1) {
-				out.write(b);
+			byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+				bytes += count;
 			}
+			success = true;
 			return true;
 		} catch (final IOException e) {
 			Log.e(TAG, "Error in downloadBitmap - " + e);
+			// refused, reset or timed out, unlike a missing image or an unknown host
+			congestion = e instanceof SocketTimeoutException || e instanceof SocketException;
 		} finally {
+			if (success) {
+				controller.release(bytes, latency);
+			} else {
+				controller.releaseFailed(congestion);
+			}
 			if (urlConnection != null) {
 				urlConnection.disconnect();
 			}
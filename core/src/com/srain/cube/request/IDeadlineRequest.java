@@ -0,0 +1,14 @@
+package com.srain.cube.request;
+
+/**
+ * A request which is dropped if it has not been sent by its deadline, for the data which is useless after some time.
+ */
+public interface IDeadlineRequest<T> extends IRequest<T> {
+
+	/**
+	 * The request is dropped if it has not been sent by then.
+	 * 
+	 * @return in the time base of {@link android.os.SystemClock#uptimeMillis()}, 0 for no deadline
+	 */
+	public long getDeadline();
+}
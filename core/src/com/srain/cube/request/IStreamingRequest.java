@@ -0,0 +1,24 @@
+package com.srain.cube.request;
+
+/**
+ * A request which takes its response while it is parsed, into its own {@link JsonHandler}, instead of a
+ * {@link JsonData} tree: for the responses too large to be held twice, or the ones of which only a part is used.
+ *
+ * Such a request has an HTTP call of its own, it is not shared with the identical requests sent at the same time.
+ */
+public interface IStreamingRequest<T> extends IRequest<T> {
+
+	/**
+	 * A new handler for the response of this request, called in the thread which will read it.
+	 */
+	public JsonHandler createJsonHandler();
+
+	/**
+	 * Make the result out of the handler once the whole response has been handled, in the same thread. Used instead of
+	 * {@link #processOriginData(JsonData)}.
+	 *
+	 * @param handler
+	 *            null if the request has failed or the response is not valid JSON
+	 */
+	public T processStreamedData(JsonHandler handler);
+}
@@ -0,0 +1,134 @@
+package com.srain.cube.request;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fill a model from the pieces of a JSON text, without building the {@link JsonData} tree and without reflection. The
+ * adapters of the {@link JsonModel} classes are generated; {@link JsonListAdapter} makes the lists.
+ *
+ * An adapter keeps no state, the state of a reading is in its {@link JsonBinder}.
+ */
+public abstract class JsonAdapter<T> {
+
+	/**
+	 * A new model for an object of the text, or a list for an array.
+	 */
+	public abstract T newInstance();
+
+	/**
+	 * A value which is not an object nor an array.
+	 *
+	 * @param name
+	 *            null in an array
+	 * @param value
+	 *            see {@link JsonHandler#onValue(Object)}
+	 */
+	public abstract void setValue(T model, String name, Object value);
+
+	/**
+	 * The adapter of the object or array of the name, null to skip it.
+	 *
+	 * @param name
+	 *            null in an array
+	 */
+	public JsonAdapter<?> getAdapter(String name) {
+		return null;
+	}
+
+	/**
+	 * The model of the object or array of the name, once it is filled by the adapter of {@link #getAdapter(String)}.
+	 */
+	public void setChild(T model, String name, Object child) {
+	}
+
+	/**
+	 * Whether the model is made from an array, instead of an object.
+	 */
+	public boolean isList() {
+		return false;
+	}
+
+	public JsonBinder<T> newBinder() {
+		return new JsonBinder<T>(this);
+	}
+
+	/**
+	 * Parse the text while it is read.
+	 *
+	 * @return null if the text is not an object, or an array for a list
+	 */
+	public T read(Reader reader) throws IOException, JSONException {
+		JsonBinder<T> binder = newBinder();
+		new JsonStreamParser(reader).parse(binder);
+		return binder.getResult();
+	}
+
+	/**
+	 * Fill the model from a tree which has already been parsed, for the data of {@link RequestCache}.
+	 */
+	public T read(JsonData json) {
+		JsonBinder<T> binder = newBinder();
+		try {
+			JsonBinder.replay(json.getRawData(), binder);
+		} catch (JSONException e) {
+			return null;
+		}
+		return binder.getResult();
+	}
+
+	// the conversions of the getters of JsonData, for the generated code
+
+	protected static boolean isNull(Object value) {
+		return value == null || value == JSONObject.NULL;
+	}
+
+	protected static String toString(Object value) {
+		return isNull(value) ? null : String.valueOf(value);
+	}
+
+	protected static int toInt(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		return (int) parseDouble(value);
+	}
+
+	protected static long toLong(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		return (long) parseDouble(value);
+	}
+
+	protected static double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return parseDouble(value);
+	}
+
+	protected static boolean toBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof String) {
+			return "true".equalsIgnoreCase((String) value);
+		}
+		return false;
+	}
+
+	private static double parseDouble(Object value) {
+		if (value instanceof String) {
+			try {
+				return Double.parseDouble((String) value);
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+}
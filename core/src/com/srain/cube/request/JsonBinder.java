@@ -0,0 +1,155 @@
+package com.srain.cube.request;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The {@link JsonHandler} which fills the model of a {@link JsonAdapter}, one object or array at a time: each one is
+ * handed to the adapter of its parent once it ends. The objects and arrays which the adapters do not take are skipped
+ * with what they hold.
+ *
+ * A binder is used for a single text.
+ */
+public class JsonBinder<T> implements JsonHandler {
+
+	private final JsonAdapter<T> mAdapter;
+	/** The models being filled, the innermost last. */
+	private final ArrayList<Frame> mFrames = new ArrayList<Frame>();
+	private String mName;
+	/** The depth in the container which is skipped, 0 if none. */
+	private int mSkipDepth;
+	private boolean mStarted;
+	private T mResult;
+
+	private static class Frame {
+
+		private final JsonAdapter<Object> mAdapter;
+		private final Object mModel;
+		/** The name of the model in its parent. */
+		private final String mName;
+
+		private Frame(JsonAdapter<Object> adapter, Object model, String name) {
+			mAdapter = adapter;
+			mModel = model;
+			mName = name;
+		}
+	}
+
+	public JsonBinder(JsonAdapter<T> adapter) {
+		mAdapter = adapter;
+	}
+
+	/**
+	 * The model once the text has been handled; null if the text does not fit the adapter.
+	 */
+	public T getResult() {
+		return mResult;
+	}
+
+	@Override
+	public void onStartObject() {
+		start(false);
+	}
+
+	@Override
+	public void onEndObject() {
+		end();
+	}
+
+	@Override
+	public void onStartArray() {
+		start(true);
+	}
+
+	@Override
+	public void onEndArray() {
+		end();
+	}
+
+	@Override
+	public void onName(String name) {
+		mName = name;
+	}
+
+	@Override
+	public void onValue(Object value) {
+		if (mSkipDepth > 0 || mFrames.isEmpty()) {
+			return;
+		}
+		Frame frame = mFrames.get(mFrames.size() - 1);
+		frame.mAdapter.setValue(frame.mModel, getName(frame), value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void start(boolean array) {
+		if (mSkipDepth > 0) {
+			mSkipDepth++;
+			return;
+		}
+		JsonAdapter<?> adapter;
+		String name = null;
+		if (mFrames.isEmpty()) {
+			adapter = mStarted ? null : mAdapter;
+			mStarted = true;
+		} else {
+			Frame parent = mFrames.get(mFrames.size() - 1);
+			name = getName(parent);
+			adapter = parent.mAdapter.getAdapter(name);
+		}
+		if (adapter == null || adapter.isList() != array) {
+			mSkipDepth = 1;
+			return;
+		}
+		JsonAdapter<Object> objectAdapter = (JsonAdapter<Object>) adapter;
+		mFrames.add(new Frame(objectAdapter, objectAdapter.newInstance(), name));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void end() {
+		if (mSkipDepth > 0) {
+			mSkipDepth--;
+			return;
+		}
+		Frame frame = mFrames.remove(mFrames.size() - 1);
+		if (mFrames.isEmpty()) {
+			mResult = (T) frame.mModel;
+			return;
+		}
+		Frame parent = mFrames.get(mFrames.size() - 1);
+		parent.mAdapter.setChild(parent.mModel, frame.mName, frame.mModel);
+	}
+
+	private String getName(Frame frame) {
+		return frame.mAdapter.isList() ? null : mName;
+	}
+
+	/**
+	 * Send a {@link JSONObject} / {@link JSONArray} tree to a handler, as {@link JsonStreamParser} would send its text.
+	 */
+	static void replay(Object json, JsonHandler handler) throws JSONException {
+		if (json instanceof JSONObject) {
+			JSONObject object = (JSONObject) json;
+			handler.onStartObject();
+			Iterator<?> keys = object.keys();
+			while (keys.hasNext()) {
+				String name = (String) keys.next();
+				handler.onName(name);
+				replay(object.opt(name), handler);
+			}
+			handler.onEndObject();
+		} else if (json instanceof JSONArray) {
+			JSONArray array = (JSONArray) json;
+			handler.onStartArray();
+			for (int i = 0; i < array.length(); i++) {
+				replay(array.opt(i), handler);
+			}
+			handler.onEndArray();
+		} else if (json != null) {
+			handler.onValue(json);
+		}
+	}
+}
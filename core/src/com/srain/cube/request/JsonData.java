@@ -1,7 +1,12 @@
 package com.srain.cube.request;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
@@ -11,7 +16,9 @@ import org.json.JSONTokener;
 @SuppressWarnings("rawtypes")
 public class JsonData {
 
-	private Object mJson;
+	private volatile Object mJson;
+	/** The text of a lazy JsonData, read until {@link #getRawData()} builds the tree. */
+	private JsonIndex.Container mLazy;
 	private static final String EMPTY_STRING = "";
 
 	public static JsonData create(String str) {
@@ -26,6 +33,59 @@ public class JsonData {
 		return create(object);
 	}
 
+	/**
+	 * Parse the text while it is read, without holding it in a String, see {@link JsonStreamParser}. An empty JsonData
+	 * if it is not valid.
+	 */
+	public static JsonData create(Reader reader) {
+		JsonDataBuilder builder = new JsonDataBuilder();
+		try {
+			new JsonStreamParser(reader).parse(builder);
+		} catch (Exception e) {
+			return create((Object) null);
+		}
+		return builder.getJsonData();
+	}
+
+	/**
+	 * Keep the UTF-8 text and only index it: the values are decoded when they are read, for the large texts of which a
+	 * few values are used. The tree is built on the first call which needs the {@link JSONObject} / {@link JSONArray}:
+	 * {@link #getRawData()}, {@link #optMapOrNew()}, {@link #optArrayOrNew()} and {@link #toString()}. The bytes must
+	 * not change afterwards.
+	 *
+	 * A text which is not only JSON, with comments for instance, is parsed at once like by {@link #create(Reader)}. An
+	 * empty JsonData if the text is not an object nor an array.
+	 */
+	public static JsonData createLazy(byte[] utf8) {
+		JsonIndex.Container root = JsonIndex.build(utf8);
+		if (root == null) {
+			try {
+				return create(new InputStreamReader(new ByteArrayInputStream(utf8), "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				return create((Object) null);
+			}
+		}
+		JsonData json = new JsonData();
+		json.mLazy = root;
+		return json;
+	}
+
+	private static JsonData wrap(Object value) {
+		if (value instanceof JsonIndex.Container) {
+			JsonData json = new JsonData();
+			json.mLazy = (JsonIndex.Container) value;
+			return json;
+		}
+		return create(value);
+	}
+
+	/**
+	 * Whether the values are still read from the text.
+	 */
+	private boolean isLazy() {
+		return mLazy != null && mJson == null;
+	}
+
 	public static JsonData create(Object o) {
 		JsonData json = new JsonData();
 		if (o instanceof JSONArray || o instanceof JSONObject) {
@@ -38,10 +98,20 @@ public class JsonData {
 	}
 
 	public Object getRawData() {
+		if (isLazy()) {
+			synchronized (this) {
+				if (mJson == null) {
+					mJson = mLazy.materialize();
+				}
+			}
+		}
 		return mJson;
 	}
 
 	public JsonData optJson(String name) {
+		if (isLazy()) {
+			return wrap(mLazy.opt(name));
+		}
 
 		Object ret = null;
 		if (mJson instanceof JSONObject) {
@@ -51,6 +121,9 @@ public class JsonData {
 	}
 
 	public JsonData optJson(int index) {
+		if (isLazy()) {
+			return wrap(mLazy.opt(index));
+		}
 
 		Object ret = null;
 		if (mJson instanceof JSONArray) {
@@ -60,52 +133,81 @@ public class JsonData {
 	}
 
 	public String optString(String name) {
+		if (isLazy()) {
+			return toOptString(mLazy.opt(name));
+		}
 		return optMapOrNew().optString(name);
 	}
 
 	public String optString(int index) {
+		if (isLazy()) {
+			return toOptString(mLazy.opt(index));
+		}
 		return optArrayOrNew().optString(index);
 	}
 
 	public int optInt(String name) {
+		if (isLazy()) {
+			return toOptInt(mLazy.opt(name));
+		}
 		return optMapOrNew().optInt(name);
 	}
 	
 	public int optInt(int index) {
+		if (isLazy()) {
+			return toOptInt(mLazy.opt(index));
+		}
 		return optArrayOrNew().optInt(index);
 	}
 
 	public boolean optBoolean(String name) {
+		if (isLazy()) {
+			return toOptBoolean(mLazy.opt(name));
+		}
 		return optMapOrNew().optBoolean(name);
 	}
 
 	public boolean optBoolean(int index) {
+		if (isLazy()) {
+			return toOptBoolean(mLazy.opt(index));
+		}
 		return optArrayOrNew().optBoolean(index);
 	}
 
 	public boolean has(String name) {
+		if (isLazy()) {
+			return mLazy.has(name);
+		}
 		return optMapOrNew().has(name);
 	}
 
 	public boolean has(int index) {
+		if (isLazy()) {
+			return !mLazy.isObject() && mLazy.length() > index;
+		}
 		return optArrayOrNew().length() > index;
 	}
 
 	public JSONObject optMapOrNew() {
-		if (mJson instanceof JSONObject) {
-			return (JSONObject) mJson;
+		Object json = getRawData();
+		if (json instanceof JSONObject) {
+			return (JSONObject) json;
 		}
 		return new JSONObject();
 	}
 
 	public JSONArray optArrayOrNew() {
-		if (mJson instanceof JSONArray) {
-			return (JSONArray) mJson;
+		Object json = getRawData();
+		if (json instanceof JSONArray) {
+			return (JSONArray) json;
 		}
 		return new JSONArray();
 	}
 
 	public int length() {
+		if (isLazy()) {
+			return mLazy.length();
+		}
 		if (mJson instanceof JSONArray) {
 			return ((JSONArray) mJson).length();
 		}
@@ -117,10 +219,14 @@ public class JsonData {
 
 	@SuppressWarnings("unchecked")
 	public Iterator<String> keys() {
+		if (isLazy()) {
+			return mLazy.keys().iterator();
+		}
 		return optMapOrNew().keys();
 	}
 
 	public String toString() {
+		getRawData();
 		if (mJson instanceof JSONArray) {
 			return ((JSONArray) mJson).toString();
 		} else if (mJson instanceof JSONObject) {
@@ -131,6 +237,20 @@ public class JsonData {
 
 	public ArrayList<JsonData> toArrayList() {
 		ArrayList<JsonData> arrayList = new ArrayList<JsonData>();
+		if (isLazy()) {
+			if (mLazy.isObject()) {
+				List<String> keys = mLazy.keys();
+				for (String key : keys) {
+					arrayList.add(wrap(mLazy.opt(key)));
+				}
+			} else {
+				int length = mLazy.length();
+				for (int i = 0; i < length; i++) {
+					arrayList.add(wrap(mLazy.opt(i)));
+				}
+			}
+			return arrayList;
+		}
 		if (mJson instanceof JSONArray) {
 			final JSONArray array = (JSONArray) mJson;
 			for (int i = 0; i < array.length(); i++) {
@@ -148,4 +268,42 @@ public class JsonData {
 		}
 		return arrayList;
 	}
+
+	/**
+	 * The conversions of {@link JSONObject#optString(String)}, {@link JSONObject#optInt(String)} and
+	 * {@link JSONObject#optBoolean(String)}, for the values read from the text.
+	 */
+	private static String toOptString(Object value) {
+		if (value == null) {
+			return EMPTY_STRING;
+		}
+		if (value instanceof JsonIndex.Container) {
+			return wrap(value).toString();
+		}
+		return String.valueOf(value);
+	}
+
+	private static int toOptInt(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		if (value instanceof String) {
+			try {
+				return (int) Double.parseDouble((String) value);
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean toOptBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		if (value instanceof String) {
+			return "true".equalsIgnoreCase((String) value);
+		}
+		return false;
+	}
 }
@@ -0,0 +1,72 @@
+package com.srain.cube.request;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A {@link JsonHandler} which builds the {@link JSONObject} / {@link JSONArray} tree of the text, the same one
+ * {@link org.json.JSONTokener} would build.
+ */
+public class JsonDataBuilder implements JsonHandler {
+
+	private final ArrayList<Object> mContainers = new ArrayList<Object>();
+	private String mName;
+	private Object mRoot;
+
+	@Override
+	public void onStartObject() throws JSONException {
+		JSONObject object = new JSONObject();
+		add(object);
+		mContainers.add(object);
+	}
+
+	@Override
+	public void onEndObject() {
+		mContainers.remove(mContainers.size() - 1);
+	}
+
+	@Override
+	public void onStartArray() throws JSONException {
+		JSONArray array = new JSONArray();
+		add(array);
+		mContainers.add(array);
+	}
+
+	@Override
+	public void onEndArray() {
+		mContainers.remove(mContainers.size() - 1);
+	}
+
+	@Override
+	public void onName(String name) {
+		mName = name;
+	}
+
+	@Override
+	public void onValue(Object value) throws JSONException {
+		add(value);
+	}
+
+	/**
+	 * The tree built so far, an empty {@link JsonData} if the text is not an object nor an array.
+	 */
+	public JsonData getJsonData() {
+		return JsonData.create(mRoot);
+	}
+
+	private void add(Object value) throws JSONException {
+		if (mContainers.isEmpty()) {
+			mRoot = value;
+			return;
+		}
+		Object container = mContainers.get(mContainers.size() - 1);
+		if (container instanceof JSONObject) {
+			((JSONObject) container).put(mName, value);
+		} else {
+			((JSONArray) container).put(value);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.srain.cube.request;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A field of a {@link JsonModel} which takes the value of a name of the object. The generated adapter sets it directly,
+ * so it can not be private, final or static.
+ *
+ * The field may be a primitive or its box, a {@link String}, a {@link JsonModel}, or a {@link java.util.List} of those,
+ * {@code List<Integer>} for the ints. The values are converted as {@link JsonData#optInt(String)} and the other getters
+ * do; a value which does not fit the field is skipped.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface JsonField {
+
+	/**
+	 * The name in the object, the name of the field if empty.
+	 */
+	String value() default "";
+}
@@ -0,0 +1,33 @@
+package com.srain.cube.request;
+
+import org.json.JSONException;
+
+/**
+ * Receive a JSON text piece by piece while {@link JsonStreamParser} reads it, in the order of the text.
+ *
+ * A handler may throw a {@link JSONException} to stop the parsing.
+ */
+public interface JsonHandler {
+
+	public void onStartObject() throws JSONException;
+
+	public void onEndObject() throws JSONException;
+
+	public void onStartArray() throws JSONException;
+
+	public void onEndArray() throws JSONException;
+
+	/**
+	 * The name of the next value of the current object.
+	 */
+	public void onName(String name) throws JSONException;
+
+	/**
+	 * A value which is not an object nor an array.
+	 *
+	 * @param value
+	 *            a {@link String}, a {@link Boolean}, an {@link Integer}, a {@link Long} or a {@link Double} as
+	 *            {@link org.json.JSONTokener} would make it, or {@link org.json.JSONObject#NULL}
+	 */
+	public void onValue(Object value) throws JSONException;
+}
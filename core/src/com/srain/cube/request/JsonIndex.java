@@ -0,0 +1,457 @@
+package com.srain.cube.request;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The UTF-8 text of a JSON object or array and where its objects and arrays begin and end, for
+ * {@link JsonData#createLazy(byte[])}: the values are decoded from the bytes when they are asked for, and only those.
+ *
+ * Building the index is a single pass over the bytes which records two offsets per object or array. The members of a
+ * container are found the first time it is read, and kept for the next reads.
+ */
+class JsonIndex {
+
+	private static final String UTF_8 = "UTF-8";
+
+	private final byte[] mBytes;
+	/** The offsets of the opening brackets, in increasing order, and of their closing brackets. */
+	private int[] mOpens;
+	private int[] mCloses;
+	private int mCount;
+
+	/**
+	 * An object or an array of the text.
+	 */
+	class Container {
+
+		private final int mStart;
+		private final int mEnd;
+		/**
+		 * For an object, the offsets of the opening quote of the names and of the values, in pairs; for an array, of
+		 * the values.
+		 */
+		private volatile int[] mMembers;
+
+		private Container(int start, int end) {
+			mStart = start;
+			mEnd = end;
+		}
+
+		public boolean isObject() {
+			return mBytes[mStart] == '{';
+		}
+
+		/**
+		 * For an object, the number of different names.
+		 */
+		public int length() {
+			return isObject() ? keys().size() : getMembers().length;
+		}
+
+		/**
+		 * The value of the name, the last one if the name is repeated as {@link org.json.JSONObject} keeps it: a
+		 * {@link Container}, or a value of {@link JsonHandler#onValue(Object)}; null if there is none.
+		 */
+		public Object opt(String name) {
+			int valueStart = find(name);
+			return valueStart == -1 ? null : decodeValue(valueStart);
+		}
+
+		public boolean has(String name) {
+			return find(name) != -1;
+		}
+
+		public Object opt(int index) {
+			if (isObject()) {
+				return null;
+			}
+			int[] members = getMembers();
+			if (index < 0 || index >= members.length) {
+				return null;
+			}
+			return decodeValue(members[index]);
+		}
+
+		/**
+		 * The names of an object, in the order they first appear.
+		 */
+		public List<String> keys() {
+			LinkedHashSet<String> keys = new LinkedHashSet<String>();
+			if (isObject()) {
+				int[] members = getMembers();
+				for (int i = 0; i < members.length; i += 2) {
+					keys.add(decodeString(members[i]));
+				}
+			}
+			return new ArrayList<String>(keys);
+		}
+
+		/**
+		 * Build the {@link org.json.JSONObject} / {@link org.json.JSONArray} of the container, null if its text is not
+		 * valid.
+		 */
+		public Object materialize() {
+			JsonDataBuilder builder = new JsonDataBuilder();
+			try {
+				new JsonStreamParser(new InputStreamReader(new ByteArrayInputStream(mBytes, mStart, mEnd + 1 - mStart), UTF_8)).parse(builder);
+			} catch (Exception e) {
+				return null;
+			}
+			return builder.getJsonData().getRawData();
+		}
+
+		private int find(String name) {
+			if (!isObject()) {
+				return -1;
+			}
+			byte[] nameBytes;
+			try {
+				nameBytes = name.getBytes(UTF_8);
+			} catch (UnsupportedEncodingException e) {
+				return -1;
+			}
+			int[] members = getMembers();
+			for (int i = members.length - 2; i >= 0; i -= 2) {
+				if (nameEquals(members[i], name, nameBytes)) {
+					return members[i + 1];
+				}
+			}
+			return -1;
+		}
+
+		private int[] getMembers() {
+			int[] members = mMembers;
+			if (members == null) {
+				members = scanMembers();
+				mMembers = members;
+			}
+			return members;
+		}
+
+		/**
+		 * Walk the members of the container once, jumping over the nested containers. A text which is not valid ends
+		 * the walk.
+		 */
+		private int[] scanMembers() {
+			boolean object = isObject();
+			int[] members = new int[8];
+			int count = 0;
+			int pos = skipWhiteSpace(mStart + 1);
+			while (pos < mEnd) {
+				if (count + 2 > members.length) {
+					int[] grown = new int[members.length * 2];
+					System.arraycopy(members, 0, grown, 0, count);
+					members = grown;
+				}
+				if (object) {
+					if (mBytes[pos] != '"') {
+						break;
+					}
+					members[count++] = pos;
+					pos = skipWhiteSpace(skipValue(pos));
+					if (pos >= mEnd || mBytes[pos] != ':') {
+						count--;
+						break;
+					}
+					pos = skipWhiteSpace(pos + 1);
+					if (pos >= mEnd) {
+						count--;
+						break;
+					}
+				}
+				members[count++] = pos;
+				pos = skipWhiteSpace(skipValue(pos));
+				if (pos < mEnd && mBytes[pos] == ',') {
+					pos = skipWhiteSpace(pos + 1);
+				} else {
+					break;
+				}
+			}
+			int[] result = new int[count];
+			System.arraycopy(members, 0, result, 0, count);
+			return result;
+		}
+	}
+
+	private JsonIndex(byte[] bytes) {
+		mBytes = bytes;
+	}
+
+	/**
+	 * Index the text.
+	 *
+	 * @return the object or array of the text, null if the text is not one, its brackets do not match, or it has some
+	 * of the syntax {@link org.json.JSONTokener} accepts beyond JSON, which only {@link JsonStreamParser} reads
+	 */
+	static Container build(byte[] bytes) {
+		JsonIndex index = new JsonIndex(bytes);
+		int root = index.skipWhiteSpace(0);
+		if (root >= bytes.length || (bytes[root] != '{' && bytes[root] != '[')) {
+			return null;
+		}
+		if (!index.indexContainers(root)) {
+			return null;
+		}
+		return index.new Container(root, index.mCloses[0]);
+	}
+
+	private boolean indexContainers(int root) {
+		int capacity = 16;
+		mOpens = new int[capacity];
+		mCloses = new int[capacity];
+		int[] stack = new int[16];
+		int depth = 0;
+		byte[] bytes = mBytes;
+		int length = bytes.length;
+		for (int i = root; i < length; i++) {
+			byte b = bytes[i];
+			if (b == '"') {
+				i = skipString(i) - 1;
+				if (i >= length) {
+					return false;
+				}
+			} else if (b == '{' || b == '[') {
+				if (mCount == capacity) {
+					capacity *= 2;
+					mOpens = grow(mOpens, capacity);
+					mCloses = grow(mCloses, capacity);
+				}
+				if (depth == stack.length) {
+					stack = grow(stack, depth * 2);
+				}
+				mOpens[mCount] = i;
+				stack[depth++] = mCount;
+				mCount++;
+				if (!isStrictAfter(i, b, false)) {
+					return false;
+				}
+			} else if (b == '}' || b == ']') {
+				if (depth == 0) {
+					return false;
+				}
+				int open = stack[--depth];
+				if (bytes[mOpens[open]] != (b == '}' ? '{' : '[')) {
+					return false;
+				}
+				mCloses[open] = i;
+				if (depth == 0) {
+					// what follows the value is not read, like JSONTokener
+					return true;
+				}
+			} else if (b == ',') {
+				if (!isStrictAfter(i, bytes[mOpens[stack[depth - 1]]], true)) {
+					return false;
+				}
+			} else if (b < 'A' && (b == '/' || b == '#' || b == '\'' || b == '=' || b == ';')) {
+				// comments, single quotes, "=", "=>" and ";"
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether what follows the bracket or the comma at {@code pos} in the container which opens with {@code bracket} is
+	 * JSON: a name in an object, and a value in an array, where JSONTokener would read an empty element as null.
+	 */
+	private boolean isStrictAfter(int pos, byte bracket, boolean comma) {
+		int next = skipWhiteSpace(pos + 1);
+		if (next == mBytes.length) {
+			return true;
+		}
+		byte b = mBytes[next];
+		if (bracket == '{') {
+			return b == '"' || !comma && b == '}';
+		}
+		return b != ',' && (!comma || b != ']');
+	}
+
+	private static int[] grow(int[] array, int length) {
+		int[] grown = new int[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private int findClose(int open) {
+		int low = 0;
+		int high = mCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int offset = mOpens[mid];
+			if (offset < open) {
+				low = mid + 1;
+			} else if (offset > open) {
+				high = mid - 1;
+			} else {
+				return mCloses[mid];
+			}
+		}
+		return -1;
+	}
+
+	private int skipWhiteSpace(int pos) {
+		while (pos < mBytes.length && (mBytes[pos] & 0xff) <= ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * The offset after the closing quote of the string which starts at {@code pos}, or after the end of the text.
+	 */
+	private int skipString(int pos) {
+		byte[] bytes = mBytes;
+		pos++;
+		while (pos < bytes.length) {
+			byte b = bytes[pos];
+			if (b == '"') {
+				return pos + 1;
+			}
+			pos += b == '\\' ? 2 : 1;
+		}
+		return bytes.length + 1;
+	}
+
+	/**
+	 * The offset after the value which starts at {@code pos}.
+	 */
+	private int skipValue(int pos) {
+		byte b = mBytes[pos];
+		if (b == '{' || b == '[') {
+			return findClose(pos) + 1;
+		}
+		if (b == '"') {
+			return Math.min(skipString(pos), mBytes.length);
+		}
+		return skipLiteral(pos);
+	}
+
+	private int skipLiteral(int pos) {
+		byte[] bytes = mBytes;
+		while (pos < bytes.length) {
+			byte b = bytes[pos];
+			if (b == ',' || b == ':' || b == ']' || b == '}' || b == '[' || b == '{' || b == '"' || (b & 0xff) <= ' ') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	private Object decodeValue(int pos) {
+		byte b = mBytes[pos];
+		if (b == '{' || b == '[') {
+			return new Container(pos, findClose(pos));
+		}
+		if (b == '"') {
+			return decodeString(pos);
+		}
+		int end = skipLiteral(pos);
+		try {
+			return JsonStreamParser.parseLiteral(new String(mBytes, pos, end - pos, UTF_8));
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decode the string which starts with the quote at {@code pos}. The escapes are ASCII, so they are replaced after
+	 * the UTF-8 decoding.
+	 */
+	private String decodeString(int pos) {
+		int end = skipString(pos) - 1;
+		boolean escaped = false;
+		for (int i = pos + 1; i < end; i++) {
+			if (mBytes[i] == '\\') {
+				escaped = true;
+				break;
+			}
+		}
+		String raw;
+		try {
+			raw = new String(mBytes, pos + 1, Math.min(end, mBytes.length) - pos - 1, UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+		return escaped ? unescape(raw) : raw;
+	}
+
+	private static String unescape(String raw) {
+		StringBuilder sb = new StringBuilder(raw.length());
+		int length = raw.length();
+		for (int i = 0; i < length; i++) {
+			char c = raw.charAt(i);
+			if (c != '\\' || i + 1 == length) {
+				sb.append(c);
+				continue;
+			}
+			c = raw.charAt(++i);
+			switch (c) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (i + 4 < length) {
+					try {
+						sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+						i += 4;
+						break;
+					} catch (NumberFormatException e) {
+						// kept as it is
+					}
+				}
+				sb.append(c);
+				break;
+			default:
+				sb.append(c);
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compare a name of the text with {@code name}: byte by byte when the name of the text has no escape.
+	 */
+	private boolean nameEquals(int pos, String name, byte[] nameBytes) {
+		int start = pos + 1;
+		int end = skipString(pos) - 1;
+		int length = end - start;
+		boolean escaped = false;
+		for (int i = start; i < end; i++) {
+			if (mBytes[i] == '\\') {
+				escaped = true;
+				break;
+			}
+		}
+		if (escaped) {
+			return name.equals(decodeString(pos));
+		}
+		if (length != nameBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (mBytes[start + i] != nameBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,108 @@
+package com.srain.cube.request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Make an {@link ArrayList} from an array: of the models of an adapter, or of strings, numbers or booleans. A null of
+ * the array is kept, an element which does not fit is skipped.
+ */
+public class JsonListAdapter<E> extends JsonAdapter<List<E>> {
+
+	private static final int TYPE_MODEL = 0;
+	private static final int TYPE_STRING = 1;
+	private static final int TYPE_INTEGER = 2;
+	private static final int TYPE_LONG = 3;
+	private static final int TYPE_DOUBLE = 4;
+	private static final int TYPE_BOOLEAN = 5;
+
+	private static final JsonListAdapter<String> sStrings = new JsonListAdapter<String>(null, TYPE_STRING);
+	private static final JsonListAdapter<Integer> sIntegers = new JsonListAdapter<Integer>(null, TYPE_INTEGER);
+	private static final JsonListAdapter<Long> sLongs = new JsonListAdapter<Long>(null, TYPE_LONG);
+	private static final JsonListAdapter<Double> sDoubles = new JsonListAdapter<Double>(null, TYPE_DOUBLE);
+	private static final JsonListAdapter<Boolean> sBooleans = new JsonListAdapter<Boolean>(null, TYPE_BOOLEAN);
+
+	private final JsonAdapter<E> mElementAdapter;
+	private final int mType;
+
+	public static <E> JsonListAdapter<E> of(JsonAdapter<E> elementAdapter) {
+		return new JsonListAdapter<E>(elementAdapter, TYPE_MODEL);
+	}
+
+	public static JsonListAdapter<String> ofStrings() {
+		return sStrings;
+	}
+
+	public static JsonListAdapter<Integer> ofIntegers() {
+		return sIntegers;
+	}
+
+	public static JsonListAdapter<Long> ofLongs() {
+		return sLongs;
+	}
+
+	public static JsonListAdapter<Double> ofDoubles() {
+		return sDoubles;
+	}
+
+	public static JsonListAdapter<Boolean> ofBooleans() {
+		return sBooleans;
+	}
+
+	private JsonListAdapter(JsonAdapter<E> elementAdapter, int type) {
+		mElementAdapter = elementAdapter;
+		mType = type;
+	}
+
+	@Override
+	public List<E> newInstance() {
+		return new ArrayList<E>();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void setValue(List<E> list, String name, Object value) {
+		if (isNull(value)) {
+			list.add(null);
+			return;
+		}
+		Object element;
+		switch (mType) {
+		case TYPE_STRING:
+			element = toString(value);
+			break;
+		case TYPE_INTEGER:
+			element = toInt(value);
+			break;
+		case TYPE_LONG:
+			element = toLong(value);
+			break;
+		case TYPE_DOUBLE:
+			element = toDouble(value);
+			break;
+		case TYPE_BOOLEAN:
+			element = toBoolean(value);
+			break;
+		default:
+			// a model from a value
+			return;
+		}
+		list.add((E) element);
+	}
+
+	@Override
+	public JsonAdapter<?> getAdapter(String name) {
+		return mElementAdapter;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void setChild(List<E> list, String name, Object child) {
+		list.add((E) child);
+	}
+
+	@Override
+	public boolean isList() {
+		return true;
+	}
+}
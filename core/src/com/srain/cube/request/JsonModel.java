@@ -0,0 +1,18 @@
+package com.srain.cube.request;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A class which is filled from a JSON object by a {@link JsonAdapter} generated at compile time: the processor of the
+ * cube-sdk-processor module writes a {@code FooJsonAdapter} next to {@code Foo}, {@code Outer_InnerJsonAdapter} for a
+ * nested class, with the fields marked by {@link JsonField}.
+ *
+ * The class needs a constructor without argument which is not private, and a nested class must be static.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JsonModel {
+}
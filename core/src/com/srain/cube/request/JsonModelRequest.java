@@ -0,0 +1,35 @@
+package com.srain.cube.request;
+
+/**
+ * A request whose response is read straight into its model by the adapter of its {@link JsonModelRequestSuccHandler},
+ * without a {@link JsonData} tree in between, see {@link IStreamingRequest}.
+ */
+public class JsonModelRequest<T> extends SimpleRequest<T> implements IStreamingRequest<T> {
+
+	private final JsonAdapter<T> mAdapter;
+
+	public JsonModelRequest(BeforeRequestHandler beforeRequestHandler, JsonModelRequestSuccHandler<T> succHandler) {
+		super(beforeRequestHandler, succHandler);
+		mAdapter = succHandler.getAdapter();
+	}
+
+	/**
+	 * Implements interface {@link IStreamingRequest}
+	 */
+	@Override
+	public JsonHandler createJsonHandler() {
+		return mAdapter.newBinder();
+	}
+
+	/**
+	 * Implements interface {@link IStreamingRequest}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T processStreamedData(JsonHandler handler) {
+		if (handler == null) {
+			return null;
+		}
+		return ((JsonBinder<T>) handler).getResult();
+	}
+}
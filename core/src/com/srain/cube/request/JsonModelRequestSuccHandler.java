@@ -0,0 +1,26 @@
+package com.srain.cube.request;
+
+/**
+ * Make the data of a request with the {@link JsonAdapter} of a {@link JsonModel}, instead of walking the
+ * {@link JsonData}. With a {@link JsonModelRequest}, the model is filled while the response is read.
+ */
+public abstract class JsonModelRequestSuccHandler<T> implements RequestSuccHandler<T> {
+
+	private final JsonAdapter<T> mAdapter;
+
+	public JsonModelRequestSuccHandler(JsonAdapter<T> adapter) {
+		mAdapter = adapter;
+	}
+
+	public JsonAdapter<T> getAdapter() {
+		return mAdapter;
+	}
+
+	@Override
+	public T processOriginData(JsonData jsonData) {
+		if (jsonData == null) {
+			return null;
+		}
+		return mAdapter.read(jsonData);
+	}
+}
@@ -0,0 +1,369 @@
+package com.srain.cube.request;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Parse a JSON text while it is read, and hand it to a {@link JsonHandler}: the text is never held as a whole, only a
+ * buffer of it and the string being read.
+ *
+ * It works on every version, android.util.JsonReader needs Honeycomb. Only the first value of the text is parsed, like
+ * {@link org.json.JSONTokener#nextValue()} does; what follows it may have been read into the buffer.
+ *
+ * It accepts what {@link org.json.JSONTokener} accepts beyond JSON: comments, single quoted strings, names without
+ * quotes, {@code =} or {@code =>} after a name, {@code ;} between the members, and an element left out of an array,
+ * which is null.
+ */
+public class JsonStreamParser {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final Reader mReader;
+	private final char[] mBuffer = new char[BUFFER_SIZE];
+	private int mPos;
+	private int mLimit;
+	private long mOffset;
+	private final StringBuilder mToken = new StringBuilder();
+
+	public JsonStreamParser(Reader reader) {
+		mReader = reader;
+	}
+
+	/**
+	 * Read one value and send it to the handler.
+	 *
+	 * @throws JSONException
+	 *             if the text is not valid JSON, or the handler stops
+	 */
+	public void parse(JsonHandler handler) throws IOException, JSONException {
+		readValue(nextClean(), handler);
+	}
+
+	private void readValue(int c, JsonHandler handler) throws IOException, JSONException {
+		switch (c) {
+		case '{':
+			readObject(handler);
+			break;
+
+		case '[':
+			readArray(handler);
+			break;
+
+		case '"':
+		case '\'':
+			handler.onValue(readString((char) c));
+			break;
+
+		default:
+			if (c == -1 || isLiteralEnd(c)) {
+				throw syntaxError("Expected a value");
+			}
+			handler.onValue(readLiteral(c));
+			break;
+		}
+	}
+
+	private void readObject(JsonHandler handler) throws IOException, JSONException {
+		handler.onStartObject();
+		int c = nextClean();
+		if (c == '}') {
+			handler.onEndObject();
+			return;
+		}
+		while (true) {
+			handler.onName(readName(c));
+			c = nextClean();
+			if (c != ':' && c != '=') {
+				throw syntaxError("Expected ':'");
+			}
+			if ((mPos < mLimit || fill()) && mBuffer[mPos] == '>') {
+				mPos++;
+			}
+			readValue(nextClean(), handler);
+			c = nextClean();
+			if (c == '}') {
+				handler.onEndObject();
+				return;
+			}
+			if (c != ',' && c != ';') {
+				throw syntaxError("Unterminated object");
+			}
+			c = nextClean();
+		}
+	}
+
+	private String readName(int c) throws IOException, JSONException {
+		if (c == '"' || c == '\'') {
+			return readString((char) c);
+		}
+		if (c == -1 || c == '{' || c == '[' || isLiteralEnd(c)) {
+			throw syntaxError("Expected a name");
+		}
+		Object name = readLiteral(c);
+		if (!(name instanceof String)) {
+			throw syntaxError("Names must be strings, but " + name + " is not");
+		}
+		return (String) name;
+	}
+
+	/**
+	 * A separator without a value before it stands for null, as for {@link org.json.JSONTokener}.
+	 */
+	private void readArray(JsonHandler handler) throws IOException, JSONException {
+		handler.onStartArray();
+		boolean afterSeparator = false;
+		while (true) {
+			int c = nextClean();
+			switch (c) {
+			case -1:
+				throw syntaxError("Unterminated array");
+
+			case ']':
+				if (afterSeparator) {
+					handler.onValue(JSONObject.NULL);
+				}
+				handler.onEndArray();
+				return;
+
+			case ',':
+			case ';':
+				handler.onValue(JSONObject.NULL);
+				afterSeparator = true;
+				continue;
+
+			default:
+				readValue(c, handler);
+				break;
+			}
+			c = nextClean();
+			if (c == ']') {
+				handler.onEndArray();
+				return;
+			}
+			if (c != ',' && c != ';') {
+				throw syntaxError("Unterminated array");
+			}
+			afterSeparator = true;
+		}
+	}
+
+	/**
+	 * Read a string after its opening quote. The characters without escape are copied from the buffer in runs.
+	 */
+	private String readString(char quote) throws IOException, JSONException {
+		mToken.setLength(0);
+		while (true) {
+			int start = mPos;
+			while (mPos < mLimit) {
+				char c = mBuffer[mPos];
+				if (c == quote || c == '\\') {
+					break;
+				}
+				mPos++;
+			}
+			mToken.append(mBuffer, start, mPos - start);
+			if (mPos == mLimit) {
+				if (!fill()) {
+					throw syntaxError("Unterminated string");
+				}
+				continue;
+			}
+			char c = mBuffer[mPos++];
+			if (c == quote) {
+				return mToken.toString();
+			}
+			mToken.append(readEscape());
+		}
+	}
+
+	private char readEscape() throws IOException, JSONException {
+		int c = read();
+		switch (c) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int code = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit == -1) {
+					throw syntaxError("Invalid escape sequence");
+				}
+				code = (code << 4) + digit;
+			}
+			return (char) code;
+		default:
+			// \", \\, \/ and any other character stand for themselves
+			return (char) c;
+		}
+	}
+
+	/**
+	 * A literal is a number, true, false or null; any other word is taken as a string, as {@link org.json.JSONTokener}
+	 * does.
+	 */
+	private Object readLiteral(int first) throws IOException, JSONException {
+		mToken.setLength(0);
+		mToken.append((char) first);
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos];
+			if (isLiteralEnd(c)) {
+				break;
+			}
+			mToken.append(c);
+			mPos++;
+		}
+		return parseLiteral(mToken.toString());
+	}
+
+	private static boolean isLiteralEnd(int c) {
+		switch (c) {
+		case '{':
+		case '}':
+		case '[':
+		case ']':
+		case '/':
+		case '\\':
+		case ':':
+		case ',':
+		case '=':
+		case ';':
+		case '#':
+			return true;
+		default:
+			return c <= ' ';
+		}
+	}
+
+	/**
+	 * The value of a literal of the text, see {@link JsonHandler#onValue(Object)}. Like {@link org.json.JSONTokener},
+	 * the keywords are not case sensitive, and the integers may be hexadecimal or octal.
+	 */
+	static Object parseLiteral(String literal) {
+		if ("null".equalsIgnoreCase(literal)) {
+			return JSONObject.NULL;
+		}
+		if ("true".equalsIgnoreCase(literal)) {
+			return Boolean.TRUE;
+		}
+		if ("false".equalsIgnoreCase(literal)) {
+			return Boolean.FALSE;
+		}
+		if (literal.indexOf('.') == -1) {
+			String number = literal;
+			int radix = 10;
+			if (number.startsWith("0x") || number.startsWith("0X")) {
+				number = number.substring(2);
+				radix = 16;
+			} else if (number.startsWith("0") && number.length() > 1) {
+				number = number.substring(1);
+				radix = 8;
+			}
+			try {
+				long longValue = Long.parseLong(number, radix);
+				if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+					return Integer.valueOf((int) longValue);
+				}
+				return Long.valueOf(longValue);
+			} catch (NumberFormatException e) {
+				// not a long, maybe a double
+			}
+		}
+		try {
+			return Double.valueOf(literal);
+		} catch (NumberFormatException e) {
+			return literal;
+		}
+	}
+
+	/**
+	 * The next character which is not a white space nor in a comment, -1 at the end.
+	 */
+	private int nextClean() throws IOException, JSONException {
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos++];
+			if (c <= ' ') {
+				continue;
+			}
+			if (c == '#') {
+				skipToEndOfLine();
+				continue;
+			}
+			if (c == '/' && (mPos < mLimit || fill())) {
+				char next = mBuffer[mPos];
+				if (next == '*') {
+					mPos++;
+					skipComment();
+					continue;
+				}
+				if (next == '/') {
+					mPos++;
+					skipToEndOfLine();
+					continue;
+				}
+			}
+			return c;
+		}
+		return -1;
+	}
+
+	private void skipComment() throws IOException, JSONException {
+		boolean star = false;
+		while (true) {
+			char c = (char) read("Unterminated comment");
+			if (star && c == '/') {
+				return;
+			}
+			star = c == '*';
+		}
+	}
+
+	private void skipToEndOfLine() throws IOException {
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos++];
+			if (c == '\r' || c == '\n') {
+				return;
+			}
+		}
+	}
+
+	private int read() throws IOException, JSONException {
+		return read("End of input");
+	}
+
+	private int read(String endMessage) throws IOException, JSONException {
+		if (mPos == mLimit && !fill()) {
+			throw syntaxError(endMessage);
+		}
+		return mBuffer[mPos++];
+	}
+
+	private boolean fill() throws IOException {
+		mOffset += mLimit;
+		mPos = 0;
+		mLimit = 0;
+		int count;
+		while ((count = mReader.read(mBuffer)) == 0) {
+			// a reader may return nothing before the end
+		}
+		if (count == -1) {
+			return false;
+		}
+		mLimit = count;
+		return true;
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " at character " + (mOffset + mPos));
+	}
+}
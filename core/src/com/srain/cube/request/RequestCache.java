@@ -1,6 +1,7 @@
 package com.srain.cube.request;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.json.JSONObject;
@@ -9,20 +10,40 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
 
 import com.srain.cube.concurrent.SimpleExcutor;
+import com.srain.cube.file.CacheStats;
+import com.srain.cube.file.CacheStatsListener;
 import com.srain.cube.file.FileUtil;
 
 /**
+ * The data of the requests in files, and the most recently used of them in memory as {@link JsonData}: the memory layer
+ * keeps the trees within a budget of bytes, estimated from the length of their text, and drops the least recently used
+ * ones beyond it, or the ones whose time to live has passed.
  * 
  * @author huqiu.lhq
  */
 public class RequestCache {
 
+	/**
+	 * A {@link JSONObject} tree takes 7 to 11 bytes of heap per char of its text, the more so the smaller its values.
+	 */
+	private static final int ESTIMATED_BYTES_PER_CHAR = 10;
+
 	private static RequestCache mInstance;
 	private String mCacheDir;
 
-	private HashMap<String, JsonData> mCacheList;
+	private LruCache<String, MemoryEntry> mMemoryCache;
+	/** The counters of the memory layer, also the lock which guards them. */
+	private final CacheStats mMemoryStats = new CacheStats();
+	private MemoryEvictionListener mEvictionListener;
+	/** The times to live in memory set for some keys, guarded by itself. */
+	private final HashMap<String, Long> mTimesToLive = new HashMap<String, Long>();
+	private volatile long mDefaultTimeToLive;
+	/** The reads from a file or the assets which have not finished, by key; only used on the main thread. */
+	private final HashMap<String, ReadCacheTask<?>> mReadingTasks = new HashMap<String, ReadCacheTask<?>>();
 
 	private static final int AFTER_READ_FROM_FILE = 0x01;
 	private static final int AFTER_READ_FROM_ASSERT = 0x02;
@@ -32,9 +53,56 @@ public class RequestCache {
 	private static final int DO_READ_FROM_ASSERT = 0x02;
 	private static final int DO_CONVERT = 0x04;
 
+	/** The reads of a key keep their order, the reads of different keys run in parallel. */
+	private static final String EXECUTOR_KEY_PREFIX = "request-cache:";
+
 	private Context mContext;
 	private static Handler sHandler;
 
+	/** The counters, also the lock which guards them. */
+	private final CacheStats mStats = new CacheStats();
+	private CacheStatsListener mStatsListener;
+	private long mStatsInterval;
+	private final Runnable mStatsReport = new Runnable() {
+
+		@Override
+		public void run() {
+			if (mStatsListener != null) {
+				mStatsListener.onCacheStats(getStats());
+				sHandler.postDelayed(this, mStatsInterval);
+			}
+		}
+	};
+
+	/**
+	 * Told when the memory layer drops an entry, on the thread which has put or read the cache. The file of the entry
+	 * is kept.
+	 */
+	public interface MemoryEvictionListener {
+
+		/**
+		 * @param size
+		 *            the estimated bytes of the entry
+		 * @param expired
+		 *            whether its time to live has passed, else it was the least recently used one beyond the budget
+		 */
+		public void onMemoryEvicted(String key, int size, boolean expired);
+	}
+
+	private static class MemoryEntry {
+
+		private final JsonData mData;
+		private final int mSize;
+		/** In the time base of {@link SystemClock#elapsedRealtime()}, 0 if it does not expire. */
+		private final long mExpiresAt;
+
+		private MemoryEntry(JsonData data, int size, long expiresAt) {
+			mData = data;
+			mSize = size;
+			mExpiresAt = expiresAt;
+		}
+	}
+
 	public interface ICacheable<T> {
 
 		public int getCacheTime();
@@ -82,11 +150,70 @@ public class RequestCache {
 		};
 	}
 
+	/**
+	 * Keep a sixteenth of the heap of the app for the data in memory.
+	 */
 	public void init(Context content, String cacheDir) {
+		init(content, cacheDir, (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16));
+	}
+
+	/**
+	 * @param memoryCacheSize
+	 *            the estimated bytes of heap the data in memory may take
+	 */
+	public void init(Context content, String cacheDir, int memoryCacheSize) {
 		mContext = content;
 		mCacheDir = cacheDir;
-		mCacheList = new HashMap<String, JsonData>();
-		showStatus(String.format("init, cache dir::%s", mCacheDir));
+		synchronized (mMemoryStats) {
+			mMemoryStats.maxSize = memoryCacheSize;
+		}
+		mMemoryCache = new LruCache<String, MemoryEntry>(memoryCacheSize) {
+
+			@Override
+			protected int sizeOf(String key, MemoryEntry entry) {
+				return entry.mSize;
+			}
+
+			/**
+			 * A replaced entry is not an eviction, the removed ones are counted where they are removed.
+			 */
+			@Override
+			protected void entryRemoved(boolean evicted, String key, MemoryEntry oldValue, MemoryEntry newValue) {
+				if (evicted) {
+					onMemoryEvicted(key, oldValue, false);
+				}
+			}
+		};
+		showStatus(String.format("init, cache dir::%s, memory cache size: %s", mCacheDir, memoryCacheSize));
+	}
+
+	/**
+	 * Drop the data of the key from memory once it has been there for {@code timeToLiveMillis}; the file is kept. It
+	 * applies to the data put from now on.
+	 *
+	 * @param timeToLiveMillis
+	 *            0 for the default time to live, see {@link #setDefaultMemoryTimeToLive(long)}
+	 */
+	public void setMemoryTimeToLive(String key, long timeToLiveMillis) {
+		synchronized (mTimesToLive) {
+			if (timeToLiveMillis > 0) {
+				mTimesToLive.put(key, timeToLiveMillis);
+			} else {
+				mTimesToLive.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * The time to live in memory of the keys which have none of their own, 0, the default, to keep them until they are
+	 * the least recently used.
+	 */
+	public void setDefaultMemoryTimeToLive(long timeToLiveMillis) {
+		mDefaultTimeToLive = Math.max(0, timeToLiveMillis);
+	}
+
+	public void setMemoryEvictionListener(MemoryEvictionListener listener) {
+		mEvictionListener = listener;
 	}
 
 	public static RequestCache getInstance() {
@@ -95,6 +222,66 @@ public class RequestCache {
 		return mInstance;
 	}
 
+	/**
+	 * The counters of the cache: a hit is a request answered from memory, a file or the assets, an insert a response
+	 * written to a file.
+	 */
+	public CacheStats getStats() {
+		CacheStats stats = new CacheStats();
+		synchronized (mStats) {
+			stats.hitCount = mStats.hitCount;
+			stats.missCount = mStats.missCount;
+			stats.insertCount = mStats.insertCount;
+			stats.insertBytes = mStats.insertBytes;
+			stats.removeCount = mStats.removeCount;
+		}
+		if (mMemoryCache != null) {
+			stats.entryCount = mMemoryCache.snapshot().size();
+		}
+		return stats;
+	}
+
+	/**
+	 * The counters of the memory layer: the estimated bytes it holds and its budget, a hit is a query answered from
+	 * memory, an eviction an entry dropped beyond the budget or expired.
+	 */
+	public CacheStats getMemoryStats() {
+		CacheStats stats = new CacheStats();
+		synchronized (mMemoryStats) {
+			stats.maxSize = mMemoryStats.maxSize;
+			stats.hitCount = mMemoryStats.hitCount;
+			stats.missCount = mMemoryStats.missCount;
+			stats.insertCount = mMemoryStats.insertCount;
+			stats.insertBytes = mMemoryStats.insertBytes;
+			stats.evictCount = mMemoryStats.evictCount;
+			stats.evictBytes = mMemoryStats.evictBytes;
+			stats.removeCount = mMemoryStats.removeCount;
+			stats.removeBytes = mMemoryStats.removeBytes;
+		}
+		if (mMemoryCache != null) {
+			stats.size = mMemoryCache.size();
+			stats.entryCount = mMemoryCache.snapshot().size();
+		}
+		return stats;
+	}
+
+	/**
+	 * Report the stats to the listener every {@code intervalMillis}, on the main thread. Set null to stop the reports.
+	 */
+	public void setStatsListener(CacheStatsListener listener, long intervalMillis) {
+		sHandler.removeCallbacks(mStatsReport);
+		mStatsListener = listener;
+		mStatsInterval = intervalMillis;
+		if (listener != null) {
+			sHandler.postDelayed(mStatsReport, intervalMillis);
+		}
+	}
+
+	/**
+	 * Query the cache for the cacheable, on the main thread. While the data of a key is read from a file or the assets,
+	 * the other queries of the key wait for it instead of reading and parsing it again, then convert the same
+	 * {@link JsonData}.
+	 */
 	public <T> void requestCache(ICacheable<T> cacheable) {
 		ReadCacheTask<T> task = new ReadCacheTask<T>(cacheable);
 		task.query();
@@ -102,15 +289,23 @@ public class RequestCache {
 
 	public <T> void cacheRequest(final ICacheable<T> cacheable, final JsonData data) {
 		showStatus(String.format("cacheRequest, key:%s", cacheable.getCacheKey()));
-		new Thread(new Runnable() {
+		// after the reads of the same key which are already queued
+		SimpleExcutor.getInstance().execute(EXECUTOR_KEY_PREFIX + cacheable.getCacheKey(), new Runnable() {
 			@Override
 			public void run() {
 				String filePath = mCacheDir + "/ " + cacheable.getCacheKey();
 				JsonData jsonData = makeCacheFormatJsonData(data, 0);
-				setCacheData(cacheable.getCacheKey(), jsonData);
-				FileUtil.write(filePath, jsonData.toString());
+				String content = jsonData.toString();
+				setCacheData(cacheable.getCacheKey(), jsonData, content.length());
+				// the cached responses are what the app shows offline, they must not be torn by a crash
+				if (FileUtil.writeDurably(filePath, content)) {
+					synchronized (mStats) {
+						mStats.insertCount++;
+						mStats.insertBytes += content.length();
+					}
+				}
 			}
-		}, "SimpleRequestBase-Cache").start();
+		});
 	}
 
 	private JsonData makeCacheFormatJsonData(JsonData data, int time) {
@@ -128,8 +323,18 @@ public class RequestCache {
 	public void invalidateCache(String key) {
 		showStatus(String.format("invalidateCache, key:%s", key));
 		String filePath = mCacheDir + "/ " + key;
-		new File(filePath).delete();
-		mCacheList.remove(key);
+		if (new File(filePath).delete()) {
+			synchronized (mStats) {
+				mStats.removeCount++;
+			}
+		}
+		MemoryEntry entry = mMemoryCache.remove(key);
+		if (entry != null) {
+			synchronized (mMemoryStats) {
+				mMemoryStats.removeCount++;
+				mMemoryStats.removeBytes += entry.mSize;
+			}
+		}
 	}
 
 	private class ReadCacheTask<T1> implements Runnable {
@@ -139,6 +344,8 @@ public class RequestCache {
 		private JsonData mRawData;
 		private T1 mResult;
 		private int mWorkType = 0;
+		/** The queries of the same key which wait for this read. */
+		private ArrayList<ReadCacheTask<?>> mFollowers;
 
 		public ReadCacheTask(ICacheable<T1> cacheable) {
 			mCacheable = cacheable;
@@ -148,13 +355,25 @@ public class RequestCache {
 			String cacheKey = mCacheable.getCacheKey();
 
 			// try to find in runtime cache
-			if (mCacheList.containsKey(cacheKey)) {
+			JsonData cacheData = getCacheData(cacheKey);
+			if (cacheData != null) {
 				showStatus(String.format("exsit in list, key:%s", mCacheable.getCacheKey()));
-				mRawData = mCacheList.get(cacheKey);
+				mRawData = cacheData;
 				processRawCacheData();
 				return;
 			}
 
+			// the data of the key is being read
+			ReadCacheTask<?> reading = mReadingTasks.get(cacheKey);
+			if (reading != null) {
+				showStatus(String.format("wait for the read in progress, key:%s", cacheKey));
+				if (reading.mFollowers == null) {
+					reading.mFollowers = new ArrayList<ReadCacheTask<?>>(2);
+				}
+				reading.mFollowers.add(this);
+				return;
+			}
+
 			// try read from cache data
 			String filePath = mCacheDir + "/ " + mCacheable.getCacheKey();
 			File file = new File(filePath);
@@ -171,6 +390,7 @@ public class RequestCache {
 			}
 
 			showStatus(String.format("cache file not exist, key:%s", mCacheable.getCacheKey()));
+			countMiss();
 			mCacheable.onNoCacheDataAvailable();
 		}
 
@@ -198,7 +418,8 @@ public class RequestCache {
 
 		private void queryFromCacheFile() {
 			mWorkType = DO_READ_FROM_FILE;
-			SimpleExcutor.getInstance().execute(this);
+			mReadingTasks.put(mCacheable.getCacheKey(), this);
+			SimpleExcutor.getInstance().execute(EXECUTOR_KEY_PREFIX + mCacheable.getCacheKey(), this);
 		}
 
 		private void doQueryFromCacheFileInBackground() {
@@ -207,6 +428,9 @@ public class RequestCache {
 			String filePath = mCacheDir + "/ " + mCacheable.getCacheKey();
 			String cacheContent = FileUtil.read(filePath);
 			mRawData = JsonData.create(cacheContent);
+			if (mRawData.has("data")) {
+				setCacheData(mCacheable.getCacheKey(), mRawData, cacheContent.length());
+			}
 
 			Message msg = Message.obtain();
 			msg.what = AFTER_READ_FROM_FILE;
@@ -216,7 +440,8 @@ public class RequestCache {
 
 		private void queryFromAssertCacheFile() {
 			mWorkType = DO_READ_FROM_ASSERT;
-			SimpleExcutor.getInstance().execute(this);
+			mReadingTasks.put(mCacheable.getCacheKey(), this);
+			SimpleExcutor.getInstance().execute(EXECUTOR_KEY_PREFIX + mCacheable.getCacheKey(), this);
 		}
 
 		private void queryFromAssertCacheFileInBackground() {
@@ -225,7 +450,7 @@ public class RequestCache {
 			String cacheContent = FileUtil.readAssert(mContext, mCacheable.getAssertInitDataPath());
 			JsonData rawData = JsonData.create(cacheContent);
 			mRawData = makeCacheFormatJsonData(rawData, -2);
-			setCacheData(mCacheable.getCacheKey(), mRawData);
+			setCacheData(mCacheable.getCacheKey(), mRawData, cacheContent == null ? 0 : cacheContent.length());
 
 			Message msg = Message.obtain();
 			msg.what = AFTER_READ_FROM_ASSERT;
@@ -245,11 +470,23 @@ public class RequestCache {
 		}
 
 		private void processRawCacheData() {
+			if (mReadingTasks.get(mCacheable.getCacheKey()) == this) {
+				mReadingTasks.remove(mCacheable.getCacheKey());
+			}
+			// the conversions of a key run one after another, they never read the data at the same time
+			if (mFollowers != null) {
+				for (ReadCacheTask<?> follower : mFollowers) {
+					follower.mRawData = mRawData;
+					follower.processRawCacheData();
+				}
+				mFollowers = null;
+			}
 			if (null != mRawData && mRawData.has("data")) {
 				mWorkType = DO_CONVERT;
-				new Thread(this).start();
+				SimpleExcutor.getInstance().execute(EXECUTOR_KEY_PREFIX + mCacheable.getCacheKey(), this);
 			} else {
 				showStatus(String.format("onNoCacheDataAvailable, key:%s", mCacheable.getCacheKey()));
+				countMiss();
 				mCacheable.onNoCacheDataAvailable();
 			}
 		}
@@ -258,13 +495,80 @@ public class RequestCache {
 
 			int lastTime = mRawData.optInt("time");
 			boolean outOfDate = System.currentTimeMillis() / 1000 - lastTime > mCacheable.getCacheTime();
+			synchronized (mStats) {
+				mStats.hitCount++;
+			}
 			mCacheable.onCacheData(mResult, outOfDate);
 		}
 	}
 
-	private void setCacheData(String key, JsonData data) {
+	private void countMiss() {
+		synchronized (mStats) {
+			mStats.missCount++;
+		}
+	}
+
+	/**
+	 * The data of the key in memory, null if there is none or it has expired.
+	 */
+	private JsonData getCacheData(String key) {
+		MemoryEntry entry;
+		boolean expired = false;
+		synchronized (mMemoryCache) {
+			entry = mMemoryCache.get(key);
+			if (entry != null && entry.mExpiresAt != 0 && SystemClock.elapsedRealtime() >= entry.mExpiresAt) {
+				mMemoryCache.remove(key);
+				expired = true;
+			}
+		}
+		if (expired) {
+			onMemoryEvicted(key, entry, true);
+			entry = null;
+		}
+		synchronized (mMemoryStats) {
+			if (entry != null) {
+				mMemoryStats.hitCount++;
+			} else {
+				mMemoryStats.missCount++;
+			}
+		}
+		return entry == null ? null : entry.mData;
+	}
+
+	/**
+	 * @param length
+	 *            the length of the text of the data, which its size is estimated from
+	 */
+	private void setCacheData(String key, JsonData data, int length) {
 		showStatus(String.format("set cache to runtime cache list, key:%s", key));
-		mCacheList.put(key, data);
+		long timeToLive;
+		synchronized (mTimesToLive) {
+			Long keyTimeToLive = mTimesToLive.get(key);
+			timeToLive = keyTimeToLive != null ? keyTimeToLive : mDefaultTimeToLive;
+		}
+		int size = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) length * ESTIMATED_BYTES_PER_CHAR));
+		long expiresAt = timeToLive > 0 ? SystemClock.elapsedRealtime() + timeToLive : 0;
+		if (size > mMemoryCache.maxSize()) {
+			// it would push out all the others, and then itself; the older data of the key is out of date
+			mMemoryCache.remove(key);
+			return;
+		}
+		synchronized (mMemoryStats) {
+			mMemoryStats.insertCount++;
+			mMemoryStats.insertBytes += size;
+		}
+		mMemoryCache.put(key, new MemoryEntry(data, size, expiresAt));
+	}
+
+	private void onMemoryEvicted(String key, MemoryEntry entry, boolean expired) {
+		synchronized (mMemoryStats) {
+			mMemoryStats.evictCount++;
+			mMemoryStats.evictBytes += entry.mSize;
+		}
+		MemoryEvictionListener listener = mEvictionListener;
+		if (listener != null) {
+			listener.onMemoryEvicted(key, entry.mSize, expired);
+		}
 	}
 
 	private void showStatus(String msg) {
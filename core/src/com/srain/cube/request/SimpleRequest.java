@@ -5,12 +5,13 @@ package com.srain.cube.request;
  * 
  *         TODO: request parameters / request method
  */
-public class SimpleRequest<T> implements IRequest<T> {
+public class SimpleRequest<T> implements IDeadlineRequest<T> {
 
 	private RequestSuccHandler<T> mOnSuccHandler;
 	private BeforeRequestHandler mBeforeRequestHandler;
 
 	private String mUrl;
+	private long mDeadline;
 
 	public SimpleRequest(BeforeRequestHandler beforeRequestHandler, RequestSuccHandler<T> succHandler) {
 		mBeforeRequestHandler = beforeRequestHandler;
@@ -41,6 +42,25 @@ public class SimpleRequest<T> implements IRequest<T> {
 		return mUrl;
 	}
 
+	/**
+	 * Drop the request if it is still waiting for a thread by then, for the data which is useless after some time.
+	 * Neither {@link #onRequestSucc(Object)} nor {@link #processOriginData(JsonData)} is called for a dropped request.
+	 * 
+	 * @param uptimeMillis
+	 *            in the time base of {@link android.os.SystemClock#uptimeMillis()}, 0 for no deadline
+	 */
+	public void setDeadline(long uptimeMillis) {
+		mDeadline = uptimeMillis;
+	}
+
+	/**
+	 * Implements interface {@link IDeadlineRequest}
+	 */
+	@Override
+	public long getDeadline() {
+		return mDeadline;
+	}
+
 	/**
 	 * Implements interface {@link IRequest}
 	 */
@@ -1,80 +1,369 @@
 package com.srain.cube.request;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
 
-import android.os.Handler;
-import android.os.Message;
+import org.json.JSONException;
+
+import com.srain.cube.concurrent.ExecutorInstrumentation;
+import com.srain.cube.concurrent.ExecutorRegistry;
+import com.srain.cube.concurrent.KeyedLimitedExecutor;
+import com.srain.cube.concurrent.SimpleTask;
+import com.srain.cube.image.util.Downloader;
 
 /**
- * 
+ * Send the requests on the network pool of {@link ExecutorRegistry}, a few at a time to the same host, and deliver the
+ * results on the main thread.
+ *
+ * The response is always read to the end and closed, so the connection goes back to the keep-alive pool of
+ * {@link HttpURLConnection} and the next request to the host skips the handshake.
+ *
+ * The response is parsed while it is read, see {@link JsonStreamParser}, into a {@link JsonData} or into the
+ * {@link JsonHandler} of an {@link IStreamingRequest}. With {@link #setLazyJson(boolean)}, it is kept as bytes and its
+ * values are decoded when they are read, see {@link JsonData#createLazy(byte[])}.
+ *
+ * The requests with the same url which are sent while one of them is still waiting or loading share its HTTP call: the
+ * response is parsed once and every request processes the same {@link JsonData}, one after another in the thread of the
+ * call.
+ *
  * @author huqiu.lhq
  */
 public class SimpleRequestManager {
 
-	private final static int REQUEST_SUCC = 0x01;
+	/**
+	 * The size of the network pool, within the 5 idle connections kept per host: an app talking to one host uses every
+	 * thread. A lower limit keeps threads for the other hosts when one is slow, but halves the throughput to a single
+	 * host, see RequestManagerBenchmark.
+	 */
+	private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	private static final int DEFAULT_READ_TIMEOUT = 15 * 1000;
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	/** A larger Content-Length is not trusted with an array of its size, the body is read into a growing buffer. */
+	private static final int MAX_PREALLOCATED_LENGTH = 1024 * 1024;
+
+	private static KeyedLimitedExecutor sExecutor;
+	private static final ExecutorInstrumentation sInstrumentation = new ExecutorInstrumentation(ExecutorRegistry.POOL_NETWORK);
+	private static volatile int sConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private static volatile int sReadTimeout = DEFAULT_READ_TIMEOUT;
+	private static volatile boolean sLazyJson;
+
+	/** The calls which have not read their response yet, by key; also the lock of the waiters of each call. */
+	private static final HashMap<String, RequestFlight> sFlights = new HashMap<String, RequestFlight>();
+	private static long sCoalescedCount;
+
+	private static synchronized KeyedLimitedExecutor getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = new KeyedLimitedExecutor(ExecutorRegistry.getInstance().getExecutor(ExecutorRegistry.POOL_NETWORK), DEFAULT_MAX_REQUESTS_PER_HOST);
+		}
+		return sExecutor;
+	}
+
+	public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		getExecutor().setMaxPerKey(maxRequestsPerHost);
+	}
 
-	private final static int REQUEST_FAILED = 0x02;
+	/**
+	 * @param connectTimeout
+	 *            in milliseconds, 0 to wait forever
+	 * @param readTimeout
+	 *            in milliseconds between two reads, 0 to wait forever
+	 */
+	public static void setTimeouts(int connectTimeout, int readTimeout) {
+		if (connectTimeout < 0 || readTimeout < 0) {
+			throw new IllegalArgumentException("timeout < 0");
+		}
+		sConnectTimeout = connectTimeout;
+		sReadTimeout = readTimeout;
+	}
+
+	/**
+	 * Keep the responses as UTF-8 bytes with an index instead of building their tree: less memory and time when the
+	 * requests read a few values of large responses. The {@link IStreamingRequest} are not concerned. Off by default.
+	 */
+	public static void setLazyJson(boolean lazyJson) {
+		sLazyJson = lazyJson;
+	}
+
+	/**
+	 * How long the HTTP calls wait and run, and how many were dropped at their deadline. A call may serve several
+	 * requests, see {@link #getCoalescedCount()}.
+	 */
+	public static ExecutorInstrumentation.Snapshot getStats() {
+		return sInstrumentation.getSnapshot();
+	}
+
+	/**
+	 * The number of requests which have joined the HTTP call of an identical request instead of making their own.
+	 */
+	public static long getCoalescedCount() {
+		synchronized (sFlights) {
+			return sCoalescedCount;
+		}
+	}
 
 	public static <T> void sendRequest(final IRequest<T> request) {
+		Waiter<T> waiter = new Waiter<T>(request);
+		RequestFlight flight;
+		if (request instanceof IStreamingRequest) {
+			flight = new RequestFlight(null, request.getRequestUrl());
+			flight.mWaiters.add(waiter);
+			flight.setDeadline(getDeadline(request));
+			execute(request, flight);
+			return;
+		}
 
-		final Handler handler = new Handler() {
-			@SuppressWarnings("unchecked")
-			@Override
-			public void handleMessage(Message msg) {
-				switch (msg.what) {
-				case REQUEST_SUCC:
-					request.onRequestSucc((T) msg.obj);
-					break;
-
-				default:
-					break;
-				}
+		// fetch() only sends GETs, the url is the whole request
+		String key = "GET " + request.getRequestUrl();
+		synchronized (sFlights) {
+			flight = sFlights.get(key);
+			// a call which has expired is in the map until its onCancel() runs
+			if (flight != null && !flight.isCancelled()) {
+				flight.mWaiters.add(waiter);
+				flight.extendDeadline(getDeadline(request));
+				sCoalescedCount++;
+				return;
 			}
-		};
+			flight = new RequestFlight(key, request.getRequestUrl());
+			flight.mWaiters.add(waiter);
+			flight.setDeadline(getDeadline(request));
+			sFlights.put(key, flight);
+		}
+		execute(request, flight);
+	}
+
+	private static void execute(IRequest<?> request, RequestFlight flight) {
+		String host = "";
+		try {
+			host = new URL(request.getRequestUrl()).getHost();
+		} catch (IOException e) {
+			// fails again in the task, where it is reported
+		}
+		getExecutor().execute(host, sInstrumentation.wrap(flight));
+	}
+
+	/**
+	 * A request waiting for the response of a call, and what it made of it.
+	 */
+	private static class Waiter<T> {
+
+		private final IRequest<T> mRequest;
+		private T mData;
+
+		private Waiter(IRequest<T> request) {
+			mRequest = request;
+		}
+
+		private void process(JsonData json) {
+			mData = mRequest.processOriginData(json);
+		}
+
+		@SuppressWarnings("unchecked")
+		private JsonHandler createJsonHandler() {
+			return ((IStreamingRequest<T>) mRequest).createJsonHandler();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void processStream(JsonHandler handler) {
+			mData = ((IStreamingRequest<T>) mRequest).processStreamedData(handler);
+		}
+
+		private void deliver() {
+			if (null != mData) {
+				mRequest.onRequestSucc(mData);
+			}
+		}
+	}
+
+	/**
+	 * One HTTP call, for all the requests of its key sent until the response has been read, or for a single
+	 * {@link IStreamingRequest}, which has no key.
+	 */
+	private static class RequestFlight extends SimpleTask {
+
+		private final String mKey;
+		private final String mUrl;
+		/** Guarded by {@link SimpleRequestManager#sFlights} until the call leaves the map, only read afterwards. */
+		private final ArrayList<Waiter<?>> mWaiters = new ArrayList<Waiter<?>>(2);
+
+		private RequestFlight(String key, String url) {
+			mKey = key;
+			mUrl = url;
+		}
 
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				JsonData json = null;
+		/**
+		 * The call waits for the latest deadline of its requests, forever if one of them has none.
+		 */
+		private void extendDeadline(long deadline) {
+			long current = getDeadline();
+			if (current != 0 && (deadline == 0 || deadline > current)) {
+				setDeadline(deadline);
+			}
+		}
+
+		@Override
+		public void doInBackground() {
+			if (mKey == null) {
+				Waiter<?> waiter = mWaiters.get(0);
+				JsonHandler handler = waiter.createJsonHandler();
 				try {
-					URL url = new URL(request.getRequestUrl());
-					URLConnection urlConnection = url.openConnection();
-					InputStream ips = new BufferedInputStream(urlConnection.getInputStream());
-					BufferedReader buf = new BufferedReader(new InputStreamReader(ips, "UTF-8"));
-
-					StringBuilder sb = new StringBuilder();
-					String s;
-					while (true) {
-						s = buf.readLine();
-						if (s == null || s.length() == 0)
-							break;
-						sb.append(s);
-
-					}
-					json = JsonData.create(sb.toString());
-					buf.close();
-					ips.close();
+					fetch(mUrl, handler);
 				} catch (Exception e) {
 					e.printStackTrace();
+					handler = null;
 				}
+				waiter.processStream(handler);
+				return;
+			}
 
-				T data = request.processOriginData(json);
-				if (null == data) {
-					Message msg = Message.obtain();
-					msg.what = REQUEST_FAILED;
-					handler.sendMessage(msg);
+			JsonData json = null;
+			try {
+				if (sLazyJson) {
+					json = JsonData.createLazy(fetch(mUrl, null));
 				} else {
-					Message msg = Message.obtain();
-					msg.what = REQUEST_SUCC;
-					msg.obj = data;
-					handler.sendMessage(msg);
+					JsonDataBuilder builder = new JsonDataBuilder();
+					fetch(mUrl, builder);
+					json = builder.getJsonData();
 				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			// the requests sent from now on make a new call
+			synchronized (sFlights) {
+				leave();
+			}
+			for (Waiter<?> waiter : mWaiters) {
+				waiter.process(json);
+			}
+		}
+
+		@Override
+		public void onFinish() {
+			for (Waiter<?> waiter : mWaiters) {
+				waiter.deliver();
+			}
+		}
+
+		/**
+		 * A request may join the call and extend its deadline until it is cancelled, so both are decided under the same
+		 * lock.
+		 */
+		@Override
+		protected boolean expire() {
+			synchronized (sFlights) {
+				return super.expire();
+			}
+		}
+
+		@Override
+		protected void onCancel() {
+			synchronized (sFlights) {
+				leave();
+			}
+		}
+
+		private void leave() {
+			if (mKey != null && sFlights.get(mKey) == this) {
+				sFlights.remove(mKey);
+			}
+		}
+	}
+
+	private static long getDeadline(IRequest<?> request) {
+		return request instanceof IDeadlineRequest ? ((IDeadlineRequest<?>) request).getDeadline() : 0;
+	}
+
+	/**
+	 * @param handler
+	 *            receives the response, or null to return its bytes
+	 */
+	private static byte[] fetch(String urlString, JsonHandler handler) throws IOException, JSONException {
+		Downloader.disableConnectionReuseIfNecessary();
+		HttpURLConnection urlConnection = (HttpURLConnection) new URL(urlString).openConnection();
+		urlConnection.setConnectTimeout(sConnectTimeout);
+		urlConnection.setReadTimeout(sReadTimeout);
+		boolean reusable = false;
+		try {
+			InputStream in;
+			try {
+				in = urlConnection.getInputStream();
+			} catch (IOException e) {
+				// read the error body as well, or the connection cannot be reused
+				InputStream error = urlConnection.getErrorStream();
+				if (error != null) {
+					reusable = drain(error);
+				}
+				throw e;
+			}
+			// an invalid text or a handler which stops leaves the connection to disconnect(), the rest is not read
+			byte[] bytes = null;
+			if (handler == null) {
+				bytes = readFully(in, urlConnection.getContentLength());
+			} else {
+				new JsonStreamParser(new InputStreamReader(in, "UTF-8")).parse(handler);
+			}
+			// what follows the value
+			reusable = drain(in);
+			return bytes;
+		} finally {
+			// closing the body read to the end gives the connection back to the keep-alive pool, disconnect() may close
+			// the socket
+			if (!reusable) {
+				urlConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Read the body into an array of its length when it is known and not too large, without the copies of a growing
+	 * buffer.
+	 */
+	private static byte[] readFully(InputStream in, int contentLength) throws IOException {
+		if (contentLength >= 0 && contentLength <= MAX_PREALLOCATED_LENGTH) {
+			byte[] bytes = new byte[contentLength];
+			int count = 0;
+			int length;
+			while (count < contentLength && (length = in.read(bytes, count, contentLength - count)) != -1) {
+				count += length;
+			}
+			if (count == contentLength) {
+				return bytes;
+			}
+			byte[] read = new byte[count];
+			System.arraycopy(bytes, 0, read, 0, count);
+			return read;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+		byte[] buffer = new byte[IO_BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Read the stream to the end and close it.
+	 *
+	 * @return false if it failed, and the connection can not be reused
+	 */
+	private static boolean drain(InputStream in) {
+		try {
+			byte[] buffer = new byte[IO_BUFFER_SIZE];
+			while (in.read(buffer) != -1) {
+				// skip
 			}
-		}, "SimpleRequestBase-Manager").start();
+			in.close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
 	}
 }
@@ -0,0 +1,94 @@
+package com.srain.cube.concurrent;
+
+import static com.srain.cube.concurrent.KeyedSerialExecutorTest.record;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.srain.cube.concurrent.KeyedSerialExecutorTest.ManualExecutor;
+
+public class KeyedLimitedExecutorTest {
+
+	@Test
+	public void holdsBackTasksOverTheLimit() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedLimitedExecutor executor = new KeyedLimitedExecutor(pool, 2);
+		List<String> ran = new ArrayList<String>();
+		executor.execute("host1", record(ran, "a1"));
+		executor.execute("host1", record(ran, "a2"));
+		executor.execute("host1", record(ran, "a3"));
+		executor.execute("host2", record(ran, "b1"));
+
+		assertEquals(3, pool.mTasks.size());
+		assertEquals(2, executor.getRunningCount("host1"));
+		assertEquals(1, executor.getWaitingCount());
+
+		// the waiting task starts when one of its key is done
+		pool.runNext();
+		assertEquals(0, executor.getWaitingCount());
+		assertEquals(2, executor.getRunningCount("host1"));
+		pool.runAll();
+		assertEquals(Arrays.asList("a1", "a2", "b1", "a3"), ran);
+		assertEquals(0, executor.getRunningCount("host1"));
+	}
+
+	@Test
+	public void aDoneTaskStartsTheFirstWaitingTaskBelowTheLimit() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedLimitedExecutor executor = new KeyedLimitedExecutor(pool, 1);
+		List<String> ran = new ArrayList<String>();
+		executor.execute("host1", record(ran, "a1"));
+		executor.execute("host2", record(ran, "b1"));
+		executor.execute("host2", record(ran, "b2"));
+		executor.execute("host1", record(ran, "a2"));
+		assertEquals(2, executor.getWaitingCount());
+
+		// a2 waits for a1 even though b1 is done first
+		pool.mTasks.get(1).run();
+		pool.mTasks.remove(1);
+		pool.runAll();
+		assertEquals(Arrays.asList("b1", "a1", "b2", "a2"), ran);
+	}
+
+	@Test
+	public void raisingTheLimitStartsWaitingTasks() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedLimitedExecutor executor = new KeyedLimitedExecutor(pool, 1);
+		List<String> ran = new ArrayList<String>();
+		executor.execute("host1", record(ran, "a1"));
+		executor.execute("host1", record(ran, "a2"));
+		assertEquals(1, pool.mTasks.size());
+		executor.setMaxPerKey(2);
+		assertEquals(2, pool.mTasks.size());
+		assertEquals(0, executor.getWaitingCount());
+	}
+
+	@Test
+	public void aFailingTaskFreesItsSlot() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedLimitedExecutor executor = new KeyedLimitedExecutor(pool, 1);
+		List<String> ran = new ArrayList<String>();
+		executor.execute("host1", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException();
+			}
+		});
+		executor.execute("host1", record(ran, "a2"));
+		try {
+			pool.runNext();
+		} catch (IllegalStateException expected) {
+		}
+		pool.runAll();
+		assertEquals(Arrays.asList("a2"), ran);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsALimitBelowOne() {
+		new KeyedLimitedExecutor(new ManualExecutor(), 0);
+	}
+}
@@ -0,0 +1,143 @@
+package com.srain.cube.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KeyedSerialExecutorTest {
+
+	/**
+	 * A pool which runs its tasks only when the test says so.
+	 */
+	static class ManualExecutor implements Executor {
+
+		final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+
+		@Override
+		public void execute(Runnable task) {
+			mTasks.offer(task);
+		}
+
+		void runNext() {
+			mTasks.poll().run();
+		}
+
+		void runAll() {
+			while (!mTasks.isEmpty()) {
+				runNext();
+			}
+		}
+	}
+
+	@Test
+	public void keysTakeTurns() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+		List<String> ran = new ArrayList<String>();
+		executor.execute("a", record(ran, "a1"));
+		executor.execute("a", record(ran, "a2"));
+		executor.execute("b", record(ran, "b1"));
+
+		// one task per key in the pool
+		assertEquals(2, pool.mTasks.size());
+		assertEquals(2, executor.getPendingCount("a"));
+		assertEquals(3, executor.getPendingCount());
+		assertEquals(2, executor.getActiveKeyCount());
+
+		pool.runAll();
+		assertEquals(Arrays.asList("a1", "b1", "a2"), ran);
+		assertEquals(0, executor.getPendingCount());
+		assertEquals(0, executor.getActiveKeyCount());
+		assertEquals(3, executor.getCompletedCount());
+		assertEquals(2, executor.getMaxQueueLength());
+	}
+
+	@Test
+	public void unkeyedTasksDoNotWaitForEachOther() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+		List<String> ran = new ArrayList<String>();
+		executor.execute(record(ran, "1"));
+		executor.execute(record(ran, "2"));
+		assertEquals(2, pool.mTasks.size());
+		pool.runAll();
+		assertEquals(Arrays.asList("1", "2"), ran);
+	}
+
+	@Test
+	public void aFailingTaskDoesNotBlockItsKey() {
+		ManualExecutor pool = new ManualExecutor();
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+		List<String> ran = new ArrayList<String>();
+		executor.execute("a", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException();
+			}
+		});
+		executor.execute("a", record(ran, "a2"));
+		try {
+			pool.runNext();
+		} catch (IllegalStateException expected) {
+		}
+		pool.runAll();
+		assertEquals(Arrays.asList("a2"), ran);
+		assertEquals(0, executor.getPendingCount());
+	}
+
+	@Test
+	public void tasksOfAKeyNeverOverlapOnAPool() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		KeyedSerialExecutor executor = new KeyedSerialExecutor(pool);
+		final int keys = 8;
+		final int tasksPerKey = 200;
+		final AtomicInteger[] running = new AtomicInteger[keys];
+		final int[] next = new int[keys];
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+		for (int k = 0; k < keys; k++) {
+			running[k] = new AtomicInteger();
+		}
+		for (int i = 0; i < tasksPerKey; i++) {
+			for (int k = 0; k < keys; k++) {
+				final int key = k;
+				final int sequence = i;
+				executor.execute("key" + k, new Runnable() {
+					@Override
+					public void run() {
+						if (running[key].incrementAndGet() != 1 || next[key] != sequence) {
+							errors.incrementAndGet();
+						}
+						next[key] = sequence + 1;
+						running[key].decrementAndGet();
+						done.countDown();
+					}
+				});
+			}
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		pool.shutdown();
+		assertEquals(0, errors.get());
+	}
+
+	static Runnable record(final List<String> ran, final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ran.add(name);
+			}
+		};
+	}
+}
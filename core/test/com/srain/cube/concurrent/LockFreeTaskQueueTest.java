@@ -0,0 +1,162 @@
+package com.srain.cube.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LockFreeTaskQueueTest {
+
+	@Test
+	public void firstInFirstOut() {
+		LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>();
+		queue.offer(1);
+		queue.offer(2);
+		queue.offer(3);
+		assertEquals(3, queue.size());
+		assertEquals(Integer.valueOf(1), queue.peek());
+		assertEquals(Arrays.asList(1, 2, 3), drain(queue));
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void lastInFirstOut() {
+		LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>(true);
+		queue.offer(1);
+		queue.offer(2);
+		queue.offer(3);
+		assertEquals(Integer.valueOf(3), queue.peek());
+		assertEquals(Arrays.asList(3, 2, 1), drain(queue));
+	}
+
+	@Test
+	public void tasksOfThePreviousOrderAreTakenLast() {
+		LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>();
+		queue.offer(1);
+		queue.offer(2);
+		queue.setLastInFirstOut(true);
+		queue.offer(3);
+		queue.offer(4);
+		assertEquals(Arrays.asList(4, 3, 1, 2), drain(queue));
+	}
+
+	@Test
+	public void removeFromTheMiddle() {
+		LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>(true);
+		queue.offer(1);
+		queue.offer(2);
+		queue.offer(3);
+		assertTrue(queue.remove(2));
+		assertFalse(queue.remove(2));
+		assertEquals(2, queue.size());
+		assertEquals(Arrays.asList(3, 1), drain(queue));
+	}
+
+	@Test
+	public void overflowPolicyDropsATask() {
+		final List<Integer> dropped = new ArrayList<Integer>();
+		LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>();
+		queue.setCapacity(2, new LockFreeTaskQueue.OverflowPolicy<Integer>() {
+
+			@Override
+			public Integer selectVictim(List<Integer> queued, Integer incoming) {
+				return queued.get(0);
+			}
+
+			@Override
+			public void onDropped(Integer e) {
+				dropped.add(e);
+			}
+		});
+		queue.offer(1);
+		queue.offer(2);
+		assertEquals(0, queue.remainingCapacity());
+		queue.offer(3);
+		assertEquals(Arrays.asList(1), dropped);
+		assertEquals(Arrays.asList(2, 3), drain(queue));
+	}
+
+	@Test
+	public void pollTimesOut() throws InterruptedException {
+		LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>();
+		long start = System.nanoTime();
+		assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void takeIsWokenUpByOffer() throws InterruptedException {
+		final LockFreeTaskQueue<Integer> queue = new LockFreeTaskQueue<Integer>();
+		final Integer[] taken = new Integer[1];
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					taken[0] = queue.take();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		consumer.start();
+		Thread.sleep(50);
+		queue.offer(7);
+		consumer.join(5000);
+		assertFalse(consumer.isAlive());
+		assertSame(Integer.valueOf(7), taken[0]);
+	}
+
+	@Test
+	public void everyTaskRunsOnceWithManyProducersAndWorkers() throws InterruptedException {
+		final int producers = 4;
+		final int tasksPerProducer = 20000;
+		final LockFreeTaskQueue<Runnable> queue = new LockFreeTaskQueue<Runnable>(true);
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 1, TimeUnit.SECONDS, queue);
+		final ConcurrentHashMap<Integer, Boolean> ran = new ConcurrentHashMap<Integer, Boolean>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(producers * tasksPerProducer);
+		for (int p = 0; p < producers; p++) {
+			final int base = p * tasksPerProducer;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < tasksPerProducer; i++) {
+						final int id = base + i;
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (ran.put(id, Boolean.TRUE) != null) {
+									duplicates.incrementAndGet();
+								}
+								done.countDown();
+							}
+						});
+					}
+				}
+			}.start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertEquals(0, duplicates.get());
+		assertEquals(producers * tasksPerProducer, ran.size());
+		assertEquals(0, queue.size());
+	}
+
+	private static <E> List<E> drain(LockFreeTaskQueue<E> queue) {
+		List<E> list = new ArrayList<E>();
+		queue.drainTo(list);
+		return list;
+	}
+}
@@ -0,0 +1,82 @@
+package com.srain.cube.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SimpleTaskTest {
+
+	/**
+	 * Records its calls, and completes in the worker thread.
+	 */
+	private static class RecordingTask extends SimpleTask {
+
+		private final String mName;
+		private final List<String> mCalls;
+
+		private RecordingTask(String name, List<String> calls) {
+			mName = name;
+			mCalls = calls;
+			setCompletionDispatcher(CompletionDispatcher.INLINE);
+		}
+
+		@Override
+		public void doInBackground() {
+			mCalls.add(mName);
+		}
+
+		@Override
+		public void onFinish() {
+			mCalls.add(mName + " finished");
+		}
+
+		@Override
+		protected void onCancel() {
+			mCalls.add(mName + " cancelled");
+		}
+	}
+
+	@Test
+	public void continuationRunsAfterTheTask() {
+		List<String> calls = new ArrayList<String>();
+		SimpleTask first = new RecordingTask("first", calls);
+		first.then(new RecordingTask("second", calls));
+		first.run();
+		assertEquals(Arrays.asList("first", "first finished", "second", "second finished"), calls);
+	}
+
+	@Test
+	public void cancellingAFinishedTaskKeepsItsContinuation() {
+		final List<String> calls = new ArrayList<String>();
+		final SimpleTask[] first = new SimpleTask[1];
+		first[0] = new RecordingTask("first", calls) {
+			@Override
+			public void onFinish() {
+				super.onFinish();
+				// too late, the task is done
+				first[0].cancel(false);
+			}
+		};
+		first[0].then(new RecordingTask("second", calls));
+		first[0].run();
+		assertEquals(Arrays.asList("first", "first finished", "second", "second finished"), calls);
+	}
+
+	@Test
+	public void cancellingATaskCancelsItsContinuation() {
+		List<String> calls = new ArrayList<String>();
+		SimpleTask first = new RecordingTask("first", calls);
+		SimpleTask second = new RecordingTask("second", calls);
+		first.then(second);
+		first.cancel(false);
+		first.run();
+		second.run();
+		assertTrue(second.isCancelled());
+		assertEquals(Arrays.asList("second cancelled", "first cancelled"), calls);
+	}
+}
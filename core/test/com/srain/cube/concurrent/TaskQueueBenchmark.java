@@ -0,0 +1,84 @@
+package com.srain.cube.concurrent;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multi-producer multi-consumer throughput of {@link LockFreeTaskQueue} against the single lock
+ * {@link LinkedBlockingDeque} the image executor used before, in both orders. Four threads offer tasks, like the UI
+ * thread and the request callbacks, and four workers take them.
+ * <p/>
+ * Run with {@code java -cp <test classpath> org.openjdk.jmh.Main TaskQueueBenchmark}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+
+	private static final Runnable TASK = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	@Param({"lockFree", "deque"})
+	public String queue;
+
+	@Param({"fifo", "lifo"})
+	public String order;
+
+	private BlockingQueue<Runnable> mQueue;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		boolean lastInFirstOut = order.equals("lifo");
+		if (queue.equals("lockFree")) {
+			mQueue = new LockFreeTaskQueue<Runnable>(lastInFirstOut);
+		} else if (lastInFirstOut) {
+			mQueue = new LinkedBlockingDeque<Runnable>() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public boolean offer(Runnable e) {
+					return offerFirst(e);
+				}
+			};
+		} else {
+			mQueue = new LinkedBlockingDeque<Runnable>();
+		}
+	}
+
+	@Benchmark
+	@Group("producersAndWorkers")
+	@GroupThreads(4)
+	public boolean offer() {
+		return mQueue.offer(TASK);
+	}
+
+	@Benchmark
+	@Group("producersAndWorkers")
+	@GroupThreads(4)
+	public Runnable take() throws InterruptedException {
+		// a timed wait lets the workers finish the iteration once the producers stop
+		return mQueue.poll(1, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,90 @@
+package com.srain.cube.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CompactEntryIndexTest {
+
+	private static final String HEX_KEY = "0123456789abcdef0123456789abcdef";
+
+	@Test
+	public void keysRoundTrip() {
+		CompactEntryIndex index = new CompactEntryIndex(1);
+		String[] keys = { HEX_KEY, "00000000000000000000000000000000", "0123456789ABCDEF0123456789ABCDEF", "short", "" };
+		for (String key : keys) {
+			index.onWrite(key, 1);
+		}
+		assertEquals(keys.length, index.size());
+		for (String key : keys) {
+			int slot = index.find(key);
+			assertTrue(key, slot >= 0);
+			assertEquals(key, index.key(slot));
+		}
+		assertEquals(-1, index.find("fedcba9876543210fedcba9876543210"));
+	}
+
+	@Test
+	public void storesTheFieldsOfAnEntry() {
+		CompactEntryIndex index = new CompactEntryIndex(2);
+		index.onWrite(HEX_KEY, 30);
+		int slot = index.find(HEX_KEY);
+		index.store(slot, new long[] { 10, 20 }, 7, 1000, 2000);
+		assertEquals(10, index.length(slot, 0));
+		assertEquals(20, index.length(slot, 1));
+		assertEquals(7, index.sequenceNumber(slot));
+		assertEquals(1000, index.expiresAt(slot));
+		assertEquals(2000, index.journalTime(slot));
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsed() {
+		CompactEntryIndex index = new CompactEntryIndex(1);
+		assertNull(index.nextVictim());
+		index.onWrite("a", 1);
+		index.onWrite("b", 1);
+		index.onWrite("c", 1);
+		index.onRead("a");
+		assertEquals("b", index.nextVictim());
+		assertEquals(Arrays.asList("b", "c", "a"), index.keys());
+
+		List<String> walked = new ArrayList<String>();
+		for (int slot = index.first(); slot >= 0; slot = index.next(slot)) {
+			walked.add(index.key(slot));
+		}
+		assertEquals(index.keys(), walked);
+	}
+
+	@Test
+	public void findsEveryKeyAfterRemovalsAndGrowth() {
+		CompactEntryIndex index = new CompactEntryIndex(1);
+		int count = 5000;
+		for (int i = 0; i < count; i++) {
+			index.onWrite(key(i), 1);
+		}
+		for (int i = 0; i < count; i += 2) {
+			index.onRemove(key(i));
+		}
+		// the freed slots are reused
+		for (int i = count; i < count + count / 2; i++) {
+			index.onWrite(key(i), 1);
+		}
+		assertEquals(count, index.size());
+		for (int i = 0; i < count + count / 2; i++) {
+			boolean removed = i < count && i % 2 == 0;
+			assertEquals(key(i), !removed, index.find(key(i)) >= 0);
+		}
+		assertEquals(key(1), index.nextVictim());
+	}
+
+	private static String key(int i) {
+		// hex keys and other keys share the table
+		return i % 3 == 0 ? "key" + i : String.format("%032x", i * 0x9e3779b97f4a7c15L);
+	}
+}
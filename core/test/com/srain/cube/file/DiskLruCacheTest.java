@@ -0,0 +1,203 @@
+package com.srain.cube.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link DiskLruCache}: group commit and READ coalescing of the journal, recovery from a journal a crash left behind,
+ * the expiry of an entry under edit, and the entry count of the compact index.
+ */
+public class DiskLruCacheTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private File mJournal;
+	private DiskLruCache mCache;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = mFolder.newFolder("cache");
+		mJournal = new File(mDirectory, DiskLruCache.JOURNAL_FILE);
+		mCache = DiskLruCache.open(mDirectory, 1, 1, Integer.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mCache.close();
+	}
+
+	@Test
+	public void bufferedRecordsAreWrittenOnClose() throws IOException {
+		mCache.setGroupCommit(60 * 1000, 1000);
+		set("a", "apple");
+		set("b", "banana");
+		reopen();
+		assertValue("a", "apple");
+		assertValue("b", "banana");
+	}
+
+	@Test
+	public void readsWithinTheIntervalAreNotJournaled() throws IOException {
+		set("a", "apple");
+		for (int i = 0; i < 10; i++) {
+			assertValue("a", "apple");
+		}
+		mCache.flush();
+		assertEquals(0, countRecords("READ a"));
+
+		mCache.setReadRecordInterval(0);
+		assertValue("a", "apple");
+		assertValue("a", "apple");
+		mCache.flush();
+		assertEquals(2, countRecords("READ a"));
+	}
+
+	@Test
+	public void truncatedTailIsDropped() throws IOException {
+		set("a", "apple");
+		set("b", "banana");
+		mCache.close();
+		append("DIRTY c\nCLEAN c 3");
+
+		reopen();
+		assertValue("a", "apple");
+		assertValue("b", "banana");
+		assertNull(mCache.get("c"));
+		assertTrue(readJournal().endsWith("\n"));
+
+		// records appended after the recovery are read back
+		set("d", "date");
+		reopen();
+		assertValue("d", "date");
+	}
+
+	@Test
+	public void badRecordDropsEntriesWhoseFilesAreGone() throws IOException {
+		set("a", "apple");
+		set("b", "banana");
+		mCache.close();
+		// the REMOVE of b was lost after its file was deleted
+		assertTrue(new File(mDirectory, "b.0").delete());
+		append("BOGUS b\n");
+
+		reopen();
+		assertValue("a", "apple");
+		assertNull(mCache.get("b"));
+	}
+
+	@Test
+	public void unreadableJournalIsRecoveredFromFiles() throws IOException {
+		set("a", "apple");
+		set("b", "banana");
+		mCache.close();
+		Writer writer = new FileWriter(mJournal);
+		writer.write("not a journal\n");
+		writer.close();
+
+		reopen();
+		assertValue("a", "apple");
+		assertValue("b", "banana");
+		assertEquals(11, mCache.size());
+	}
+
+	@Test
+	public void journalWithAnotherValueCountClearsTheCache() throws IOException {
+		set("a", "apple");
+		mCache.close();
+		mCache = DiskLruCache.open(mDirectory, 1, 2, Integer.MAX_VALUE);
+		assertNull(mCache.get("a"));
+		assertEquals(0, mCache.size());
+	}
+
+	@Test
+	public void compactIndexCountsAnEntryUnderEditOnce() throws IOException {
+		mCache.close();
+		DiskLruCache.Options options = new DiskLruCache.Options();
+		options.compactIndex = true;
+		mCache = DiskLruCache.open(mDirectory, 1, 1, Integer.MAX_VALUE, options);
+		set("a", "apple");
+		set("b", "banana");
+		DiskLruCache.Editor published = mCache.edit("a");
+		DiskLruCache.Editor created = mCache.edit("c");
+		assertEquals(3, mCache.getStats().entryCount);
+		published.abort();
+		created.abort();
+		assertEquals(2, mCache.getStats().entryCount);
+	}
+
+	@Test
+	public void entryExpiredDuringAnAbortedEditIsStillEvicted() throws Exception {
+		DiskLruCache.Editor editor = mCache.edit("a");
+		editor.set(0, "apple");
+		editor.setTimeToLive(100);
+		editor.commit();
+		editor = mCache.edit("a");
+		// the sweep finds the entry under edit
+		Thread.sleep(300);
+		editor.abort();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mCache.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, mCache.size());
+	}
+
+	private void reopen() throws IOException {
+		if (!mCache.isClosed()) {
+			mCache.close();
+		}
+		mCache = DiskLruCache.open(mDirectory, 1, 1, Integer.MAX_VALUE);
+	}
+
+	private void set(String key, String value) throws IOException {
+		DiskLruCache.Editor editor = mCache.edit(key);
+		editor.set(0, value);
+		editor.commit();
+	}
+
+	private void assertValue(String key, String value) throws IOException {
+		DiskLruCache.Snapshot snapshot = mCache.get(key);
+		assertNotNull(key, snapshot);
+		try {
+			assertEquals(value, snapshot.getString(0));
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private void append(String records) throws IOException {
+		Writer writer = new FileWriter(mJournal, true);
+		writer.write(records);
+		writer.close();
+	}
+
+	private String readJournal() throws IOException {
+		return DiskLruCache.readFully(new FileReader(mJournal));
+	}
+
+	private int countRecords(String record) throws IOException {
+		int count = 0;
+		for (String line : readJournal().split("\n")) {
+			if (line.equals(record)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,103 @@
+package com.srain.cube.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+	@Test
+	public void lruEvictsTheLeastRecentlyUsed() {
+		EvictionPolicy policy = new LruEvictionPolicy();
+		assertNull(policy.nextVictim());
+		policy.onWrite("a", 1);
+		policy.onWrite("b", 1);
+		policy.onWrite("c", 1);
+		policy.onRead("a");
+		assertEquals("b", policy.nextVictim());
+		assertEquals(Arrays.asList("b", "c", "a"), policy.keys());
+
+		policy.onRemove("b");
+		assertEquals("c", policy.nextVictim());
+		policy.onWrite("c", 2);
+		assertEquals("a", policy.nextVictim());
+	}
+
+	@Test
+	public void gdsfEvictsALargeOneOffBeforeSmallPopularEntries() {
+		EvictionPolicy policy = new GdsfEvictionPolicy();
+		policy.onWrite("thumb1", 1000);
+		policy.onWrite("thumb2", 1000);
+		policy.onWrite("large", 100 * 1000);
+		policy.onRead("thumb1");
+		policy.onRead("thumb2");
+		assertEquals("large", policy.nextVictim());
+		policy.onRemove("large");
+		assertEquals(Arrays.asList("thumb1", "thumb2"), policy.keys());
+	}
+
+	@Test
+	public void gdsfAgesOutEntriesWhichWerePopularLongAgo() {
+		EvictionPolicy policy = new GdsfEvictionPolicy();
+		policy.onWrite("old", 1);
+		for (int i = 0; i < 10; i++) {
+			policy.onRead("old");
+		}
+		// every eviction raises the priority new entries start with
+		for (int i = 0; i < 20; i++) {
+			String key = "new" + i;
+			policy.onWrite(key, 1);
+			if (!key.equals(policy.nextVictim())) {
+				break;
+			}
+			policy.onRemove(key);
+		}
+		assertEquals("old", policy.nextVictim());
+	}
+
+	@Test
+	public void wTinyLfuEvictsOneOffsBeforeFrequentEntries() {
+		EvictionPolicy policy = new WTinyLfuEvictionPolicy();
+		for (int i = 0; i < 5; i++) {
+			policy.onWrite("hot" + i, 1);
+		}
+		// pushes the last hot entry out of the window
+		policy.onWrite("once", 1);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 5; i++) {
+				policy.onRead("hot" + i);
+			}
+		}
+		for (int i = 0; i < 5; i++) {
+			policy.onWrite("once" + i, 1);
+		}
+		for (int i = 0; i < 5; i++) {
+			String victim = policy.nextVictim();
+			assertTrue(victim, victim.startsWith("once"));
+			policy.onRemove(victim);
+		}
+		assertEquals(6, policy.keys().size());
+	}
+
+	@Test
+	public void wTinyLfuForgetsRemovedEntries() {
+		EvictionPolicy policy = new WTinyLfuEvictionPolicy();
+		policy.onWrite("a", 1);
+		policy.onWrite("b", 1);
+		policy.onRemove("a");
+		assertFalse(policy.keys().contains("a"));
+		assertEquals("b", policy.nextVictim());
+		policy.onRemove("b");
+		assertNull(policy.nextVictim());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wTinyLfuRejectsAWindowOfTheWholeCache() {
+		new WTinyLfuEvictionPolicy(1);
+	}
+}
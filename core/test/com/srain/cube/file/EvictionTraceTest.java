@@ -0,0 +1,139 @@
+package com.srain.cube.file;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Replays an access log against each eviction policy and compares the hit ratios.
+ * <p/>
+ * The built-in log models an image list: thumbnails read with a Zipf popularity, mixed with large images which are
+ * opened once. A recorded log, one "key size" line per access, is replayed as well when the system property
+ * {@code cube.evictionTrace} names its file.
+ */
+public class EvictionTraceTest {
+
+	private static final long CAPACITY = 4 * 1024 * 1024;
+
+	private static class Access {
+		private final String mKey;
+		private final long mSize;
+
+		private Access(String key, long size) {
+			mKey = key;
+			mSize = size;
+		}
+	}
+
+	@Test
+	public void policiesBeatLruOnImageTrace() {
+		List<Access> trace = imageTrace(new Random(42), 200 * 1000);
+		double lru = replay(new LruEvictionPolicy(), trace, CAPACITY);
+		double tinyLfu = replay(new WTinyLfuEvictionPolicy(), trace, CAPACITY);
+		double gdsf = replay(new GdsfEvictionPolicy(), trace, CAPACITY);
+		// 0.285, 0.513 and 0.576 when written
+		String ratios = ratios(lru, tinyLfu, gdsf);
+		assertTrue(ratios, tinyLfu > lru + 0.15);
+		assertTrue(ratios, gdsf > lru + 0.15);
+	}
+
+	@Test
+	public void recordedTrace() throws IOException {
+		String path = System.getProperty("cube.evictionTrace");
+		Assume.assumeNotNull(path);
+		List<Access> trace = readTrace(path);
+		long capacity = Long.getLong("cube.evictionTraceCapacity", CAPACITY);
+		double lru = replay(new LruEvictionPolicy(), trace, capacity);
+		double tinyLfu = replay(new WTinyLfuEvictionPolicy(), trace, capacity);
+		double gdsf = replay(new GdsfEvictionPolicy(), trace, capacity);
+		// the failure reports the ratios of the log
+		String ratios = ratios(lru, tinyLfu, gdsf);
+		assertTrue(ratios, tinyLfu >= lru);
+		assertTrue(ratios, gdsf >= lru);
+	}
+
+	private static String ratios(double lru, double tinyLfu, double gdsf) {
+		return String.format("hit ratio: lru %.3f, w-tinylfu %.3f, gdsf %.3f", lru, tinyLfu, gdsf);
+	}
+
+	/**
+	 * Replays the trace the way {@link DiskLruCache} drives a policy: a miss writes the entry, then entries are evicted
+	 * until the cache fits again.
+	 */
+	private static double replay(EvictionPolicy policy, List<Access> trace, long capacity) {
+		HashMap<String, Long> entries = new HashMap<String, Long>();
+		long size = 0;
+		int hits = 0;
+		for (Access access : trace) {
+			if (entries.containsKey(access.mKey)) {
+				hits++;
+				policy.onRead(access.mKey);
+				continue;
+			}
+			entries.put(access.mKey, access.mSize);
+			size += access.mSize;
+			policy.onWrite(access.mKey, access.mSize);
+			while (size > capacity) {
+				String victim = policy.nextVictim();
+				size -= entries.remove(victim);
+				policy.onRemove(victim);
+			}
+		}
+		return (double) hits / trace.size();
+	}
+
+	private static List<Access> imageTrace(Random random, int length) {
+		int thumbnails = 2000;
+		double[] cumulative = new double[thumbnails];
+		double sum = 0;
+		for (int i = 0; i < thumbnails; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		long[] sizes = new long[thumbnails];
+		for (int i = 0; i < thumbnails; i++) {
+			sizes[i] = 5 * 1024 + random.nextInt(15 * 1024);
+		}
+
+		List<Access> trace = new ArrayList<Access>(length);
+		for (int i = 0; i < length; i++) {
+			if (random.nextInt(10) < 8) {
+				int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+				if (index < 0) {
+					index = -index - 1;
+				}
+				trace.add(new Access("thumb" + index, sizes[index]));
+			} else {
+				trace.add(new Access("large" + i, 300 * 1024));
+			}
+		}
+		return trace;
+	}
+
+	private static List<Access> readTrace(String path) throws IOException {
+		List<Access> trace = new ArrayList<Access>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.trim().split("\\s+");
+				if (parts.length == 2) {
+					trace.add(new Access(parts[0], Long.parseLong(parts[1])));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+}
@@ -0,0 +1,92 @@
+package com.srain.cube.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the operations which append to the journal, with every record flushed as it is appended ("flush") and
+ * with the default group commit ("group"), in each {@link DiskLruCache.Durability} mode. A commit flushes the journal
+ * in the JOURNAL and FULL modes whatever the group commit.
+ * <p/>
+ * Run with {@code java -cp <test classpath> org.openjdk.jmh.Main JournalBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+	private static final int KEY_COUNT = 1024;
+
+	@Param({"flush", "group"})
+	public String mode;
+
+	@Param({"NONE", "JOURNAL", "FULL"})
+	public DiskLruCache.Durability durability;
+
+	private File mDirectory;
+	private DiskLruCache mCache;
+	private String[] mKeys;
+	private int mNext;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mDirectory = new File(System.getProperty("java.io.tmpdir"), "journal-benchmark-" + System.nanoTime());
+		DiskLruCache.Options options = new DiskLruCache.Options();
+		options.durability = durability;
+		mCache = DiskLruCache.open(mDirectory, 1, 1, Long.MAX_VALUE, options);
+		if (mode.equals("flush")) {
+			mCache.setGroupCommit(0, 1);
+			mCache.setReadRecordInterval(0);
+		}
+		mKeys = new String[KEY_COUNT];
+		for (int i = 0; i < KEY_COUNT; i++) {
+			mKeys[i] = "key" + i;
+			commit(mKeys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mCache.delete();
+	}
+
+	@Benchmark
+	public void editAndCommit() throws IOException {
+		commit(nextKey());
+	}
+
+	@Benchmark
+	public void get() throws IOException {
+		DiskLruCache.Snapshot snapshot = mCache.get(nextKey());
+		snapshot.close();
+	}
+
+	private String nextKey() {
+		mNext = (mNext + 1) % KEY_COUNT;
+		return mKeys[mNext];
+	}
+
+	private void commit(String key) throws IOException {
+		DiskLruCache.Editor editor = mCache.edit(key);
+		editor.set(0, key);
+		editor.commit();
+	}
+}
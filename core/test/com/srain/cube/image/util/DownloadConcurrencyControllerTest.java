@@ -0,0 +1,161 @@
+package com.srain.cube.image.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * The limit of {@link DownloadConcurrencyController}, with the network type unknown: it starts at 3 downloads.
+ */
+public class DownloadConcurrencyControllerTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static class RecordingWaiter implements DownloadConcurrencyController.SlotWaiter {
+
+		private int mTold;
+
+		@Override
+		public void onSlotAvailable() {
+			mTold++;
+		}
+	}
+
+	@Test
+	public void startsFromTheInitialLimitWithinTheMaximum() {
+		assertEquals(3, new DownloadConcurrencyController(8).getLimit());
+		assertEquals(2, new DownloadConcurrencyController(2).getLimit());
+		assertEquals(1, new DownloadConcurrencyController(0).getLimit());
+	}
+
+	@Test
+	public void aFreedSlotIsKeptForTheFirstWaiter() {
+		DownloadConcurrencyController controller = new DownloadConcurrencyController(8);
+		acquire(controller, 3);
+		RecordingWaiter first = new RecordingWaiter();
+		RecordingWaiter second = new RecordingWaiter();
+		assertFalse(controller.tryAcquire(first));
+		assertFalse(controller.tryAcquire(second));
+		assertTrue(controller.isWaiting(first));
+
+		controller.release(1000, MILLIS);
+		assertEquals(1, first.mTold);
+		assertEquals(0, second.mTold);
+		// the slot is not given to another download meanwhile
+		RecordingWaiter third = new RecordingWaiter();
+		assertFalse(controller.tryAcquire(third));
+		assertTrue(controller.tryAcquire(first));
+		assertFalse(controller.isWaiting(first));
+		assertEquals(3, controller.getInFlight());
+
+		// a waiter which gives up its slot passes it on
+		controller.releaseUnused();
+		assertEquals(1, second.mTold);
+		controller.cancelWait(second);
+		assertEquals(1, third.mTold);
+		assertTrue(controller.tryAcquire(third));
+		assertEquals(3, controller.getInFlight());
+	}
+
+	@Test
+	public void limitGrowsByOneWhileTheLatencyHolds() {
+		DownloadConcurrencyController controller = new DownloadConcurrencyController(8);
+		acquire(controller, 3);
+		// a window of 4 downloads, the limit is reached all along
+		for (int i = 0; i < 4; i++) {
+			controller.release(1000, MILLIS);
+			acquire(controller, 1);
+		}
+		assertEquals(4, controller.getLimit());
+	}
+
+	@Test
+	public void limitStaysWhenItIsNotReached() {
+		DownloadConcurrencyController controller = new DownloadConcurrencyController(8);
+		for (int i = 0; i < 8; i++) {
+			acquire(controller, 1);
+			controller.release(1000, MILLIS);
+		}
+		assertEquals(3, controller.getLimit());
+	}
+
+	@Test
+	public void limitIsHalvedWhenTheLatencyGrowsWithoutTheThroughput() {
+		DownloadConcurrencyController controller = new DownloadConcurrencyController(8);
+		acquire(controller, 3);
+		for (int i = 0; i < 4; i++) {
+			controller.release(1000, MILLIS);
+			acquire(controller, 1);
+		}
+		assertEquals(4, controller.getLimit());
+		acquire(controller, 1);
+		// ten times the latency for no more bytes: the downloads queue in the network
+		for (int i = 0; i < 4; i++) {
+			controller.release(0, 10 * MILLIS);
+		}
+		assertEquals(2, controller.getLimit());
+	}
+
+	@Test
+	public void onlyCongestionFailuresHalveTheLimit() {
+		DownloadConcurrencyController controller = new DownloadConcurrencyController(8);
+		acquire(controller, 2);
+		controller.releaseFailed(false);
+		assertEquals(3, controller.getLimit());
+		controller.releaseFailed(true);
+		assertEquals(1, controller.getLimit());
+		assertEquals(0, controller.getInFlight());
+	}
+
+	@Test
+	public void downloadsNeverExceedTheLimit() throws InterruptedException {
+		final DownloadConcurrencyController controller = new DownloadConcurrencyController(3);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20; i++) {
+						if (!controller.acquire()) {
+							return;
+						}
+						int count = running.incrementAndGet();
+						synchronized (maxRunning) {
+							maxRunning.set(Math.max(maxRunning.get(), count));
+						}
+						try {
+							Thread.sleep(1);
+						} catch (InterruptedException e) {
+							return;
+						}
+						running.decrementAndGet();
+						controller.release(1000, MILLIS);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10 * 1000);
+			assertFalse(thread.isAlive());
+		}
+		assertEquals(3, maxRunning.get());
+		assertEquals(0, controller.getInFlight());
+	}
+
+	private static void acquire(DownloadConcurrencyController controller, int count) {
+		for (int i = 0; i < count; i++) {
+			assertTrue(controller.tryAcquire(new RecordingWaiter()));
+		}
+	}
+}
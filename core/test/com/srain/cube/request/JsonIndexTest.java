@@ -0,0 +1,80 @@
+package com.srain.cube.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JsonIndexTest {
+
+	private static final String TEXT = "{\"status\": 0, \"items\": [{\"id\": 1, \"name\": \"caf\\u00e9 \\\"]}\"}, {\"id\": 12345678901, \"name\": \"\u00e9t\u00e9\", \"tags\": []}], "
+			+ "\"ok\": true, \"none\": null, \"status\": 2}";
+
+	@Test
+	public void readsValuesWithoutBuildingTheTree() throws Exception {
+		JsonData json = JsonData.createLazy(utf8(TEXT));
+		JsonData items = json.optJson("items");
+		assertEquals(2, items.length());
+		assertEquals(1, items.optJson(0).optInt("id"));
+		assertEquals("caf\u00e9 \"]}", items.optJson(0).optString("name"));
+		assertEquals("\u00e9t\u00e9", items.optJson(1).optString("name"));
+		assertEquals(0, items.optJson(1).optJson("tags").length());
+		assertTrue(json.optBoolean("ok"));
+		assertTrue(json.has("none"));
+		assertFalse(json.has("missing"));
+		// the last of a repeated name, like JSONObject
+		assertEquals(2, json.optInt("status"));
+	}
+
+	@Test
+	public void materializesTheSameTreeAsTheParser() throws Exception {
+		JSONObject lazy = (JSONObject) JsonData.createLazy(utf8(TEXT)).getRawData();
+		JSONObject parsed = (JSONObject) JsonData.create(new StringReader(TEXT)).getRawData();
+		assertEquals(parsed.length(), lazy.length());
+		JSONArray lazyItems = lazy.getJSONArray("items");
+		JSONArray parsedItems = parsed.getJSONArray("items");
+		assertEquals(parsedItems.getJSONObject(0).getString("name"), lazyItems.getJSONObject(0).getString("name"));
+		assertEquals(parsedItems.getJSONObject(1).get("id"), lazyItems.getJSONObject(1).get("id"));
+		assertEquals(JSONObject.NULL, lazy.get("none"));
+	}
+
+	@Test
+	public void declinesTextWhichIsNotOnlyJson() throws Exception {
+		String[] texts = { "{a: 1}", "{\"a\": 1, b: 2}", "{\"a\" = 1}", "{\"a\": 1; \"b\": 2}", "{\"a\": 1,}", "{,\"a\": 1}", "[1,,2]", "[,1]", "[1,]",
+				"['a']", "[1 /* comment */]", "[1 # comment\n]" };
+		for (String text : texts) {
+			assertNull(text, JsonIndex.build(utf8(text)));
+		}
+		// the parser reads them instead
+		assertEquals(1, JsonData.createLazy(utf8("{a: 1}")).optInt("a"));
+		assertEquals(3, JsonData.createLazy(utf8("[1,,2]")).length());
+	}
+
+	@Test
+	public void acceptsJson() throws Exception {
+		String[] texts = { "{}", "[]", " { } ", "[ ]", "{\"a\": [1, {\"b\": \"/#';=\"}]}", "[\"x\"] trailing" };
+		for (String text : texts) {
+			assertNotNull(text, JsonIndex.build(utf8(text)));
+		}
+	}
+
+	@Test
+	public void emptyForTextWhichIsNotAContainer() throws Exception {
+		String[] texts = { "", "\"s\"", "1", "[1, 2", "{\"a\": [1}", "[\"unterminated]" };
+		for (String text : texts) {
+			assertEquals(text, 0, JsonData.createLazy(utf8(text)).length());
+		}
+	}
+
+	private static byte[] utf8(String text) throws UnsupportedEncodingException {
+		return text.getBytes("UTF-8");
+	}
+}
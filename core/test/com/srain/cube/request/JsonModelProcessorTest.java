@@ -0,0 +1,149 @@
+package com.srain.cube.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.srain.cube.request.processor.JsonModelProcessor;
+
+/**
+ * Compiles models with {@link JsonModelProcessor} and fills them with the adapters it writes, from the text and from a
+ * {@link JsonData} already parsed.
+ */
+public class JsonModelProcessorTest {
+
+	private static final String FEED = "package sample;\n" //
+			+ "import java.util.List;\n" //
+			+ "import com.srain.cube.request.JsonField;\n" //
+			+ "import com.srain.cube.request.JsonModel;\n" //
+			+ "@JsonModel\n" //
+			+ "public class Feed {\n" //
+			+ "	@JsonField public int status;\n" //
+			+ "	@JsonField(\"owner\") public User user;\n" //
+			+ "	@JsonField public List<Item> items;\n" //
+			+ "	@JsonField public List<String> tags;\n" //
+			+ "	@JsonModel\n" //
+			+ "	public static class Item {\n" //
+			+ "		@JsonField public long id;\n" //
+			+ "		@JsonField public String title;\n" //
+			+ "	}\n" //
+			+ "}\n";
+
+	private static final String USER = "package sample;\n" //
+			+ "import com.srain.cube.request.JsonField;\n" //
+			+ "import com.srain.cube.request.JsonModel;\n" //
+			+ "@JsonModel\n" //
+			+ "public class User {\n" //
+			+ "	@JsonField public String name;\n" //
+			+ "	@JsonField public Boolean verified;\n" //
+			+ "}\n";
+
+	// "extra" has no field: the parser skips it, with the objects and arrays inside
+	private static final String JSON = "{\"extra\": {\"status\": 500, \"items\": [{\"id\": 9}], \"more\": [[1, 2], {}]},"
+			+ " \"status\": 200,"
+			+ " \"owner\": {\"name\": \"cube\", \"verified\": true, \"avatar\": {\"url\": \"a.png\"}},"
+			+ " \"items\": [{\"id\": 1, \"title\": \"first\"}, {\"id\": 2}, \"not an item\"],"
+			+ " \"tags\": [\"a\", null, \"c\"]}";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private JsonAdapter<Object> mAdapter;
+
+	@Before
+	public void setUp() throws Exception {
+		File classes = mFolder.newFolder("classes");
+		compile(classes, source("sample.Feed", FEED), source("sample.User", USER));
+		ClassLoader loader = new URLClassLoader(new URL[] { classes.toURI().toURL() }, getClass().getClassLoader());
+		mAdapter = adapter(loader, "sample.FeedJsonAdapter");
+	}
+
+	@Test
+	public void readsTheText() throws Exception {
+		assertFeed(mAdapter.read(new StringReader(JSON)));
+	}
+
+	@Test
+	public void replaysAParsedTree() throws Exception {
+		assertFeed(mAdapter.read(JsonData.create(JSON)));
+	}
+
+	@Test
+	public void readsNothingFromAnArray() throws IOException, JSONException {
+		assertNull(mAdapter.read(new StringReader("[1, 2]")));
+	}
+
+	private void assertFeed(Object feed) throws Exception {
+		assertEquals(200, get(feed, "status"));
+
+		Object user = get(feed, "user");
+		assertEquals("cube", get(user, "name"));
+		assertEquals(Boolean.TRUE, get(user, "verified"));
+
+		// the string does not fit an item, it is skipped
+		List<?> items = (List<?>) get(feed, "items");
+		assertEquals(2, items.size());
+		assertEquals(1L, get(items.get(0), "id"));
+		assertEquals("first", get(items.get(0), "title"));
+		assertEquals(2L, get(items.get(1), "id"));
+		assertNull(get(items.get(1), "title"));
+
+		assertEquals(Arrays.asList("a", null, "c"), get(feed, "tags"));
+	}
+
+	private static Object get(Object model, String field) throws Exception {
+		return model.getClass().getField(field).get(model);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JsonAdapter<Object> adapter(ClassLoader loader, String name) throws Exception {
+		return (JsonAdapter<Object>) loader.loadClass(name).getField("INSTANCE").get(null);
+	}
+
+	/**
+	 * An annotation which no processor claims fails the build with these options.
+	 */
+	private static void compile(File classes, JavaFileObject... sources) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		List<String> options = new ArrayList<String>(Arrays.asList("-d", classes.getPath(), "-Xlint:processing", "-Werror"));
+		options.add("-classpath");
+		options.add(System.getProperty("java.class.path"));
+		JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Arrays.asList(sources));
+		task.setProcessors(Arrays.asList(new JsonModelProcessor()));
+		boolean compiled = task.call();
+		assertTrue(diagnostics.getDiagnostics().toString(), compiled);
+	}
+
+	private static JavaFileObject source(String name, final String code) {
+		URI uri = URI.create("string:///" + name.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+		return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return code;
+			}
+		};
+	}
+}
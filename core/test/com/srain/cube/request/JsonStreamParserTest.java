@@ -0,0 +1,166 @@
+package com.srain.cube.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JsonStreamParserTest {
+
+	/**
+	 * Records the events as strings.
+	 */
+	private static class RecordingHandler implements JsonHandler {
+
+		private final List<String> mEvents = new ArrayList<String>();
+
+		@Override
+		public void onStartObject() {
+			mEvents.add("{");
+		}
+
+		@Override
+		public void onEndObject() {
+			mEvents.add("}");
+		}
+
+		@Override
+		public void onStartArray() {
+			mEvents.add("[");
+		}
+
+		@Override
+		public void onEndArray() {
+			mEvents.add("]");
+		}
+
+		@Override
+		public void onName(String name) {
+			mEvents.add(name + ":");
+		}
+
+		@Override
+		public void onValue(Object value) {
+			mEvents.add(value == JSONObject.NULL ? "NULL" : value.getClass().getSimpleName() + " " + value);
+		}
+	}
+
+	@Test
+	public void eventsInTheOrderOfTheText() throws Exception {
+		assertEquals(Arrays.asList("{", "a:", "[", "Integer 1", "Boolean true", "NULL", "]", "b:", "{", "c:", "String d", "}", "}"),
+				events("{\"a\": [1, true, null], \"b\": {\"c\": \"d\"}}"));
+	}
+
+	@Test
+	public void numbersAreTypedLikeJsonTokener() throws Exception {
+		assertEquals(Arrays.asList("[", "Integer -5", "Long 12345678901", "Double 1.5", "Double 1000.0", "]"), events("[-5, 12345678901, 1.5, 1e3]"));
+	}
+
+	@Test
+	public void escapes() throws Exception {
+		JSONArray array = parseArray("[\"a\\nb\", \"\\u00e9\", \"\\/\", \"\\\"\", \"\\q\"]");
+		assertEquals("a\nb", array.getString(0));
+		assertEquals("\u00e9", array.getString(1));
+		assertEquals("/", array.getString(2));
+		assertEquals("\"", array.getString(3));
+		assertEquals("q", array.getString(4));
+	}
+
+	@Test
+	public void stringLongerThanTheBuffer() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			builder.append((char) ('a' + i % 26));
+		}
+		String text = builder.toString();
+		assertEquals(text, parseArray("[\"" + text + "\"]").getString(0));
+	}
+
+	@Test
+	public void commentsAndTheOtherSyntaxOfJsonTokener() throws Exception {
+		JSONObject object = (JSONObject) JsonData.create(new StringReader(
+				"/* head */ {a: 1, 'b' = 'x\\'y'; \"c\" => [1,,2,] // line\n, # hash\n d: TRUE, e: 0x1F, f: 017}")).getRawData();
+		assertEquals(1, object.getInt("a"));
+		assertEquals("x'y", object.getString("b"));
+		JSONArray c = object.getJSONArray("c");
+		assertEquals(4, c.length());
+		assertTrue(c.isNull(1));
+		assertTrue(c.isNull(3));
+		assertEquals(Boolean.TRUE, object.get("d"));
+		assertEquals(31, object.getInt("e"));
+		assertEquals(15, object.getInt("f"));
+	}
+
+	@Test
+	public void onlyTheFirstValueIsRead() throws Exception {
+		assertEquals(Arrays.asList("[", "Integer 1", "]"), events("[1] trailing"));
+	}
+
+	@Test
+	public void invalidTexts() throws Exception {
+		String[] texts = { "", "[1, 2", "{\"a\" 1}", "[\"unterminated]", "{[1]: 2}", "[/* unterminated" };
+		for (String text : texts) {
+			try {
+				events(text);
+				fail(text);
+			} catch (JSONException expected) {
+			}
+			assertEquals(0, JsonData.create(new StringReader(text)).length());
+		}
+	}
+
+	@Test
+	public void handlerStopsTheParsing() throws Exception {
+		final JSONException stop = new JSONException("stop");
+		final List<Object> values = new ArrayList<Object>();
+		try {
+			new JsonStreamParser(new StringReader("[1, 2, 3]")).parse(new JsonDataBuilder() {
+				@Override
+				public void onValue(Object value) throws JSONException {
+					values.add(value);
+					if (values.size() == 2) {
+						throw stop;
+					}
+				}
+			});
+			fail();
+		} catch (JSONException e) {
+			assertSame(stop, e);
+		}
+		assertEquals(2, values.size());
+	}
+
+	@Test
+	public void buildsTheSameTreeAsJsonTokenerForJson() throws Exception {
+		String text = "{\"list\": [{\"id\": 1, \"name\": \"one\"}, {\"id\": 2, \"tags\": []}], \"ok\": false, \"none\": null}";
+		JsonData streamed = JsonData.create(new StringReader(text));
+		JsonData tokened = JsonData.create(text);
+		assertEquals(tokened.optJson("list").length(), streamed.optJson("list").length());
+		assertEquals(tokened.optJson("list").optJson(0).optString("name"), streamed.optJson("list").optJson(0).optString("name"));
+		assertEquals(tokened.optJson("list").optJson(1).optInt("id"), streamed.optJson("list").optJson(1).optInt("id"));
+		assertFalse(streamed.optBoolean("ok"));
+		assertTrue(streamed.has("none"));
+	}
+
+	private static List<String> events(String text) throws IOException, JSONException {
+		RecordingHandler handler = new RecordingHandler();
+		new JsonStreamParser(new StringReader(text)).parse(handler);
+		return handler.mEvents;
+	}
+
+	private static JSONArray parseArray(String text) {
+		return (JSONArray) JsonData.create(new StringReader(text)).getRawData();
+	}
+}
@@ -0,0 +1,180 @@
+package com.srain.cube.request;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bursts of requests sent by {@link SimpleRequestManager} to a stub server on the loopback, for the limit per host. The
+ * server answers each request in 20ms, as many at once as it receives, and waits {@link #connectMillis} before the
+ * first answer of a connection, the cost of a handshake. With two hosts, the requests alternate between 127.0.0.1 and
+ * localhost, two keys of the limit.
+ * <p/>
+ * One operation is a burst of 15 requests, the score times 15 is the requests per second; the connections counter is
+ * the number of connections the server accepted in an iteration.
+ * <p/>
+ * Run with {@code java -cp <test classpath> org.openjdk.jmh.Main RequestManagerBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class RequestManagerBenchmark {
+
+	private static final int BURST = 15;
+	private static final int RESPONSE_MILLIS = 20;
+
+	@Param({"1", "2", "4"})
+	public int maxRequestsPerHost;
+
+	@Param({"0", "150"})
+	public int connectMillis;
+
+	@Param({"1", "2"})
+	public int hosts;
+
+	private ServerSocket mServer;
+	private final AtomicInteger mConnections = new AtomicInteger();
+	private byte[] mResponse;
+	private String[] mUrls;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Connections {
+		public int connections;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		StringBuilder sb = new StringBuilder("{\"items\": [");
+		for (int i = 0; i < 60; i++) {
+			sb.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"name\": \"item ").append(i).append("\"}");
+		}
+		byte[] body = sb.append("]}").toString().getBytes("UTF-8");
+		byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("UTF-8");
+		mResponse = new byte[head.length + body.length];
+		System.arraycopy(head, 0, mResponse, 0, head.length);
+		System.arraycopy(body, 0, mResponse, head.length, body.length);
+
+		mServer = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						serve(mServer.accept());
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		String[] names = { "127.0.0.1", "localhost" };
+		mUrls = new String[BURST];
+		for (int i = 0; i < BURST; i++) {
+			mUrls[i] = "http://" + names[i % hosts] + ":" + mServer.getLocalPort() + "/feed?page=" + i;
+		}
+
+		// HttpURLConnection reads http.keepAlive once, with its first connection: on a JVM the stubs of android.jar
+		// report SDK 0, and Downloader would turn the reuse off for the later ones
+		HttpURLConnection connection = (HttpURLConnection) new URL(mUrls[0]).openConnection();
+		InputStream in = connection.getInputStream();
+		while (in.read() != -1) {
+		}
+		in.close();
+
+		SimpleRequestManager.setMaxRequestsPerHost(maxRequestsPerHost);
+	}
+
+	@Setup(Level.Iteration)
+	public void countConnections() {
+		mConnections.set(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mServer.close();
+	}
+
+	@Benchmark
+	public void burst(Connections counters) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(BURST);
+		for (final String url : mUrls) {
+			SimpleRequestManager.sendRequest(new IRequest<Object>() {
+
+				@Override
+				public String getRequestUrl() {
+					return url;
+				}
+
+				@Override
+				public Object processOriginData(JsonData jsonData) {
+					done.countDown();
+					return null;
+				}
+
+				@Override
+				public void onRequestSucc(Object data) {
+				}
+			});
+		}
+		done.await();
+		counters.connections = mConnections.get();
+	}
+
+	private void serve(final Socket socket) {
+		mConnections.incrementAndGet();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					socket.setTcpNoDelay(true);
+					Thread.sleep(connectMillis);
+					BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+					OutputStream out = socket.getOutputStream();
+					while (reader.readLine() != null) {
+						String line;
+						while ((line = reader.readLine()) != null && line.length() > 0) {
+						}
+						Thread.sleep(RESPONSE_MILLIS);
+						out.write(mResponse);
+						out.flush();
+					}
+					socket.close();
+				} catch (Exception e) {
+					// the client closed the connection
+				}
+			}
+		}.start();
+	}
+}
@@ -0,0 +1,389 @@
+package com.srain.cube.request.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Write the {@code JsonAdapter} of each {@code JsonModel} class: plain field assignments chosen by the name of the
+ * value, so that nothing is looked up by reflection when the response is read.
+ *
+ * The annotations are found by their names, the processor does not depend on the Android library.
+ */
+public class JsonModelProcessor extends AbstractProcessor {
+
+	private static final String PACKAGE = "com.srain.cube.request";
+	private static final String JSON_MODEL = PACKAGE + ".JsonModel";
+	private static final String JSON_FIELD = PACKAGE + ".JsonField";
+	private static final String JSON_ADAPTER = PACKAGE + ".JsonAdapter";
+	private static final String JSON_LIST_ADAPTER = PACKAGE + ".JsonListAdapter";
+	private static final String ADAPTER_SUFFIX = "JsonAdapter";
+
+	/** The expression which converts {@code value}, for the strings, the primitives and their boxes. */
+	private static final HashMap<String, String> sConversions = new HashMap<String, String>();
+	/** The adapter of the lists of strings and boxes. */
+	private static final HashMap<String, String> sListAdapters = new HashMap<String, String>();
+
+	static {
+		sConversions.put("java.lang.String", "toString(value)");
+		sConversions.put("int", "toInt(value)");
+		sConversions.put("long", "toLong(value)");
+		sConversions.put("double", "toDouble(value)");
+		sConversions.put("float", "(float) toDouble(value)");
+		sConversions.put("short", "(short) toInt(value)");
+		sConversions.put("byte", "(byte) toInt(value)");
+		sConversions.put("boolean", "toBoolean(value)");
+		sConversions.put("java.lang.Integer", "isNull(value) ? null : Integer.valueOf(toInt(value))");
+		sConversions.put("java.lang.Long", "isNull(value) ? null : Long.valueOf(toLong(value))");
+		sConversions.put("java.lang.Double", "isNull(value) ? null : Double.valueOf(toDouble(value))");
+		sConversions.put("java.lang.Float", "isNull(value) ? null : Float.valueOf((float) toDouble(value))");
+		sConversions.put("java.lang.Short", "isNull(value) ? null : Short.valueOf((short) toInt(value))");
+		sConversions.put("java.lang.Byte", "isNull(value) ? null : Byte.valueOf((byte) toInt(value))");
+		sConversions.put("java.lang.Boolean", "isNull(value) ? null : Boolean.valueOf(toBoolean(value))");
+
+		sListAdapters.put("java.lang.String", "ofStrings()");
+		sListAdapters.put("java.lang.Integer", "ofIntegers()");
+		sListAdapters.put("java.lang.Long", "ofLongs()");
+		sListAdapters.put("java.lang.Double", "ofDoubles()");
+		sListAdapters.put("java.lang.Boolean", "ofBooleans()");
+	}
+
+	/**
+	 * A field of a model and how its value is read.
+	 */
+	private static class Binding {
+
+		private String mJsonName;
+		private String mFieldName;
+		private String mFieldType;
+		/** For a value, see {@link JsonModelProcessor#sConversions}; null for an object or an array. */
+		private String mConversion;
+		/** For an object or an array. */
+		private String mAdapter;
+	}
+
+	/**
+	 * {@code JsonField} is read with its model, but claimed as well: an unclaimed annotation is a warning with
+	 * {@code -Xlint:processing}, an error with {@code -Werror}.
+	 */
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return new HashSet<String>(Arrays.asList(JSON_MODEL, JSON_FIELD));
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement jsonModel = processingEnv.getElementUtils().getTypeElement(JSON_MODEL);
+		if (jsonModel == null) {
+			return false;
+		}
+		for (Element element : roundEnv.getElementsAnnotatedWith(jsonModel)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@JsonModel must be on a class");
+				continue;
+			}
+			TypeElement model = (TypeElement) element;
+			// report all the errors of the model at once
+			boolean valid = checkModel(model);
+			List<Binding> bindings = getBindings(model);
+			if (valid && bindings != null) {
+				writeAdapter(model, bindings);
+			}
+		}
+		return true;
+	}
+
+	private boolean checkModel(TypeElement model) {
+		Set<Modifier> modifiers = model.getModifiers();
+		if (modifiers.contains(Modifier.ABSTRACT) || modifiers.contains(Modifier.PRIVATE)) {
+			error(model, "A @JsonModel can not be abstract nor private");
+			return false;
+		}
+		if (model.getNestingKind().isNested() && !modifiers.contains(Modifier.STATIC)) {
+			error(model, "A nested @JsonModel must be static");
+			return false;
+		}
+		List<ExecutableElement> constructors = ElementFilter.constructorsIn(model.getEnclosedElements());
+		for (ExecutableElement constructor : constructors) {
+			if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		error(model, "A @JsonModel needs a constructor without argument which is not private");
+		return false;
+	}
+
+	/**
+	 * The fields of the model and of its super classes, null if one of them can not be bound.
+	 */
+	private List<Binding> getBindings(TypeElement model) {
+		ArrayList<Binding> bindings = new ArrayList<Binding>();
+		HashMap<String, VariableElement> names = new HashMap<String, VariableElement>();
+		boolean valid = true;
+		PackageElement modelPackage = getPackage(model);
+		TypeElement type = model;
+		while (type != null) {
+			for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+				AnnotationMirror annotation = getAnnotation(field, JSON_FIELD);
+				if (annotation == null) {
+					continue;
+				}
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.STATIC)) {
+					error(field, "A @JsonField can not be private, final or static");
+					valid = false;
+					continue;
+				}
+				if (!modifiers.contains(Modifier.PUBLIC) && !getPackage(type).equals(modelPackage)) {
+					error(field, "A @JsonField of a super class in another package must be public");
+					valid = false;
+					continue;
+				}
+				Binding binding = new Binding();
+				binding.mFieldName = field.getSimpleName().toString();
+				binding.mJsonName = getJsonName(annotation, binding.mFieldName);
+				if (names.containsKey(binding.mJsonName)) {
+					// the field of the sub class is kept
+					continue;
+				}
+				names.put(binding.mJsonName, field);
+				if (!bindType(field, binding)) {
+					valid = false;
+					continue;
+				}
+				bindings.add(binding);
+			}
+			type = getSuperClass(type);
+		}
+		return valid ? bindings : null;
+	}
+
+	private boolean bindType(VariableElement field, Binding binding) {
+		TypeMirror type = field.asType();
+		binding.mFieldType = type.toString();
+		String conversion = sConversions.get(binding.mFieldType);
+		if (conversion != null) {
+			binding.mConversion = conversion;
+			return true;
+		}
+		if (type.getKind() == TypeKind.DECLARED) {
+			DeclaredType declared = (DeclaredType) type;
+			TypeElement element = (TypeElement) declared.asElement();
+			if (getAnnotation(element, JSON_MODEL) != null) {
+				binding.mAdapter = getAdapterName(element) + ".INSTANCE";
+				return true;
+			}
+			String erasure = element.getQualifiedName().toString();
+			if (declared.getTypeArguments().size() == 1 && (erasure.equals("java.util.List") || erasure.equals("java.util.ArrayList") || erasure.equals("java.util.Collection"))) {
+				TypeMirror elementType = declared.getTypeArguments().get(0);
+				String listAdapter = sListAdapters.get(elementType.toString());
+				if (listAdapter != null) {
+					binding.mAdapter = JSON_LIST_ADAPTER + "." + listAdapter;
+					return true;
+				}
+				if (elementType.getKind() == TypeKind.DECLARED) {
+					TypeElement elementElement = (TypeElement) ((DeclaredType) elementType).asElement();
+					if (getAnnotation(elementElement, JSON_MODEL) != null) {
+						binding.mAdapter = JSON_LIST_ADAPTER + ".of(" + getAdapterName(elementElement) + ".INSTANCE)";
+						return true;
+					}
+				}
+			}
+		}
+		error(field, "A @JsonField must be a primitive, its box, a String, a @JsonModel or a List of those");
+		return false;
+	}
+
+	private void writeAdapter(TypeElement model, List<Binding> bindings) {
+		String modelName = model.getQualifiedName().toString();
+		String packageName = getPackage(model).getQualifiedName().toString();
+		String adapterName = getAdapterSimpleName(model);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("// Generated by ").append(JsonModelProcessor.class.getSimpleName()).append(", do not edit.\n");
+		if (packageName.length() > 0) {
+			sb.append("package ").append(packageName).append(";\n\n");
+		}
+		sb.append("public final class ").append(adapterName).append(" extends ").append(JSON_ADAPTER).append("<").append(modelName).append("> {\n\n");
+		sb.append("\tpublic static final ").append(adapterName).append(" INSTANCE = new ").append(adapterName).append("();\n\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic ").append(modelName).append(" newInstance() {\n");
+		sb.append("\t\treturn new ").append(modelName).append("();\n");
+		sb.append("\t}\n\n");
+
+		sb.append("\t@Override\n");
+		sb.append("\tpublic void setValue(").append(modelName).append(" model, String name, Object value) {\n");
+		appendBranches(sb, bindings, true);
+		sb.append("\t}\n");
+
+		boolean hasChildren = false;
+		for (Binding binding : bindings) {
+			hasChildren |= binding.mAdapter != null;
+		}
+		if (hasChildren) {
+			sb.append("\n\t@Override\n");
+			sb.append("\tpublic ").append(JSON_ADAPTER).append("<?> getAdapter(String name) {\n");
+			for (Binding binding : bindings) {
+				if (binding.mAdapter != null) {
+					sb.append("\t\tif (").append(quote(binding.mJsonName)).append(".equals(name)) {\n");
+					sb.append("\t\t\treturn ").append(binding.mAdapter).append(";\n");
+					sb.append("\t\t}\n");
+				}
+			}
+			sb.append("\t\treturn null;\n");
+			sb.append("\t}\n\n");
+
+			sb.append("\t@SuppressWarnings(\"unchecked\")\n");
+			sb.append("\t@Override\n");
+			sb.append("\tpublic void setChild(").append(modelName).append(" model, String name, Object child) {\n");
+			appendBranches(sb, bindings, false);
+			sb.append("\t}\n");
+		}
+		sb.append("}\n");
+
+		String qualifiedName = packageName.length() > 0 ? packageName + "." + adapterName : adapterName;
+		try {
+			Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, model).openWriter();
+			try {
+				writer.write(sb.toString());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			error(model, "Can not write " + qualifiedName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The assignments of the values, or of the objects and arrays, chosen by name.
+	 */
+	private static void appendBranches(StringBuilder sb, List<Binding> bindings, boolean values) {
+		boolean first = true;
+		for (Binding binding : bindings) {
+			if ((binding.mConversion != null) != values) {
+				continue;
+			}
+			sb.append(first ? "\t\tif (" : " else if (").append(quote(binding.mJsonName)).append(".equals(name)) {\n");
+			sb.append("\t\t\tmodel.").append(binding.mFieldName).append(" = ");
+			if (values) {
+				sb.append(binding.mConversion);
+			} else {
+				sb.append("(").append(binding.mFieldType).append(") child");
+			}
+			sb.append(";\n\t\t}");
+			first = false;
+		}
+		if (!first) {
+			sb.append("\n");
+		}
+	}
+
+	/**
+	 * {@code Outer_InnerJsonAdapter} for {@code Outer.Inner}, in the package of the model.
+	 */
+	private static String getAdapterSimpleName(TypeElement model) {
+		StringBuilder name = new StringBuilder(model.getSimpleName());
+		Element enclosing = model.getEnclosingElement();
+		while (enclosing instanceof TypeElement) {
+			name.insert(0, '_').insert(0, enclosing.getSimpleName());
+			enclosing = enclosing.getEnclosingElement();
+		}
+		return name.append(ADAPTER_SUFFIX).toString();
+	}
+
+	private static String getAdapterName(TypeElement model) {
+		String packageName = getPackage(model).getQualifiedName().toString();
+		String simpleName = getAdapterSimpleName(model);
+		return packageName.length() > 0 ? packageName + "." + simpleName : simpleName;
+	}
+
+	private static PackageElement getPackage(Element element) {
+		while (!(element instanceof PackageElement)) {
+			element = element.getEnclosingElement();
+		}
+		return (PackageElement) element;
+	}
+
+	private static TypeElement getSuperClass(TypeElement type) {
+		TypeMirror superClass = type.getSuperclass();
+		if (superClass.getKind() != TypeKind.DECLARED) {
+			return null;
+		}
+		TypeElement element = (TypeElement) ((DeclaredType) superClass).asElement();
+		if (element.getQualifiedName().toString().equals("java.lang.Object")) {
+			return null;
+		}
+		return element;
+	}
+
+	private static AnnotationMirror getAnnotation(Element element, String annotationName) {
+		for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+			TypeElement type = (TypeElement) annotation.getAnnotationType().asElement();
+			if (type.getQualifiedName().toString().equals(annotationName)) {
+				return annotation;
+			}
+		}
+		return null;
+	}
+
+	private static String getJsonName(AnnotationMirror annotation, String fieldName) {
+		for (ExecutableElement key : annotation.getElementValues().keySet()) {
+			if (key.getSimpleName().toString().equals("value")) {
+				AnnotationValue value = annotation.getElementValues().get(key);
+				String name = (String) value.getValue();
+				if (name.length() > 0) {
+					return name;
+				}
+			}
+		}
+		return fieldName;
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ' || c > '~') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}